@@ -0,0 +1,22 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: MIT-0
+
+plugins {
+    id("glitchybyte.java-common-conventions")
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+dependencies {
+    jmh(project(":lib"))
+}
+
+jmh {
+    jmhVersion = "1.37"
+    // Allocation rate next to ns/op.
+    profilers.add("gc")
+    // Benchmark the Vector API paths, as production deployments enable them.
+    jvmArgsAppend.add("--add-modules=jdk.incubator.vector")
+    // Narrow runs with: ./gradlew :benchmarks:jmh -Pjmh.includes=Codec.decode
+    project.findProperty("jmh.includes")?.let { includes.add(it as String) }
+    resultFormat = "JSON"
+}
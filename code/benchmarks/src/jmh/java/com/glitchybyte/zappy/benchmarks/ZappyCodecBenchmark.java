@@ -0,0 +1,74 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy.benchmarks;
+
+import com.glitchybyte.zappy.Zappy;
+import com.glitchybyte.zappy.ZappyParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Codec hot paths for every payload family and contraction table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZappyCodecBenchmark {
+
+    @Param
+    public ZappyPayloads payload;
+
+    @Param
+    public ZappyTables tables;
+
+    private Zappy zappy;
+    private String original;
+    private String encoded;
+    private String base64Encoded;
+
+    @Setup
+    public void setup() throws ZappyParseException {
+        zappy = new Zappy(tables.create());
+        original = payload.create();
+        encoded = zappy.encode(original);
+        base64Encoded = zappy.base64StringEncode(original);
+        if (!original.equals(zappy.decode(encoded))) {
+            throw new IllegalStateException("Payload doesn't round trip: " + payload);
+        }
+    }
+
+    @Benchmark
+    public String encode() {
+        return zappy.encode(original);
+    }
+
+    @Benchmark
+    public String decode() throws ZappyParseException {
+        return zappy.decode(encoded);
+    }
+
+    @Benchmark
+    public String base64StringEncode() {
+        return zappy.base64StringEncode(original);
+    }
+
+    @Benchmark
+    public String base64StringDecode() throws ZappyParseException {
+        return zappy.base64StringDecode(base64Encoded);
+    }
+}
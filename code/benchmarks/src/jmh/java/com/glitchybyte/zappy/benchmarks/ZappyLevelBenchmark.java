@@ -0,0 +1,56 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy.benchmarks;
+
+import com.glitchybyte.zappy.Zappy;
+import com.glitchybyte.zappy.ZappyLevel;
+import com.glitchybyte.zappy.ZappyParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding at every compression level, for every payload family with the default tables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZappyLevelBenchmark {
+
+    @Param
+    public ZappyPayloads payload;
+
+    @Param
+    public ZappyLevel level;
+
+    private Zappy zappy;
+    private String original;
+
+    @Setup
+    public void setup() throws ZappyParseException {
+        zappy = new Zappy(null).withLevel(level);
+        original = payload.create();
+        if (!original.equals(zappy.decode(zappy.encode(original)))) {
+            throw new IllegalStateException("Payload doesn't round trip: " + payload + " at " + level);
+        }
+    }
+
+    @Benchmark
+    public String encode() {
+        return zappy.encode(original);
+    }
+}
@@ -0,0 +1,142 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy.benchmarks;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Payload families measured by the benchmarks.
+ *
+ * <p>Payloads are generated from a fixed seed, so every run measures the same bytes.
+ */
+public enum ZappyPayloads {
+
+    /**
+     * A single small json object, the typical API message.
+     */
+    SMALL_JSON {
+        @Override
+        String create(final Random random) {
+            return jsonRecord(random, 1);
+        }
+    },
+
+    /**
+     * A large json array of records, as in a snapshot export.
+     */
+    LARGE_JSON_ARRAY {
+        @Override
+        String create(final Random random) {
+            final StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < 500; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(jsonRecord(random, i));
+            }
+            return sb.append(']').toString();
+        }
+    },
+
+    /**
+     * A list of URLs.
+     */
+    URLS {
+        @Override
+        String create(final Random random) {
+            final String[] hosts = { "example.com", "api.glitchybyte.com", "localhost:8080", "cdn.example.org" };
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 40; ++i) {
+                sb.append(random.nextBoolean() ? "https://" : "http://")
+                        .append(hosts[random.nextInt(hosts.length)])
+                        .append("/v1/items/").append(random.nextInt(100000))
+                        .append("?page=").append(random.nextInt(50))
+                        .append("&sort=name\n");
+            }
+            return sb.toString();
+        }
+    },
+
+    /**
+     * Json heavy with UUIDs.
+     */
+    UUID_HEAVY {
+        @Override
+        String create(final Random random) {
+            final StringBuilder sb = new StringBuilder("{\"ids\":[");
+            for (int i = 0; i < 64; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                final UUID uuid = new UUID(random.nextLong(), random.nextLong());
+                sb.append('"').append(i % 2 == 0 ? uuid.toString() : uuid.toString().toUpperCase(Locale.US)).append('"');
+            }
+            return sb.append("]}").toString();
+        }
+    },
+
+    /**
+     * Numeric telemetry samples.
+     */
+    NUMERIC_TELEMETRY {
+        @Override
+        String create(final Random random) {
+            final StringBuilder sb = new StringBuilder("[");
+            long timestamp = 1700000000L;
+            for (int i = 0; i < 200; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                timestamp += random.nextInt(1000);
+                sb.append("{\"t\":").append(timestamp)
+                        .append(",\"cpu\":").append(random.nextInt(100))
+                        .append(",\"mem\":").append(random.nextInt(1 << 24))
+                        .append(",\"rx\":").append(random.nextInt(Integer.MAX_VALUE))
+                        .append(",\"crc\":\"").append(Integer.toHexString(random.nextInt(Integer.MAX_VALUE)))
+                        .append("\"}");
+            }
+            return sb.append(']').toString();
+        }
+    },
+
+    /**
+     * Mostly non-ASCII text.
+     */
+    NON_ASCII {
+        @Override
+        String create(final Random random) {
+            final String[] words = { "héllo", "wörld", "日本語", "текст", "✌️", "👍", "🥸", "ñandú", "ελληνικά" };
+            final StringBuilder sb = new StringBuilder("{\"msg\":\"");
+            for (int i = 0; i < 100; ++i) {
+                sb.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            return sb.append("\"}").toString();
+        }
+    };
+
+    private static final long SEED = 0x5eed;
+
+    abstract String create(Random random);
+
+    /**
+     * Creates the payload.
+     *
+     * @return The payload text.
+     */
+    public String create() {
+        return create(new Random(SEED));
+    }
+
+    private static String jsonRecord(final Random random, final int id) {
+        return "{\"id\":" + id +
+                ",\"name\":\"user" + random.nextInt(10000) + "\"" +
+                ",\"active\":" + random.nextBoolean() +
+                ",\"score\":" + random.nextInt(100000) +
+                ",\"profile\":\"https://example.com/users/" + id + "\"" +
+                ",\"tags\":[\"alpha\",\"beta\"]" +
+                ",\"parent\":null}";
+    }
+}
@@ -0,0 +1,55 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy.benchmarks;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Contraction tables measured by the benchmarks.
+ */
+public enum ZappyTables {
+
+    /**
+     * Only the default contractions.
+     */
+    DEFAULT {
+        @Override
+        public Map<Integer, String[]> create() {
+            return null;
+        }
+    },
+
+    /**
+     * Full custom tables, to measure lookups with many candidates.
+     */
+    LARGE {
+        @Override
+        public Map<Integer, String[]> create() {
+            final Map<Integer, String[]> tables = new HashMap<>();
+            tables.put(1, new String[] {
+                    "\"name\":\"", "\"active\":", "\"score\":", "\"profile\":\"", "\"tags\":[\"", "\"parent\":",
+                    "https://example.com/users/", "\"ids\":[\"", "\"cpu\":", "\"mem\":", "\"rx\":", "\"crc\":\"",
+                    "/v1/items/", "?page=", "&sort=name", "api.glitchybyte.com", "cdn.example.org", "localhost:8080"
+            });
+            // Fill the remaining tables with plausible but mostly unmatched entries.
+            for (int tableId = 2; tableId <= 15; ++tableId) {
+                final String[] entries = new String[0x100];
+                for (int i = 0; i < entries.length; ++i) {
+                    entries[i] = String.format(Locale.US, "\"field%d_%03d\":", tableId, i);
+                }
+                tables.put(tableId, entries);
+            }
+            return tables;
+        }
+    };
+
+    /**
+     * Creates the contraction source.
+     *
+     * @return Contraction source for the Zappy constructor.
+     */
+    public abstract Map<Integer, String[]> create();
+}
@@ -0,0 +1,20 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: MIT-0
+
+plugins {
+    id("glitchybyte.java-application-conventions")
+}
+
+dependencies {
+    implementation(project(":lib"))
+}
+
+application {
+    mainClass = "com.glitchybyte.zappy.cli.ZappyCli"
+    applicationName = "zappy"
+    // Vector API base64 decoding, as with production deployments of the library.
+    applicationDefaultJvmArgs = listOf("--add-modules=jdk.incubator.vector")
+}
+
+// Setup build info.
+version = File("../version").readLines().first().trim()
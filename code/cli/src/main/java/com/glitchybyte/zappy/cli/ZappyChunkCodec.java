@@ -0,0 +1,152 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy.cli;
+
+import com.glitchybyte.zappy.Zappy;
+import com.glitchybyte.zappy.ZappyParseException;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes or decodes every line of a chunk.
+ *
+ * <p>Each line is one message. Lines end with a line feed, and a carriage return before it is
+ * dropped. Every output line ends with a line feed.
+ */
+final class ZappyChunkCodec {
+
+    /**
+     * Output of a chunk.
+     *
+     * @param output Output bytes, from position 0 to the limit.
+     * @param messageCount Number of lines.
+     * @param decodedByteCount Bytes of decoded messages, without line ends.
+     * @param encodedByteCount Bytes of encoded messages, without line ends.
+     */
+    record Result(ByteBuffer output, long messageCount, long decodedByteCount, long encodedByteCount) {}
+
+    private final Zappy zappy;
+    private final boolean isEncoding;
+
+    /**
+     * Creates a chunk codec.
+     *
+     * @param zappy Codec for each message.
+     * @param isEncoding True to encode, false to decode.
+     */
+    ZappyChunkCodec(final Zappy zappy, final boolean isEncoding) {
+        this.zappy = zappy;
+        this.isEncoding = isEncoding;
+    }
+
+    /**
+     * Encodes or decodes every line of a chunk.
+     *
+     * @param chunk Chunk of whole lines.
+     * @return The output.
+     * @throws IOException if a message is invalid for decoding.
+     */
+    Result process(final ZappyLineChunker.Chunk chunk) throws IOException {
+        final ByteBuffer input = chunk.bytes();
+        final int end = input.limit();
+        // Encoding is about 3/4 the size for json. Decoding grows as needed.
+        ByteBuffer output = ByteBuffer.allocate(Math.max(0x100, isEncoding ? end : end * 2));
+        final AsciiSequence text = new AsciiSequence(input);
+        long messageCount = 0;
+        long decodedByteCount = 0;
+        long encodedByteCount = 0;
+        int lineStart = 0;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while ((lineEnd < end) && (input.get(lineEnd) != '\n')) {
+                ++lineEnd;
+            }
+            final int next = lineEnd + 1;
+            if ((lineEnd > lineStart) && (input.get(lineEnd - 1) == '\r')) {
+                --lineEnd;
+            }
+            final int lineLength = lineEnd - lineStart;
+            if (isEncoding) {
+                final byte[] encoded = zappy.encode(input.slice(lineStart, lineLength)).getBytes(StandardCharsets.ISO_8859_1);
+                output = ensureRemaining(output, encoded.length + 1);
+                output.put(encoded);
+                decodedByteCount += lineLength;
+                encodedByteCount += encoded.length;
+            } else {
+                text.set(lineStart, lineEnd);
+                while (true) {
+                    try {
+                        decodedByteCount += zappy.decodeTo(text, output);
+                        break;
+                    } catch (final BufferOverflowException e) {
+                        // Nothing was written. Retry with more room.
+                        output = ensureRemaining(output, Math.max(output.capacity(), lineLength * 4));
+                    } catch (final ZappyParseException e) {
+                        throw new IOException("Invalid message at offset " + (chunk.offset() + lineStart), e);
+                    }
+                }
+                output = ensureRemaining(output, 1);
+                encodedByteCount += lineLength;
+            }
+            output.put((byte) '\n');
+            ++messageCount;
+            lineStart = next;
+        }
+        return new Result(output.flip(), messageCount, decodedByteCount, encodedByteCount);
+    }
+
+    private static ByteBuffer ensureRemaining(final ByteBuffer buffer, final int count) {
+        if (buffer.remaining() >= count) {
+            return buffer;
+        }
+        final int capacity = Math.max(buffer.capacity() * 2, buffer.position() + count);
+        return ByteBuffer.allocate(capacity).put(buffer.flip());
+    }
+
+    /**
+     * Base64 characters read in place from ASCII bytes.
+     */
+    private static final class AsciiSequence implements CharSequence {
+
+        private final ByteBuffer bytes;
+        private int start = 0;
+        private int end = 0;
+
+        AsciiSequence(final ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        void set(final int start, final int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            return (char) (bytes.get(start + index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(final int subStart, final int subEnd) {
+            final AsciiSequence sequence = new AsciiSequence(bytes);
+            sequence.set(start + subStart, start + subEnd);
+            return sequence;
+        }
+
+        @Override
+        public String toString() {
+            final byte[] ascii = new byte[length()];
+            bytes.get(start, ascii);
+            return new String(ascii, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy.cli;
+
+import com.glitchybyte.zappy.Zappy;
+import com.glitchybyte.zappy.ZappyCodebook;
+import com.glitchybyte.zappy.ZappyLevel;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes or decodes files of line-delimited messages in bulk.
+ *
+ * <p>The input file is memory-mapped and split at line boundaries. Chunks are encoded or
+ * decoded in parallel and written in order, one output line per input line.
+ */
+public final class ZappyCli {
+
+    private static final String USAGE = """
+            Usage: zappy encode|decode [options] INPUT OUTPUT
+              --tables FILE    Codebook file from ZappyCodebook.save. Default contractions if absent.
+              --level LEVEL    Encoding level: FAST, DEFAULT, or MAX. Default: DEFAULT.
+              --threads N      Worker threads. Default: available processors.
+              --chunk-kib N    Chunk size in KiB. Default: 8192.""";
+
+    private ZappyCli() {
+        // Hidden.
+    }
+
+    /**
+     * Entry point.
+     *
+     * @param args Command line arguments.
+     */
+    public static void main(final String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Runs a command.
+     *
+     * @param args Command line arguments.
+     * @param out Stream for the summary.
+     * @param err Stream for errors and usage.
+     * @return Exit code. 0 on success, 1 on error, 2 on invalid arguments.
+     */
+    static int run(final String[] args, final PrintStream out, final PrintStream err) {
+        final Options options;
+        try {
+            options = Options.parse(args);
+        } catch (final IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return 2;
+        }
+        try {
+            final ZappyCodebook codebook = options.tables == null ?
+                    new ZappyCodebook(null) :
+                    ZappyCodebook.load(options.tables);
+            final Zappy zappy = Zappy.fromCodebook(codebook).withLevel(options.level);
+            final long start = System.nanoTime();
+            final Totals totals = process(zappy, options);
+            final long elapsed = System.nanoTime() - start;
+            printSummary(out, options.isEncoding, totals, elapsed);
+            return 0;
+        } catch (final IOException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private static Totals process(final Zappy zappy, final Options options) throws IOException {
+        final ZappyChunkCodec codec = new ZappyChunkCodec(zappy, options.isEncoding);
+        final Totals totals = new Totals();
+        final ExecutorService executor = Executors.newFixedThreadPool(options.threadCount);
+        try (
+                final FileChannel input = FileChannel.open(options.input, StandardOpenOption.READ);
+                final FileChannel output = FileChannel.open(options.output, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+        ) {
+            final ZappyLineChunker chunker = new ZappyLineChunker(input, options.chunkSize);
+            // Chunks in flight are bounded so memory doesn't grow with the file size.
+            final int maxPending = options.threadCount * 2;
+            final Deque<Future<ZappyChunkCodec.Result>> pending = new ArrayDeque<>(maxPending);
+            ZappyLineChunker.Chunk chunk = chunker.next();
+            while ((chunk != null) || !pending.isEmpty()) {
+                while ((chunk != null) && (pending.size() < maxPending)) {
+                    final ZappyLineChunker.Chunk task = chunk;
+                    pending.addLast(executor.submit(() -> codec.process(task)));
+                    chunk = chunker.next();
+                }
+                final ZappyChunkCodec.Result result = await(pending.removeFirst());
+                final ByteBuffer bytes = result.output();
+                while (bytes.hasRemaining()) {
+                    output.write(bytes);
+                }
+                totals.add(result);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return totals;
+    }
+
+    private static ZappyChunkCodec.Result await(final Future<ZappyChunkCodec.Result> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void printSummary(final PrintStream out, final boolean isEncoding, final Totals totals,
+            final long elapsedNanos) {
+        final double seconds = Math.max(elapsedNanos, 1) / 1_000_000_000.0;
+        final long inputBytes = isEncoding ? totals.decodedByteCount : totals.encodedByteCount;
+        final double megabytes = inputBytes / 1_000_000.0;
+        final double ratio = totals.decodedByteCount == 0 ? 1.0 :
+                (double) totals.encodedByteCount / totals.decodedByteCount;
+        out.printf(Locale.ROOT, "%s %,d messages in %.3f s%n", isEncoding ? "Encoded" : "Decoded",
+                totals.messageCount, seconds);
+        out.printf(Locale.ROOT, "Throughput: %.1f MB/s, %,.0f msgs/s (%.1f MB in)%n",
+                megabytes / seconds, totals.messageCount / seconds, megabytes);
+        out.printf(Locale.ROOT, "Ratio: %.3f (%,d bytes encoded / %,d bytes decoded)%n",
+                ratio, totals.encodedByteCount, totals.decodedByteCount);
+    }
+
+    private static final class Totals {
+
+        private long messageCount = 0;
+        private long decodedByteCount = 0;
+        private long encodedByteCount = 0;
+
+        void add(final ZappyChunkCodec.Result result) {
+            messageCount += result.messageCount();
+            decodedByteCount += result.decodedByteCount();
+            encodedByteCount += result.encodedByteCount();
+        }
+    }
+
+    private static final class Options {
+
+        private boolean isEncoding;
+        private Path tables = null;
+        private ZappyLevel level = ZappyLevel.DEFAULT;
+        private int threadCount = Runtime.getRuntime().availableProcessors();
+        private int chunkSize = 8192 * 1024;
+        private Path input;
+        private Path output;
+
+        static Options parse(final String[] args) {
+            if (args.length == 0) {
+                throw new IllegalArgumentException("Missing command!");
+            }
+            final Options options = new Options();
+            options.isEncoding = switch (args[0]) {
+                case "encode" -> true;
+                case "decode" -> false;
+                default -> throw new IllegalArgumentException("Unknown command: " + args[0]);
+            };
+            int i = 1;
+            while ((i < args.length) && args[i].startsWith("--")) {
+                final String option = args[i];
+                if ((i + 1) >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                final String value = args[i + 1];
+                switch (option) {
+                    case "--tables" -> options.tables = Path.of(value);
+                    case "--level" -> options.level = parseLevel(value);
+                    case "--threads" -> options.threadCount = parsePositive(option, value, Integer.MAX_VALUE);
+                    case "--chunk-kib" -> options.chunkSize = parsePositive(option, value, Integer.MAX_VALUE / 1024) * 1024;
+                    default -> throw new IllegalArgumentException("Unknown option: " + option);
+                }
+                i += 2;
+            }
+            if ((args.length - i) != 2) {
+                throw new IllegalArgumentException("Expected INPUT and OUTPUT!");
+            }
+            options.input = Path.of(args[i]);
+            options.output = Path.of(args[i + 1]);
+            return options;
+        }
+
+        private static ZappyLevel parseLevel(final String value) {
+            try {
+                return ZappyLevel.valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (final IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown level: " + value);
+            }
+        }
+
+        private static int parsePositive(final String option, final String value, final int max) {
+            final int number;
+            try {
+                number = Integer.parseInt(value);
+            } catch (final NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+            }
+            if ((number <= 0) || (number > max)) {
+                throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+            }
+            return number;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy.cli;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Splits a file into memory-mapped chunks of whole lines.
+ *
+ * <p>Each chunk is mapped on its own, so files of any size are processed without reading them
+ * into the heap, and chunks can be handed to different threads.
+ */
+final class ZappyLineChunker {
+
+    /**
+     * A chunk of whole lines.
+     *
+     * @param offset Offset of the chunk in the file.
+     * @param bytes Mapped bytes of the chunk, from position 0 to the limit. The last line may
+     *          not end with a line feed only if it's the end of the file.
+     */
+    record Chunk(long offset, ByteBuffer bytes) {}
+
+    private final FileChannel channel;
+    private final long size;
+    private final int chunkSize;
+    private long position = 0;
+
+    /**
+     * Creates a chunker.
+     *
+     * @param channel File to split. It's read from the start.
+     * @param chunkSize Target chunk size in bytes. Chunks are longer only to fit a longer line.
+     * @throws IOException if the file size fails to read.
+     */
+    ZappyLineChunker(final FileChannel channel, final int chunkSize) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.channel = channel;
+        size = channel.size();
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Maps the next chunk.
+     *
+     * @return The next chunk, or null at the end of the file.
+     * @throws IOException if the file fails to map, or a line doesn't fit a 2 GiB mapping.
+     */
+    Chunk next() throws IOException {
+        if (position >= size) {
+            return null;
+        }
+        long length = Math.min(chunkSize, size - position);
+        while (true) {
+            final ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            final int end = (position + length) == size ? (int) length : lastLineEnd(bytes, (int) length);
+            if (end > 0) {
+                final Chunk chunk = new Chunk(position, bytes.slice(0, end));
+                position += end;
+                return chunk;
+            }
+            // No line ends within the chunk. Map more.
+            if (length >= Integer.MAX_VALUE) {
+                throw new IOException("Line too long at offset " + position);
+            }
+            length = Math.min(size - position, Math.min(Integer.MAX_VALUE, length * 2));
+        }
+    }
+
+    private static int lastLineEnd(final ByteBuffer bytes, final int length) {
+        for (int i = length - 1; i >= 0; --i) {
+            if (bytes.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+}
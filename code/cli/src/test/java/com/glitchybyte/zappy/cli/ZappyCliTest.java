@@ -0,0 +1,72 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy.cli;
+
+import com.glitchybyte.zappy.Zappy;
+import com.glitchybyte.zappy.ZappyCodebook;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ZappyCliTest {
+
+    @Test
+    void encodeDecodeFileRoundTrip() throws IOException {
+        final Path dir = Files.createTempDirectory("zappy");
+        final Path tables = dir.resolve("tables.zcb");
+        final Path input = dir.resolve("input.jsonl");
+        final Path encoded = dir.resolve("encoded.txt");
+        final Path decoded = dir.resolve("decoded.jsonl");
+        try {
+            final ZappyCodebook codebook = new ZappyCodebook(Map.of(1, new String[] { "\"name\":\"" }));
+            codebook.save(tables);
+            final List<String> lines = new ArrayList<>();
+            final StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 500; ++i) {
+                final String line = i % 50 == 7 ? "" : "{\"id\":" + i + ",\"name\":\"héllo wörld\",\"ok\":true}";
+                lines.add(line);
+                // Windows line ends are accepted.
+                text.append(line).append(i % 3 == 0 ? "\r\n" : "\n");
+            }
+            Files.writeString(input, text, StandardCharsets.UTF_8);
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final PrintStream print = new PrintStream(out, true, StandardCharsets.UTF_8);
+            assertEquals(0, ZappyCli.run(new String[] { "encode", "--tables", tables.toString(), "--threads", "3",
+                    "--chunk-kib", "1", input.toString(), encoded.toString() }, print, print));
+            assertTrue(out.toString(StandardCharsets.UTF_8).contains("500 messages"));
+            final List<String> encodedLines = Files.readAllLines(encoded, StandardCharsets.US_ASCII);
+            final Zappy zappy = Zappy.fromCodebook(codebook);
+            assertEquals(lines.size(), encodedLines.size());
+            for (int i = 0; i < lines.size(); ++i) {
+                assertEquals(zappy.encode(lines.get(i)), encodedLines.get(i));
+            }
+
+            assertEquals(0, ZappyCli.run(new String[] { "decode", "--tables", tables.toString(), "--chunk-kib", "1",
+                    encoded.toString(), decoded.toString() }, print, print));
+            assertEquals(lines, Files.readAllLines(decoded, StandardCharsets.UTF_8));
+
+            Files.writeString(encoded, "aGVsbG8\nnot@zappy\n", StandardCharsets.US_ASCII);
+            assertEquals(1, ZappyCli.run(new String[] { "decode", encoded.toString(), decoded.toString() }, print, print));
+            assertEquals(2, ZappyCli.run(new String[] { "squash", input.toString(), encoded.toString() }, print, print));
+            assertEquals(2, ZappyCli.run(new String[] { "encode", "--threads", "0", input.toString(), encoded.toString() }, print, print));
+        } finally {
+            for (final Path file: new Path[] { tables, input, encoded, decoded }) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+}
@@ -5,6 +5,20 @@ plugins {
     id("glitchybyte.java-library-published-conventions")
 }
 
+// The Vector API is an optional incubator module. It's needed to build, but at runtime it's only
+// used when the application enables it with "--add-modules jdk.incubator.vector".
+tasks.withType<JavaCompile>().configureEach {
+    options.compilerArgs.addAll(listOf("--add-modules", "jdk.incubator.vector"))
+}
+
+tasks.withType<Javadoc>().configureEach {
+    (options as StandardJavadocDocletOptions).addStringOption("-add-modules", "jdk.incubator.vector")
+}
+
+tasks.withType<Test>().configureEach {
+    jvmArgs("--add-modules", "jdk.incubator.vector")
+}
+
 publishing {
     repositories {
         maven {
@@ -30,6 +30,72 @@ public final class GUtils {
         return n < 0 ? 0x10000 + n : n;
     }
 
+    /**
+     * Returns the largest number of UTF-8 bytes a given number of chars can encode into.
+     *
+     * @param charCount Number of UTF-16 chars.
+     * @return Maximum number of UTF-8 bytes.
+     */
+    public static int maxUtf8Length(final int charCount) {
+        return Math.multiplyExact(charCount, 3);
+    }
+
+    /**
+     * Encodes a char sequence as UTF-8 into a byte array without allocating.
+     *
+     * <p>Produces the same bytes as {@code String.getBytes(StandardCharsets.UTF_8)}, including
+     * replacing unpaired surrogates with '?'.
+     *
+     * @param str Char sequence to encode.
+     * @param dst Destination array. It must have room for {@link #maxUtf8Length} bytes.
+     * @param offset Index in the destination array where to start writing.
+     * @return Number of bytes written.
+     */
+    public static int utf8Encode(final CharSequence str, final byte[] dst, final int offset) {
+        return utf8Encode(str, 0, str.length(), dst, offset);
+    }
+
+    /**
+     * Encodes a range of a char sequence as UTF-8 into a byte array without allocating.
+     *
+     * <p>A surrogate pair split by the range end is encoded as an unpaired surrogate.
+     *
+     * @param str Char sequence to encode.
+     * @param start Index of the first char.
+     * @param end Index one past the last char.
+     * @param dst Destination array. It must have room for {@link #maxUtf8Length} bytes.
+     * @param offset Index in the destination array where to start writing.
+     * @return Number of bytes written.
+     */
+    public static int utf8Encode(final CharSequence str, final int start, final int end, final byte[] dst, final int offset) {
+        final int length = end;
+        int position = offset;
+        int index = start;
+        while (index < length) {
+            final char ch = str.charAt(index++);
+            if (ch < 0x80) {
+                dst[position++] = (byte) ch;
+            } else if (ch < 0x800) {
+                dst[position++] = (byte) (0xc0 | (ch >> 6));
+                dst[position++] = (byte) (0x80 | (ch & 0x3f));
+            } else if (!Character.isSurrogate(ch)) {
+                dst[position++] = (byte) (0xe0 | (ch >> 12));
+                dst[position++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                dst[position++] = (byte) (0x80 | (ch & 0x3f));
+            } else if (Character.isHighSurrogate(ch) && (index < length) && Character.isLowSurrogate(str.charAt(index))) {
+                final int codePoint = Character.toCodePoint(ch, str.charAt(index++));
+                dst[position++] = (byte) (0xf0 | (codePoint >> 18));
+                dst[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                dst[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                dst[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                // Unpaired surrogate.
+                dst[position++] = '?';
+            }
+        }
+        return position - offset;
+    }
+
     private GUtils() {
         // Hiding constructor.
     }
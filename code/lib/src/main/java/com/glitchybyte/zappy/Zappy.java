@@ -3,15 +3,25 @@
 
 package com.glitchybyte.zappy;
 
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Encoding and decoding compressed web text for transport.
  *
- * <p>It uses base64 as the message encoding, but the internal bytes are compressed.
+ * <p>It uses base64 as the message encoding by default, but the internal bytes are compressed.
+ * Binary channels and JSON string fields can use other transports with {@link #withTransport}.
+ *
+ * <p>Zappy objects are immutable and thread-safe. A single instance can be shared by any
+ * number of platform or virtual threads without locking. Scratch buffers are taken per call
+ * from a small lock-free pool, so tables are never rebuilt and threads never wait on each other.
  */
 public final class Zappy {
 
@@ -29,49 +39,169 @@ public final class Zappy {
      *          own contractions.
      */
     public Zappy(final Map<Integer, String[]> source) {
-        if (source != null) {
-            for (final int key: source.keySet()) {
-                if ((key < 0) || (key > 16)) {
-                    throw new IllegalArgumentException("Invalid tableId: " + key);
-                }
-            }
+        this(new ZappyCodebook(source));
+    }
+
+    private Zappy(final ZappyCodebook codebook) {
+        this(new ZappyEncoder(codebook), new ZappyDecoder(codebook));
+    }
+
+    private Zappy(final ZappyEncoder encoder, final ZappyDecoder decoder) {
+        this.encoder = encoder;
+        this.decoder = decoder;
+    }
+
+    /**
+     * Creates a Zappy object from an already compiled codebook.
+     *
+     * <p>Compiling a codebook is the expensive part of creating a Zappy object. Instances
+     * created from the same codebook share it.
+     *
+     * @param codebook The compiled contractions used for aiding compression.
+     * @return A Zappy object ready to encode and decode messages.
+     */
+    public static Zappy fromCodebook(final ZappyCodebook codebook) {
+        return new Zappy(codebook);
+    }
+
+    /**
+     * Creates a Zappy object that tags messages with a codebook id and decodes messages of any
+     * codebook in a registry.
+     *
+     * <p>Every encoded message starts with a 2-byte header token with the id. Messages without
+     * a header are decoded with the codebook of the id.
+     *
+     * @param registry Compiled codebooks by id.
+     * @param codebookId Id of the codebook to encode with.
+     * @return A Zappy object ready to encode and decode messages.
+     */
+    public static Zappy fromRegistry(final ZappyCodebookRegistry registry, final int codebookId) {
+        final ZappyCodebook codebook = registry.codebook(codebookId);
+        if (codebook == null) {
+            throw new IllegalArgumentException("Codebook id not in registry: " + codebookId);
+        }
+        return new Zappy(new ZappyEncoder(codebook, ZappyLevel.DEFAULT, null, codebookId, ZappyTransport.BASE64, false),
+                new ZappyDecoder(codebook, null, registry, ZappyTransport.BASE64));
+    }
+
+    /**
+     * Returns a Zappy object with the same contractions that encodes at the given level.
+     *
+     * <p>Output of any level decodes with any Zappy object with the same contractions.
+     *
+     * @param level Compression level.
+     * @return A Zappy object that encodes at the level. It shares the codebook with this one.
+     */
+    public Zappy withLevel(final ZappyLevel level) {
+        if (encoder.level() == level) {
+            return this;
+        }
+        return new Zappy(new ZappyEncoder(encoder.codebook(), level, encoder.metrics(), encoder.codebookId(),
+                encoder.transport(), encoder.usesBackReferences()), decoder);
+    }
+
+    /**
+     * Returns a Zappy object with the same contractions and level that records to the given metrics.
+     *
+     * <p>One-shot and batch calls are recorded. Streams are not.
+     *
+     * @param metrics Metrics to record to, or null to record nothing.
+     * @return A Zappy object that records to the metrics. It shares the codebook with this one.
+     */
+    public Zappy withMetrics(final ZappyMetrics metrics) {
+        if (encoder.metrics() == metrics) {
+            return this;
         }
-        final Map<Integer, Map<Integer, byte[]>> contractions = new HashMap<>();
-        // Layer contraction tables.
-        for (int tableId = 0; tableId <= 16; ++tableId) {
-            final String[] list;
-            if ((source == null) || (!source.containsKey(tableId))) {
-                list = ZappyDefaultContractions.defaultContractions.get(tableId);
-            } else {
-                final String[] sourceList = source.get(tableId);
-                list = Arrays.stream(sourceList).sorted((a, b) -> b.length() - a.length()).toArray(String[]::new);
-            }
-            if (list == null) {
-                continue;
-            }
-            final Map<Integer, byte[]> lookup = createLookup(tableId, list);
-            contractions.put(tableId, lookup);
+        final ZappyCodebook codebook = encoder.codebook();
+        return new Zappy(new ZappyEncoder(codebook, encoder.level(), metrics, encoder.codebookId(), encoder.transport(),
+                encoder.usesBackReferences()), new ZappyDecoder(codebook, metrics, decoder.registry(), decoder.transport()));
+    }
+
+    /**
+     * Returns a Zappy object with the same contractions and level that writes and reads
+     * messages with the given transport.
+     *
+     * <p>Compression is the same for every transport. Only how the compressed bytes go on the
+     * wire changes. Streams use the transport too.
+     *
+     * @param transport Transport of the compressed bytes.
+     * @return A Zappy object that uses the transport. It shares the codebook with this one.
+     */
+    public Zappy withTransport(final ZappyTransport transport) {
+        if (encoder.transport() == transport) {
+            return this;
         }
-        // Create encoder and decoder.
-        encoder = new ZappyEncoder(contractions);
-        decoder = new ZappyDecoder(contractions);
-    }
-
-    private Map<Integer, byte[]> createLookup(final int tableId, final String[] list) {
-        // Convert to bytes for contraction tables.
-        final Map<Integer, byte[]> lookup = new HashMap<>();
-        for (final String entry: list) {
-          final byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
-            if (tableId == 0) {
-                if (bytes.length <= 1) {
-                    throw new IllegalArgumentException("Contraction is smaller than encoding: [1-byte] " + entry);
-                }
-            } else if (bytes.length <= 2) {
-                throw new IllegalArgumentException("Contraction is smaller than encoding: [2-byte] " + entry);
-            }
-            lookup.put(lookup.size(), bytes);
+        final ZappyCodebook codebook = encoder.codebook();
+        return new Zappy(new ZappyEncoder(codebook, encoder.level(), encoder.metrics(), encoder.codebookId(), transport,
+                encoder.usesBackReferences()), new ZappyDecoder(codebook, decoder.metrics(), decoder.registry(), transport));
+    }
+
+    /**
+     * Returns a Zappy object with the same contractions, level, and transport that emits back
+     * references to repeated bytes within a message, or not.
+     *
+     * <p>Back references copy up to 67 bytes from up to 8 KiB back in the decoded message. They
+     * pay off on messages that repeat keys and values, like json arrays of objects. They're an
+     * extension of the spec: every decoder of this version reads them, but older decoders don't,
+     * so they're off by default. Streams don't emit them, but decode them.
+     *
+     * @param isEnabled True to emit back references.
+     * @return A Zappy object that emits back references as asked. It shares the codebook with this one.
+     */
+    public Zappy withBackReferences(final boolean isEnabled) {
+        if (encoder.usesBackReferences() == isEnabled) {
+            return this;
         }
-        return lookup;
+        return new Zappy(new ZappyEncoder(encoder.codebook(), encoder.level(), encoder.metrics(), encoder.codebookId(),
+                encoder.transport(), isEnabled), decoder);
+    }
+
+    /**
+     * Returns whether back references are emitted.
+     *
+     * @return True if back references are emitted.
+     */
+    public boolean usesBackReferences() {
+        return encoder.usesBackReferences();
+    }
+
+    /**
+     * Returns the transport of the compressed bytes.
+     *
+     * @return Transport.
+     */
+    public ZappyTransport transport() {
+        return encoder.transport();
+    }
+
+    /**
+     * Returns the compression level used to encode.
+     *
+     * @return Compression level.
+     */
+    public ZappyLevel level() {
+        return encoder.level();
+    }
+
+    /**
+     * Returns how many compressed bytes the {@link ZappyLevel#MAX} level saves over the
+     * {@link ZappyLevel#DEFAULT} level for a char sequence.
+     *
+     * <p>Sizes are before base64, which adds a third.
+     *
+     * @param str A char sequence.
+     * @return Default compressed size minus max compressed size, in bytes.
+     */
+    public int optimalParseGain(final CharSequence str) {
+        return encoder.optimalParseGain(str);
+    }
+
+    ZappyEncoder encoder() {
+        return encoder;
+    }
+
+    ZappyDecoder decoder() {
+        return decoder;
     }
 
     /**
@@ -83,7 +213,14 @@ public final class Zappy {
      * @return A base64 string.
      */
     public String base64StringEncode(final String str) {
-        return encoder.base64StringEncode(str);
+        final ZappyEvent event = new ZappyEvent();
+        if (!event.isEnabled()) {
+            return encoder.base64StringEncode(str);
+        }
+        event.start();
+        final String encoded = encoder.base64StringEncode(str);
+        event.finish(ZappyEvent.BASE64_ENCODE, str.length(), encoded.length(), null);
+        return encoded;
     }
 
     /**
@@ -96,7 +233,14 @@ public final class Zappy {
      * @throws ZappyParseException if it's an invalid base64 string.
      */
     public String base64StringDecode(final String str) throws ZappyParseException {
-        return decoder.base64StringDecode(str);
+        final ZappyEvent event = new ZappyEvent();
+        if (!event.isEnabled()) {
+            return decoder.base64StringDecode(str);
+        }
+        event.start();
+        final String decoded = decoder.base64StringDecode(str);
+        event.finish(ZappyEvent.BASE64_DECODE, str.length(), decoded.length(), null);
+        return decoded;
     }
 
     /**
@@ -106,7 +250,189 @@ public final class Zappy {
      * @return A Zappy compressed string.
      */
     public String encode(final String str) {
-        return encoder.encode(str);
+        final ZappyEvent event = new ZappyEvent();
+        if (!event.isEnabled()) {
+            return encoder.encode(str);
+        }
+        event.start();
+        final String encoded = encoder.encode(str);
+        event.finish(ZappyEvent.ENCODE, str.length(), encoded.length(), encoder.codebook());
+        return encoded;
+    }
+
+    /**
+     * Turns UTF-8 bytes into a Zappy compressed string, without going through a string.
+     *
+     * <p>Bytes are encoded as they are, so they should be valid UTF-8 for the decoded string
+     * to match.
+     *
+     * @param utf8 UTF-8 bytes.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     * @return A Zappy compressed string.
+     */
+    public String encode(final byte[] utf8, final int offset, final int length) {
+        final ZappyEvent event = new ZappyEvent();
+        if (!event.isEnabled()) {
+            return encoder.encode(utf8, offset, length);
+        }
+        event.start();
+        final String encoded = encoder.encode(utf8, offset, length);
+        event.finish(ZappyEvent.ENCODE, length, encoded.length(), encoder.codebook());
+        return encoded;
+    }
+
+    /**
+     * Turns the remaining UTF-8 bytes of a buffer into a Zappy compressed string, without going
+     * through a string.
+     *
+     * <p>Bytes from the buffer position to its limit are encoded, and the position is advanced
+     * to the limit. Bytes are encoded as they are, so they should be valid UTF-8 for the decoded
+     * string to match.
+     *
+     * @param utf8 UTF-8 bytes. It can be heap or direct.
+     * @return A Zappy compressed string.
+     */
+    public String encode(final ByteBuffer utf8) {
+        final ZappyEvent event = new ZappyEvent();
+        if (!event.isEnabled()) {
+            return encoder.encode(utf8);
+        }
+        final int length = utf8.remaining();
+        event.start();
+        final String encoded = encoder.encode(utf8);
+        event.finish(ZappyEvent.ENCODE, length, encoded.length(), encoder.codebook());
+        return encoded;
+    }
+
+    /**
+     * Turns a string into Zappy compressed transport bytes.
+     *
+     * <p>With {@link ZappyTransport#RAW} these are the compressed bytes as they are, for binary
+     * channels. With a text transport they are the ASCII chars of {@link #encode(String)}.
+     *
+     * @param str A string.
+     * @return Transport bytes.
+     */
+    public byte[] encodeToBytes(final String str) {
+        final ZappyEvent event = new ZappyEvent();
+        if (!event.isEnabled()) {
+            return encoder.encodeToBytes(str);
+        }
+        event.start();
+        final byte[] encoded = encoder.encodeToBytes(str);
+        event.finish(ZappyEvent.ENCODE, str.length(), encoded.length, encoder.codebook());
+        return encoded;
+    }
+
+    /**
+     * Turns a char sequence into a Zappy compressed string appended to the output.
+     *
+     * <p>Does not allocate in steady state.
+     *
+     * @param str A char sequence.
+     * @param out Output to append to.
+     * @return Number of characters appended.
+     * @throws IOException if the output fails to append.
+     */
+    public int encodeTo(final CharSequence str, final Appendable out) throws IOException {
+        return encoder.encodeTo(str, out);
+    }
+
+    /**
+     * Turns a char sequence into a Zappy compressed string written into a char array.
+     *
+     * <p>Does not allocate in steady state. Use {@link #maxEncodedLength} to size the array.
+     *
+     * @param str A char sequence.
+     * @param dst Destination array.
+     * @param offset Index in the destination array where to start writing.
+     * @return Number of characters written.
+     * @throws IndexOutOfBoundsException if the encoded string doesn't fit. Nothing is written in that case.
+     */
+    public int encodeTo(final CharSequence str, final char[] dst, final int offset) {
+        return encoder.encodeTo(str, dst, offset);
+    }
+
+    /**
+     * Turns a char sequence into a Zappy compressed string written as ASCII bytes into a buffer.
+     *
+     * <p>Writing starts at the buffer position, which is advanced by the number of bytes written.
+     * Does not allocate in steady state. Use {@link #maxEncodedLength} to size the buffer.
+     *
+     * @param str A char sequence.
+     * @param dst Destination buffer. It can be heap or direct.
+     * @return Number of bytes written.
+     * @throws BufferOverflowException if the encoded string doesn't fit. Nothing is written in that case.
+     */
+    public int encodeTo(final CharSequence str, final ByteBuffer dst) {
+        return encoder.encodeTo(str, dst);
+    }
+
+    /**
+     * Turns many char sequences into Zappy compressed strings, in parallel on the common
+     * fork-join pool.
+     *
+     * @param sources Char sequences to encode.
+     * @return Zappy compressed strings, in the same order as the sources.
+     */
+    public List<String> encodeAll(final List<? extends CharSequence> sources) {
+        return encodeAll(sources, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Turns many char sequences into Zappy compressed strings, in parallel on the given executor.
+     *
+     * <p>The executor can be a {@link ForkJoinPool} or, for example, a virtual-thread-per-task
+     * executor. Each worker reuses one set of scratch buffers for all its messages.
+     *
+     * @param sources Char sequences to encode.
+     * @param executor Executor that runs the work.
+     * @return Zappy compressed strings, in the same order as the sources.
+     */
+    public List<String> encodeAll(final List<? extends CharSequence> sources, final Executor executor) {
+        return Collections.unmodifiableList(Arrays.asList(encodeAll(sources.toArray(new CharSequence[0]), executor)));
+    }
+
+    /**
+     * Turns many char sequences into Zappy compressed strings, in parallel on the common
+     * fork-join pool.
+     *
+     * @param sources Char sequences to encode.
+     * @return Zappy compressed strings, in the same order as the sources.
+     */
+    public String[] encodeAll(final CharSequence[] sources) {
+        return encodeAll(sources, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Turns many char sequences into Zappy compressed strings, in parallel on the given executor.
+     *
+     * <p>The executor can be a {@link ForkJoinPool} or, for example, a virtual-thread-per-task
+     * executor. Each worker reuses one set of scratch buffers for all its messages.
+     *
+     * @param sources Char sequences to encode.
+     * @param executor Executor that runs the work.
+     * @return Zappy compressed strings, in the same order as the sources.
+     */
+    public String[] encodeAll(final CharSequence[] sources, final Executor executor) {
+        try {
+            return ZappyBatch.run(sources.length, executor, (index, scratch) -> encoder.encode(sources[index], scratch));
+        } catch (final ZappyParseException e) {
+            // Encoding never fails to parse.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the largest number of characters a Zappy compressed string can have for the given
+     * number of source chars.
+     *
+     * @param charCount Number of UTF-16 chars to encode.
+     * @return Maximum number of encoded characters.
+     */
+    public static int maxEncodedLength(final int charCount) {
+        return ZappyEncoder.maxEncodedLength(charCount);
     }
 
     /**
@@ -117,6 +443,140 @@ public final class Zappy {
      * @throws ZappyParseException if it's an invalid Zappy string.
      */
     public String decode(final String str) throws ZappyParseException {
-        return decoder.decode(str);
+        final ZappyEvent event = new ZappyEvent();
+        if (!event.isEnabled()) {
+            return decoder.decode(str);
+        }
+        event.start();
+        final String decoded = decoder.decode(str);
+        event.finish(ZappyEvent.DECODE, str.length(), decoded.length(), decoder.codebookFor(str));
+        return decoded;
+    }
+
+    /**
+     * Turns Zappy compressed transport bytes into a string.
+     *
+     * @param data Transport bytes, as from {@link #encodeToBytes}.
+     * @return Expanded string.
+     * @throws ZappyParseException if they are invalid Zappy bytes.
+     */
+    public String decodeFromBytes(final byte[] data) throws ZappyParseException {
+        return decodeFromBytes(data, 0, data.length);
+    }
+
+    /**
+     * Turns Zappy compressed transport bytes into a string.
+     *
+     * @param data Transport bytes, as from {@link #encodeToBytes}.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     * @return Expanded string.
+     * @throws ZappyParseException if they are invalid Zappy bytes.
+     */
+    public String decodeFromBytes(final byte[] data, final int offset, final int length) throws ZappyParseException {
+        final ZappyEvent event = new ZappyEvent();
+        if (!event.isEnabled()) {
+            return decoder.decodeFromBytes(data, offset, length);
+        }
+        event.start();
+        final String decoded = decoder.decodeFromBytes(data, offset, length);
+        event.finish(ZappyEvent.DECODE, length, decoded.length(), decoder.codebookFor(data, offset, length));
+        return decoded;
+    }
+
+    /**
+     * Turns Zappy compressed characters into UTF-8 bytes written into a buffer.
+     *
+     * <p>Writing starts at the buffer position, which is advanced by the number of bytes written.
+     * There is no charset decoding, and no allocation in steady state.
+     *
+     * @param str Zappy compressed characters. Slices of larger buffers can be passed as they are.
+     * @param dst Destination buffer. It can be heap or direct.
+     * @return Number of bytes written.
+     * @throws ZappyParseException if it's an invalid Zappy string.
+     * @throws BufferOverflowException if the decoded bytes don't fit. Nothing is written in that case.
+     */
+    public int decodeTo(final CharSequence str, final ByteBuffer dst) throws ZappyParseException {
+        return decoder.decodeTo(str, dst);
+    }
+
+    /**
+     * Turns Zappy compressed characters into UTF-8 bytes.
+     *
+     * <p>There is no charset decoding.
+     *
+     * @param str Zappy compressed characters. Slices of larger buffers can be passed as they are.
+     * @return UTF-8 bytes.
+     * @throws ZappyParseException if it's an invalid Zappy string.
+     */
+    public byte[] decodeToBytes(final CharSequence str) throws ZappyParseException {
+        return decoder.decodeToBytes(str);
+    }
+
+    /**
+     * Turns Zappy compressed characters into text appended to the output, without building a string.
+     *
+     * <p>Does not allocate in steady state.
+     *
+     * @param str Zappy compressed characters. Slices of larger buffers can be passed as they are.
+     * @param out Output to append to.
+     * @return Number of characters appended.
+     * @throws ZappyParseException if it's an invalid Zappy string.
+     * @throws IOException if the output fails to append.
+     */
+    public int decodeTo(final CharSequence str, final Appendable out) throws ZappyParseException, IOException {
+        return decoder.decodeTo(str, out);
+    }
+
+    /**
+     * Turns many Zappy compressed strings into strings, in parallel on the common fork-join pool.
+     *
+     * @param sources Zappy compressed strings.
+     * @return Expanded strings, in the same order as the sources.
+     * @throws ZappyParseException if any is an invalid Zappy string. It's the first invalid one in order.
+     */
+    public List<String> decodeAll(final List<String> sources) throws ZappyParseException {
+        return decodeAll(sources, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Turns many Zappy compressed strings into strings, in parallel on the given executor.
+     *
+     * <p>The executor can be a {@link ForkJoinPool} or, for example, a virtual-thread-per-task
+     * executor. Each worker reuses one set of scratch buffers for all its messages.
+     *
+     * @param sources Zappy compressed strings.
+     * @param executor Executor that runs the work.
+     * @return Expanded strings, in the same order as the sources.
+     * @throws ZappyParseException if any is an invalid Zappy string. It's the first invalid one in order.
+     */
+    public List<String> decodeAll(final List<String> sources, final Executor executor) throws ZappyParseException {
+        return Collections.unmodifiableList(Arrays.asList(decodeAll(sources.toArray(new String[0]), executor)));
+    }
+
+    /**
+     * Turns many Zappy compressed strings into strings, in parallel on the common fork-join pool.
+     *
+     * @param sources Zappy compressed strings.
+     * @return Expanded strings, in the same order as the sources.
+     * @throws ZappyParseException if any is an invalid Zappy string. It's the first invalid one in order.
+     */
+    public String[] decodeAll(final String[] sources) throws ZappyParseException {
+        return decodeAll(sources, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Turns many Zappy compressed strings into strings, in parallel on the given executor.
+     *
+     * <p>The executor can be a {@link ForkJoinPool} or, for example, a virtual-thread-per-task
+     * executor. Each worker reuses one set of scratch buffers for all its messages.
+     *
+     * @param sources Zappy compressed strings.
+     * @param executor Executor that runs the work.
+     * @return Expanded strings, in the same order as the sources.
+     * @throws ZappyParseException if any is an invalid Zappy string. It's the first invalid one in order.
+     */
+    public String[] decodeAll(final String[] sources, final Executor executor) throws ZappyParseException {
+        return ZappyBatch.run(sources.length, executor, (index, scratch) -> decoder.decode(sources[index], scratch));
     }
 }
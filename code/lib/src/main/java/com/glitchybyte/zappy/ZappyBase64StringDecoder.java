@@ -5,13 +5,17 @@ package com.glitchybyte.zappy;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Base64 string decoder.
+ *
+ * <p>Instances hold no per-call state and are safe to share between threads.
  */
 public class ZappyBase64StringDecoder {
 
-    private ByteBuffer base64Buffer = GByteBuffer.create();
+    // Reverse lookup of the base64 alphabet for Latin-1. Invalid characters are -1.
+    private static final byte[] base64Values = createBase64Values();
 
     /**
      * Creates a Zappy base64 decoder.
@@ -20,6 +24,16 @@ public class ZappyBase64StringDecoder {
         // No-op.
     }
 
+    private static byte[] createBase64Values() {
+        final byte[] values = new byte[0x100];
+        Arrays.fill(values, (byte) -1);
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); ++i) {
+            values[alphabet.charAt(i)] = (byte) i;
+        }
+        return values;
+    }
+
     /**
      * Decodes a base64 string.
      *
@@ -30,66 +44,157 @@ public class ZappyBase64StringDecoder {
      * @throws ZappyParseException if it's an invalid base64 string.
      */
     public String base64StringDecode(final String str) throws ZappyParseException {
-        final byte[] bytes = base64AlphabetToBytes(str);
-        return new String(bytes, StandardCharsets.UTF_8);
-    }
-
-    private int base64ToByte(final char chByte) throws ZappyParseException {
-        if ((chByte >= 65) && (chByte <= 90)) {
-            return chByte - 65;
-        }
-        if ((chByte >= 97) && (chByte <= 122)) {
-            return chByte - 71;
-        }
-        if ((chByte >= 48) && (chByte <= 57)) {
-            return chByte + 4;
-        }
-        if (chByte == 45) {
-            return 62;
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            final ByteBuffer base64Buffer = base64AlphabetToBytes(str, scratch.base64Buffer);
+            scratch.base64Buffer = base64Buffer;
+            return new String(base64Buffer.array(), 0, base64Buffer.position(), StandardCharsets.UTF_8);
+        } finally {
+            ZappyScratch.release(scratch);
         }
-        if (chByte == 95) {
-            return 63;
-        }
-        throw new ZappyParseException("Invalid base64 character!");
     }
 
     /**
-     * Converts a base64 string into decoded bytes.
+     * Converts base64 characters into decoded bytes.
      *
-     * @param str Base64 string.
-     * @return Decoded bytes.
+     * <p>Decoded bytes are written from the start of the buffer. On return, the buffer
+     * position is the number of decoded bytes.
+     *
+     * @param str Base64 characters.
+     * @param buffer Buffer to decode into. Its contents are discarded.
+     * @return The ByteBuffer object holding the decoded bytes. It may be the same as the given one.
      * @throws ZappyParseException if it's an invalid base64 string.
      */
-    protected byte[] base64AlphabetToBytes(final String str) throws ZappyParseException {
+    protected ByteBuffer base64AlphabetToBytes(final CharSequence str, final ByteBuffer buffer) throws ZappyParseException {
         // Base64 decode.
         // We have 4 6-bit bytes. Make 3 bytes out of them.
         final int strLength = str.length();
-        base64Buffer.clear();
         if ((strLength & 3) == 1) {
-            throw new ZappyParseException("Illegal number of bytes!");
+            throw new ZappyParseException("Illegal number of bytes!", ZappyMetrics.DecodeFailure.INVALID_LENGTH);
         }
+        buffer.clear();
+        final ByteBuffer base64Buffer = GByteBuffer.ensureCapacity(buffer, ((strLength + 3) >> 2) * 3);
         int start = 0;
-        while (start < strLength) {
-            base64Buffer = GByteBuffer.ensureCapacityForMoreBytes(base64Buffer, 3);
-            final int count = Math.min(4, strLength - start);
-            final int b0 = base64ToByte(str.charAt(start));
-            final int b1 = base64ToByte(str.charAt(start + 1));
-            final int d0 = (b0 << 2) | (b1 >> 4);
-            base64Buffer.put((byte) d0);
-            if (count == 4) {
-                final int b2 = base64ToByte(str.charAt(start + 2));
-                final int d1 = ((b1 & 0x0f) << 4) | (b2 >> 2);
-                final int b3 = base64ToByte(str.charAt(start + 3));
-                final int d2 = ((b2 & 0x03) << 6) | b3;
-                final int word = (d2 << 8) | d1;
-                base64Buffer.putShort((short) word);
-            } else if (count == 3) {
-                final int b2 = base64ToByte(str.charAt(start + 2));
-                final int d1 = ((b1 & 0x0f) << 4) | (b2 >> 2);
-                base64Buffer.put((byte) d1);
+        int position = 0;
+        final byte[] bytes = base64Buffer.array();
+        final int groupsEnd = strLength & ~3;
+        while (start < groupsEnd) {
+            final char c0 = str.charAt(start);
+            final char c1 = str.charAt(start + 1);
+            final char c2 = str.charAt(start + 2);
+            final char c3 = str.charAt(start + 3);
+            if ((c0 | c1 | c2 | c3) > 0xff) {
+                throw new ZappyParseException("Invalid base64 character!", ZappyMetrics.DecodeFailure.INVALID_BASE64);
+            }
+            final int b0 = base64Values[c0];
+            final int b1 = base64Values[c1];
+            final int b2 = base64Values[c2];
+            final int b3 = base64Values[c3];
+            if ((b0 | b1 | b2 | b3) < 0) {
+                throw new ZappyParseException("Invalid base64 character!", ZappyMetrics.DecodeFailure.INVALID_BASE64);
+            }
+            final int group = (b0 << 18) | (b1 << 12) | (b2 << 6) | b3;
+            bytes[position] = (byte) (group >> 16);
+            bytes[position + 1] = (byte) (group >> 8);
+            bytes[position + 2] = (byte) group;
+            position += 3;
+            start += 4;
+        }
+        final int count = strLength - start;
+        if (count > 0) {
+            // Last group of 2 or 3 characters.
+            final int c0 = str.charAt(start);
+            final int c1 = str.charAt(start + 1);
+            final int c2 = count == 3 ? str.charAt(start + 2) : 'A';
+            if ((c0 | c1 | c2) > 0xff) {
+                throw new ZappyParseException("Invalid base64 character!", ZappyMetrics.DecodeFailure.INVALID_BASE64);
+            }
+            final int b0 = base64Values[c0];
+            final int b1 = base64Values[c1];
+            final int b2 = base64Values[c2];
+            if ((b0 | b1 | b2) < 0) {
+                throw new ZappyParseException("Invalid base64 character!", ZappyMetrics.DecodeFailure.INVALID_BASE64);
+            }
+            final int group = (b0 << 18) | (b1 << 12) | (b2 << 6);
+            bytes[position++] = (byte) (group >> 16);
+            if (count == 3) {
+                bytes[position++] = (byte) (group >> 8);
             }
+        }
+        base64Buffer.position(position);
+        return base64Buffer;
+    }
+
+    /**
+     * Converts base64 ASCII bytes into decoded bytes.
+     *
+     * <p>When the Vector API is enabled ({@code --add-modules jdk.incubator.vector}), whole
+     * vectors of characters are decoded per iteration. Otherwise, or for the remainder, it
+     * falls back to table-driven scalar decoding.
+     *
+     * <p>Decoded bytes are written from the start of the buffer. On return, the buffer
+     * position is the number of decoded bytes.
+     *
+     * @param ascii Base64 characters as ASCII bytes.
+     * @param offset Index of the first character.
+     * @param length Number of characters.
+     * @param buffer Buffer to decode into. Its contents are discarded.
+     * @return The ByteBuffer object holding the decoded bytes. It may be the same as the given one.
+     * @throws ZappyParseException if it's an invalid base64 string.
+     */
+    protected ByteBuffer base64AsciiToBytes(final byte[] ascii, final int offset, final int length,
+            final ByteBuffer buffer) throws ZappyParseException {
+        if ((length & 3) == 1) {
+            throw new ZappyParseException("Illegal number of bytes!", ZappyMetrics.DecodeFailure.INVALID_LENGTH);
+        }
+        buffer.clear();
+        final int capacity = ((length + 3) >> 2) * 3;
+        int start = offset;
+        int position = 0;
+        final ByteBuffer base64Buffer;
+        if (ZappyVectorSupport.isEnabled() && (length >= ZappyBase64VectorDecoder.MIN_LENGTH)) {
+            base64Buffer = GByteBuffer.ensureCapacity(buffer, capacity + ZappyBase64VectorDecoder.SLACK);
+            final int count = ZappyBase64VectorDecoder.decode(ascii, offset, length, base64Buffer.array(), 0);
             start += count;
+            position = (count >> 2) * 3;
+        } else {
+            base64Buffer = GByteBuffer.ensureCapacity(buffer, capacity);
+        }
+        final byte[] bytes = base64Buffer.array();
+        final int end = offset + length;
+        final int groupsEnd = end - (length & 3);
+        while (start < groupsEnd) {
+            // Non-ASCII bytes map to -1 in the table.
+            final int b0 = base64Values[ascii[start] & 0xff];
+            final int b1 = base64Values[ascii[start + 1] & 0xff];
+            final int b2 = base64Values[ascii[start + 2] & 0xff];
+            final int b3 = base64Values[ascii[start + 3] & 0xff];
+            if ((b0 | b1 | b2 | b3) < 0) {
+                throw new ZappyParseException("Invalid base64 character!", ZappyMetrics.DecodeFailure.INVALID_BASE64);
+            }
+            final int group = (b0 << 18) | (b1 << 12) | (b2 << 6) | b3;
+            bytes[position] = (byte) (group >> 16);
+            bytes[position + 1] = (byte) (group >> 8);
+            bytes[position + 2] = (byte) group;
+            position += 3;
+            start += 4;
+        }
+        final int count = end - start;
+        if (count > 0) {
+            // Last group of 2 or 3 characters.
+            final int b0 = base64Values[ascii[start] & 0xff];
+            final int b1 = base64Values[ascii[start + 1] & 0xff];
+            final int b2 = count == 3 ? base64Values[ascii[start + 2] & 0xff] : 0;
+            if ((b0 | b1 | b2) < 0) {
+                throw new ZappyParseException("Invalid base64 character!", ZappyMetrics.DecodeFailure.INVALID_BASE64);
+            }
+            final int group = (b0 << 18) | (b1 << 12) | (b2 << 6);
+            bytes[position++] = (byte) (group >> 16);
+            if (count == 3) {
+                bytes[position++] = (byte) (group >> 8);
+            }
         }
-        return GByteBuffer.toByteArray(base64Buffer);
+        base64Buffer.position(position);
+        return base64Buffer;
     }
 }
@@ -9,10 +9,13 @@ import java.nio.charset.StandardCharsets;
  * Base64 string encoder.
  *
  * <p>Alphabet includes '-' and '_'. Does not produce padding characters.
+ *
+ * <p>Instances hold no per-call state and are safe to share between threads.
  */
 public class ZappyBase64StringEncoder {
 
-    private static final String base64Alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+    private static final byte[] base64AlphabetBytes =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
 
     /**
      * Creates a Zappy base64 encoder.
@@ -31,47 +34,73 @@ public class ZappyBase64StringEncoder {
      */
     public String base64StringEncode(final String str) {
         final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
-        return bytesToBase64Alphabet(bytes);
+        return bytesToBase64Alphabet(bytes, 0, bytes.length);
     }
 
     /**
      * Converts raw bytes into a base64 string.
      *
      * @param bytes Raw bytes.
+     * @param offset Index of the first byte to encode.
+     * @param length Number of bytes to encode.
      * @return A base64 string.
      */
-    protected String bytesToBase64Alphabet(final byte[] bytes) {
-        // Base64 encode.
-        // We have 3 bytes. Make 4 6-bit bytes out of them.
-        final int bytesLength = bytes.length;
-        final StringBuilder sb = new StringBuilder();
-        int start = 0;
-        while (start < bytesLength) {
-            final int count = Math.min(3, bytesLength - start);
-            final int b0 = GUtils.byteToInt(bytes[start]);
-            final int e0 = b0 >> 2;
-            sb.append(base64Alphabet.charAt(e0));
-            if (count == 3) {
-                final int b1 = GUtils.byteToInt(bytes[start + 1]);
-                final int b2 = GUtils.byteToInt(bytes[start + 2]);
-                final int e1 = ((b0 & 0x03) << 4) | (b1 >> 4);
-                sb.append(base64Alphabet.charAt(e1));
-                final int e2 = ((b1 & 0x0f) << 2) | (b2 >> 6);
-                sb.append(base64Alphabet.charAt(e2));
-                final int e3 = b2 & 0x3f;
-                sb.append(base64Alphabet.charAt(e3));
-            } else if (count == 2) {
-                final int b1 = GUtils.byteToInt(bytes[start + 1]);
-                final int e1 = ((b0 & 0x03) << 4) | (b1 >> 4);
-                sb.append(base64Alphabet.charAt(e1));
-                final int e2 = (b1 & 0x0f) << 2;
-                sb.append(base64Alphabet.charAt(e2));
-            } else {
-                final int e1 = (b0 & 0x03) << 4;
-                sb.append(base64Alphabet.charAt(e1));
-            }
-            start += count;
+    protected String bytesToBase64Alphabet(final byte[] bytes, final int offset, final int length) {
+        final byte[] text = new byte[base64Length(length)];
+        bytesToBase64Ascii(bytes, offset, length, text, 0);
+        // Base64 is ASCII, so the string is built as compact Latin-1 straight from the bytes.
+        return new String(text, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the number of base64 characters the given number of bytes encodes into.
+     *
+     * @param byteCount Number of raw bytes.
+     * @return Number of base64 characters, without padding.
+     */
+    public static int base64Length(final int byteCount) {
+        final int remainder = byteCount % 3;
+        return Math.addExact(Math.multiplyExact(byteCount / 3, 4), remainder == 0 ? 0 : remainder + 1);
+    }
+
+    /**
+     * Converts raw bytes into base64 ASCII bytes.
+     *
+     * @param bytes Raw bytes.
+     * @param offset Index of the first byte to encode.
+     * @param length Number of bytes to encode.
+     * @param dst Destination array. It must have room for {@link #base64Length} bytes.
+     * @param dstOffset Index in the destination array where to start writing.
+     * @return Number of base64 characters written.
+     */
+    protected int bytesToBase64Ascii(final byte[] bytes, final int offset, final int length,
+            final byte[] dst, final int dstOffset) {
+        final int end = offset + length;
+        final int groupsEnd = offset + (length - (length % 3));
+        int position = dstOffset;
+        int start = offset;
+        while (start < groupsEnd) {
+            final int group = ((bytes[start] & 0xff) << 16) | ((bytes[start + 1] & 0xff) << 8) | (bytes[start + 2] & 0xff);
+            dst[position] = base64AlphabetBytes[group >>> 18];
+            dst[position + 1] = base64AlphabetBytes[(group >>> 12) & 0x3f];
+            dst[position + 2] = base64AlphabetBytes[(group >>> 6) & 0x3f];
+            dst[position + 3] = base64AlphabetBytes[group & 0x3f];
+            position += 4;
+            start += 3;
+        }
+        final int count = end - start;
+        if (count == 2) {
+            final int group = ((bytes[start] & 0xff) << 16) | ((bytes[start + 1] & 0xff) << 8);
+            dst[position] = base64AlphabetBytes[group >>> 18];
+            dst[position + 1] = base64AlphabetBytes[(group >>> 12) & 0x3f];
+            dst[position + 2] = base64AlphabetBytes[(group >>> 6) & 0x3f];
+            position += 3;
+        } else if (count == 1) {
+            final int group = (bytes[start] & 0xff) << 16;
+            dst[position] = base64AlphabetBytes[group >>> 18];
+            dst[position + 1] = base64AlphabetBytes[(group >>> 12) & 0x3f];
+            position += 2;
         }
-        return sb.toString();
+        return position - dstOffset;
     }
 }
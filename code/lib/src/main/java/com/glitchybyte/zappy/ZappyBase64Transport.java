@@ -0,0 +1,49 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * URL-safe base64 transport.
+ *
+ * <p>Delegates to the base64 codec Zappy has always used. Bytes are decoded with the Vector
+ * API when it's enabled.
+ */
+final class ZappyBase64Transport implements ZappyTransport {
+
+    private final ZappyBase64StringEncoder encoder = new ZappyBase64StringEncoder();
+    private final ZappyBase64StringDecoder decoder = new ZappyBase64StringDecoder();
+
+    @Override
+    public int groupSize() {
+        return 3;
+    }
+
+    @Override
+    public int encodedLength(final int byteCount) {
+        return ZappyBase64StringEncoder.base64Length(byteCount);
+    }
+
+    @Override
+    public int encode(final byte[] bytes, final int offset, final int length, final byte[] dst, final int dstOffset) {
+        return encoder.bytesToBase64Ascii(bytes, offset, length, dst, dstOffset);
+    }
+
+    @Override
+    public ByteBuffer decode(final CharSequence str, final ByteBuffer buffer) throws ZappyParseException {
+        return decoder.base64AlphabetToBytes(str, buffer);
+    }
+
+    @Override
+    public ByteBuffer decode(final byte[] data, final int offset, final int length, final ByteBuffer buffer)
+            throws ZappyParseException {
+        return decoder.base64AsciiToBytes(data, offset, length, buffer);
+    }
+
+    @Override
+    public String toString() {
+        return "BASE64";
+    }
+}
@@ -0,0 +1,106 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Base64 decoding with the Vector API.
+ *
+ * <p>Only used when {@link ZappyVectorSupport#isEnabled()}.
+ */
+final class ZappyBase64VectorDecoder {
+
+    /**
+     * Minimum number of characters worth taking the vector path for.
+     */
+    static final int MIN_LENGTH = 0x40;
+
+    /**
+     * Extra room needed past the decoded bytes, as whole vectors are stored.
+     * Covers the largest (512-bit) vector shape.
+     */
+    static final int SLACK = 0x40;
+
+    /**
+     * Decodes whole vectors of base64 ASCII characters.
+     *
+     * <p>Decoding stops at the first vector holding an invalid character, leaving it and
+     * the remainder to the scalar path.
+     *
+     * @param ascii Base64 characters as ASCII bytes.
+     * @param offset Index of the first character.
+     * @param length Number of characters.
+     * @param dst Destination array. It must have {@link #SLACK} bytes of room past the decoded bytes.
+     * @param dstOffset Index in the destination array where to start writing.
+     * @return Number of characters decoded. Always a multiple of 4.
+     */
+    static int decode(final byte[] ascii, final int offset, final int length, final byte[] dst, final int dstOffset) {
+        return Kernel.decode(ascii, offset, length, dst, dstOffset);
+    }
+
+    private ZappyBase64VectorDecoder() {
+        // Hiding constructor.
+    }
+
+    // Holds the vector constants, so they are only initialized when the Vector API is enabled.
+    private static final class Kernel {
+
+        private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+        private static final int LANES = SPECIES.length();
+        private static final VectorShuffle<Byte> PACK = createPackShuffle();
+
+        private static VectorShuffle<Byte> createPackShuffle() {
+            // Each int lane holds 3 decoded bytes in its low 24 bits (little-endian).
+            // Gather them big-end first into the front of the vector.
+            final int[] indexes = new int[LANES];
+            final int packed = (LANES >> 2) * 3;
+            for (int i = 0; i < packed; ++i) {
+                indexes[i] = ((i / 3) << 2) + (2 - (i % 3));
+            }
+            return VectorShuffle.fromArray(SPECIES, indexes, 0);
+        }
+
+        static int decode(final byte[] ascii, final int offset, final int length, final byte[] dst, final int dstOffset) {
+            final int packed = (LANES >> 2) * 3;
+            final int end = offset + length;
+            int start = offset;
+            int position = dstOffset;
+            while ((start + LANES) <= end) {
+                final ByteVector chars = ByteVector.fromArray(SPECIES, ascii, start);
+                final VectorMask<Byte> upper = chars.compare(VectorOperators.GE, (byte) 'A')
+                        .and(chars.compare(VectorOperators.LE, (byte) 'Z'));
+                final VectorMask<Byte> lower = chars.compare(VectorOperators.GE, (byte) 'a')
+                        .and(chars.compare(VectorOperators.LE, (byte) 'z'));
+                final VectorMask<Byte> digit = chars.compare(VectorOperators.GE, (byte) '0')
+                        .and(chars.compare(VectorOperators.LE, (byte) '9'));
+                final VectorMask<Byte> dash = chars.compare(VectorOperators.EQ, (byte) '-');
+                final VectorMask<Byte> underscore = chars.compare(VectorOperators.EQ, (byte) '_');
+                if (!upper.or(lower).or(digit).or(dash).or(underscore).allTrue()) {
+                    break;
+                }
+                final ByteVector offsets = ByteVector.zero(SPECIES)
+                        .blend((byte) -65, upper)
+                        .blend((byte) -71, lower)
+                        .blend((byte) 4, digit)
+                        .blend((byte) 17, dash)
+                        .blend((byte) -32, underscore);
+                final IntVector values = chars.add(offsets).reinterpretAsInts();
+                final IntVector groups = values.and(0x3f).lanewise(VectorOperators.LSHL, 18)
+                        .or(values.lanewise(VectorOperators.LSHR, 8).and(0x3f).lanewise(VectorOperators.LSHL, 12))
+                        .or(values.lanewise(VectorOperators.LSHR, 16).and(0x3f).lanewise(VectorOperators.LSHL, 6))
+                        .or(values.lanewise(VectorOperators.LSHR, 24));
+                groups.reinterpretAsBytes().rearrange(PACK).intoArray(dst, position);
+                start += LANES;
+                position += packed;
+            }
+            return start - offset;
+        }
+    }
+}
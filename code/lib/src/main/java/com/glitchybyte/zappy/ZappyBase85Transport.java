@@ -0,0 +1,169 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Base85 transport with an alphabet safe inside JSON strings.
+ *
+ * <p>Every 4 bytes are a big-endian number written as 5 base85 digits. The alphabet is the
+ * one from ZeroMQ's Z85, which has no quotes, backslashes, or whitespace. There is no padding.
+ * A last group of 1 to 3 bytes is written as its first 2 to 4 digits, as if padded with zeros.
+ * It's read back by padding the digits with the highest one.
+ */
+final class ZappyBase85Transport implements ZappyTransport {
+
+    private static final byte[] base85AlphabetBytes =
+            "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ.-:+=^!/*?&<>()[]{}@%$#"
+                    .getBytes(StandardCharsets.US_ASCII);
+    // Reverse lookup of the base85 alphabet for Latin-1. Invalid characters are -1.
+    private static final byte[] base85Values = createBase85Values();
+    private static final int HIGHEST_DIGIT = 84;
+
+    private static byte[] createBase85Values() {
+        final byte[] values = new byte[0x100];
+        Arrays.fill(values, (byte) -1);
+        for (int i = 0; i < base85AlphabetBytes.length; ++i) {
+            values[base85AlphabetBytes[i]] = (byte) i;
+        }
+        return values;
+    }
+
+    @Override
+    public int groupSize() {
+        return 4;
+    }
+
+    @Override
+    public int encodedLength(final int byteCount) {
+        final int remainder = byteCount & 3;
+        return Math.addExact(Math.multiplyExact(byteCount >> 2, 5), remainder == 0 ? 0 : remainder + 1);
+    }
+
+    @Override
+    public int encode(final byte[] bytes, final int offset, final int length, final byte[] dst, final int dstOffset) {
+        final int end = offset + length;
+        final int groupsEnd = end - (length & 3);
+        int position = dstOffset;
+        int start = offset;
+        while (start < groupsEnd) {
+            final int group = ((bytes[start] & 0xff) << 24) | ((bytes[start + 1] & 0xff) << 16) |
+                    ((bytes[start + 2] & 0xff) << 8) | (bytes[start + 3] & 0xff);
+            putDigits(group, dst, position, 5);
+            position += 5;
+            start += 4;
+        }
+        final int count = end - start;
+        if (count > 0) {
+            int group = 0;
+            for (int i = 0; i < count; ++i) {
+                group |= (bytes[start + i] & 0xff) << (24 - (i << 3));
+            }
+            putDigits(group, dst, position, count + 1);
+            position += count + 1;
+        }
+        return position - dstOffset;
+    }
+
+    private static void putDigits(final int group, final byte[] dst, final int position, final int digitCount) {
+        long value = group & 0xffffffffL;
+        // Digits are produced from the last one. Only the first ones are kept.
+        for (int i = 4; i >= 0; --i) {
+            if (i < digitCount) {
+                dst[position + i] = base85AlphabetBytes[(int) (value % 85)];
+            }
+            value /= 85;
+        }
+    }
+
+    @Override
+    public ByteBuffer decode(final CharSequence str, final ByteBuffer buffer) throws ZappyParseException {
+        final int length = str.length();
+        final ByteBuffer base85Buffer = prepareBuffer(length, buffer);
+        final byte[] bytes = base85Buffer.array();
+        int position = 0;
+        long value = 0;
+        int digitCount = 0;
+        for (int i = 0; i < length; ++i) {
+            final char c = str.charAt(i);
+            final int digit = c > 0xff ? -1 : base85Values[c];
+            if (digit < 0) {
+                throw new ZappyParseException("Invalid base85 character!", ZappyMetrics.DecodeFailure.INVALID_BASE64);
+            }
+            value = (value * 85) + digit;
+            if (++digitCount == 5) {
+                position = putGroup(value, bytes, position, 4);
+                value = 0;
+                digitCount = 0;
+            }
+        }
+        position = putLastGroup(value, digitCount, bytes, position);
+        base85Buffer.position(position);
+        return base85Buffer;
+    }
+
+    @Override
+    public ByteBuffer decode(final byte[] data, final int offset, final int length, final ByteBuffer buffer)
+            throws ZappyParseException {
+        final ByteBuffer base85Buffer = prepareBuffer(length, buffer);
+        final byte[] bytes = base85Buffer.array();
+        final int end = offset + length;
+        int position = 0;
+        long value = 0;
+        int digitCount = 0;
+        for (int i = offset; i < end; ++i) {
+            final int digit = base85Values[data[i] & 0xff];
+            if (digit < 0) {
+                throw new ZappyParseException("Invalid base85 character!", ZappyMetrics.DecodeFailure.INVALID_BASE64);
+            }
+            value = (value * 85) + digit;
+            if (++digitCount == 5) {
+                position = putGroup(value, bytes, position, 4);
+                value = 0;
+                digitCount = 0;
+            }
+        }
+        position = putLastGroup(value, digitCount, bytes, position);
+        base85Buffer.position(position);
+        return base85Buffer;
+    }
+
+    private static ByteBuffer prepareBuffer(final int length, final ByteBuffer buffer) throws ZappyParseException {
+        if ((length % 5) == 1) {
+            throw new ZappyParseException("Illegal number of bytes!", ZappyMetrics.DecodeFailure.INVALID_LENGTH);
+        }
+        return GByteBuffer.ensureCapacity(buffer.clear(), ((length + 4) / 5) * 4);
+    }
+
+    private static int putLastGroup(final long value, final int digitCount, final byte[] bytes, final int position)
+            throws ZappyParseException {
+        if (digitCount == 0) {
+            return position;
+        }
+        long padded = value;
+        for (int i = digitCount; i < 5; ++i) {
+            padded = (padded * 85) + HIGHEST_DIGIT;
+        }
+        return putGroup(padded, bytes, position, digitCount - 1);
+    }
+
+    private static int putGroup(final long value, final byte[] bytes, final int position, final int count)
+            throws ZappyParseException {
+        if (value > 0xffffffffL) {
+            throw new ZappyParseException("Invalid base85 group!", ZappyMetrics.DecodeFailure.INVALID_BASE64);
+        }
+        for (int i = 0; i < count; ++i) {
+            bytes[position + i] = (byte) (value >>> (24 - (i << 3)));
+        }
+        return position + count;
+    }
+
+    @Override
+    public String toString() {
+        return "BASE85";
+    }
+}
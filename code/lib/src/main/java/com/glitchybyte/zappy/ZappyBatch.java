@@ -0,0 +1,110 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs a batch of encodes or decodes split across an executor.
+ *
+ * <p>Work is cut into contiguous slices, a few per worker so uneven message sizes balance out.
+ * Each slice takes one scratch object for all its messages and writes its results in place,
+ * so input order is kept without any merging.
+ */
+final class ZappyBatch {
+
+    // Slices per worker.
+    private static final int SLICES_PER_WORKER = 4;
+    // Below this many messages per slice, splitting costs more than it saves.
+    private static final int MIN_SLICE_SIZE = 8;
+
+    /**
+     * Work done on a single message.
+     */
+    @FunctionalInterface
+    interface Task {
+
+        /**
+         * Processes a message.
+         *
+         * @param index Index of the message.
+         * @param scratch Scratch buffers owned by the slice.
+         * @return Result for the message.
+         * @throws ZappyParseException if the message is invalid.
+         */
+        String apply(int index, ZappyScratch scratch) throws ZappyParseException;
+    }
+
+    /**
+     * Processes all messages.
+     *
+     * @param count Number of messages.
+     * @param executor Executor that runs the slices.
+     * @param task Work done on each message.
+     * @return Results in message order.
+     * @throws ZappyParseException if a message is invalid. It's the first invalid one in message order.
+     */
+    static String[] run(final int count, final Executor executor, final Task task) throws ZappyParseException {
+        final String[] results = new String[count];
+        final int workers = executor instanceof ForkJoinPool pool ? pool.getParallelism() :
+                Runtime.getRuntime().availableProcessors();
+        final int sliceCount = Math.min(workers * SLICES_PER_WORKER, count / MIN_SLICE_SIZE);
+        if (sliceCount <= 1) {
+            runSlice(0, count, task, results);
+            return results;
+        }
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[sliceCount];
+        for (int slice = 0; slice < sliceCount; ++slice) {
+            final int start = (int) (((long) count * slice) / sliceCount);
+            final int end = (int) (((long) count * (slice + 1)) / sliceCount);
+            futures[slice] = CompletableFuture.runAsync(() -> {
+                try {
+                    runSlice(start, end, task, results);
+                } catch (final ZappyParseException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        }
+        // Wait for every slice, then report the earliest failure.
+        Throwable failure = null;
+        for (final CompletableFuture<?> future: futures) {
+            try {
+                future.join();
+            } catch (final CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure instanceof ZappyParseException e) {
+            throw e;
+        }
+        if (failure instanceof RuntimeException e) {
+            throw e;
+        }
+        if (failure instanceof Error e) {
+            throw e;
+        }
+        return results;
+    }
+
+    private static void runSlice(final int start, final int end, final Task task, final String[] results)
+            throws ZappyParseException {
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            for (int i = start; i < end; ++i) {
+                results[i] = task.apply(i, scratch);
+            }
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    private ZappyBatch() {
+        // Hiding constructor.
+    }
+}
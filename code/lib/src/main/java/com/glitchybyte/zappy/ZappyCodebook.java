@@ -0,0 +1,399 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Compiled, immutable contraction tables shared by the encoder and decoder.
+ *
+ * <p>All entries live in a single byte pool. Entry offsets and lengths are kept in flat
+ * arrays indexed by {@code (tableId << 8) | lookupIndex}.
+ *
+ * <p>Compiled codebooks can be saved to a binary file with {@link #save} and loaded back with
+ * {@link #load}, which skips compiling altogether.
+ */
+public final class ZappyCodebook {
+
+    /**
+     * Number of contraction tables.
+     */
+    public static final int TABLE_COUNT = 17;
+
+    /**
+     * Maximum number of entries in table 0, the fast lookup table.
+     */
+    public static final int FAST_TABLE_SIZE = 0x10;
+
+    /**
+     * Maximum number of entries in tables 1-16.
+     */
+    public static final int TABLE_SIZE = 0x100;
+
+    // "ZPCB", then a format version.
+    private static final int FILE_MAGIC = 0x4243505a;
+    private static final int FILE_VERSION = 2;
+    private static final int FILE_HEADER_SIZE = 7 * Integer.BYTES;
+    // Index of the trie checksum in the header.
+    private static final int FILE_TRIE_CHECKSUM_INDEX = 6 * Integer.BYTES;
+
+    private final byte[] pool;
+    private final int[] offsets = new int[TABLE_COUNT * TABLE_SIZE];
+    private final int[] lengths = new int[TABLE_COUNT * TABLE_SIZE];
+    private final int[] tableSizes = new int[TABLE_COUNT];
+    private final int maxEntryLength;
+    private final int fingerprint;
+    private final ZappyContractionTrie contractionTrie;
+
+    /**
+     * Compiles a codebook from a contraction source.
+     *
+     * @param source The contraction source used for aiding compression. These will be overlaid
+     *          on the default contractions that favors json. Whole tables are replaced in the
+     *          overlay process, not individual items within a table.
+     *          If source is null, then only the default contractions are used.
+     */
+    public ZappyCodebook(final Map<Integer, String[]> source) {
+        this(layerTables(source));
+    }
+
+    private static byte[][][] layerTables(final Map<Integer, String[]> source) {
+        if (source != null) {
+            for (final int key: source.keySet()) {
+                if ((key < 0) || (key > 16)) {
+                    throw new IllegalArgumentException("Invalid tableId: " + key);
+                }
+            }
+        }
+        // Layer contraction tables.
+        final byte[][][] tables = new byte[TABLE_COUNT][][];
+        for (int tableId = 0; tableId <= 16; ++tableId) {
+            final String[] list;
+            if ((source == null) || (!source.containsKey(tableId))) {
+                list = ZappyDefaultContractions.defaultContractions.get(tableId);
+            } else {
+                final String[] sourceList = source.get(tableId);
+                list = Arrays.stream(sourceList).sorted((a, b) -> b.length() - a.length()).toArray(String[]::new);
+            }
+            if (list == null) {
+                continue;
+            }
+            tables[tableId] = createLookup(tableId, list);
+        }
+        return tables;
+    }
+
+    private ZappyCodebook(final byte[][][] tables) {
+        int poolSize = 0;
+        for (final byte[][] lookup: tables) {
+            if (lookup != null) {
+                for (final byte[] bytes: lookup) {
+                    poolSize += bytes.length;
+                }
+            }
+        }
+        // Flatten into the pool.
+        pool = new byte[poolSize];
+        int offset = 0;
+        int maxLength = 0;
+        for (int tableId = 0; tableId <= 16; ++tableId) {
+            final byte[][] lookup = tables[tableId];
+            if (lookup == null) {
+                continue;
+            }
+            tableSizes[tableId] = lookup.length;
+            for (int lookupIndex = 0; lookupIndex < lookup.length; ++lookupIndex) {
+                final byte[] bytes = lookup[lookupIndex];
+                final int entry = (tableId << 8) | lookupIndex;
+                System.arraycopy(bytes, 0, pool, offset, bytes.length);
+                offsets[entry] = offset;
+                lengths[entry] = bytes.length;
+                offset += bytes.length;
+                maxLength = Math.max(maxLength, bytes.length);
+            }
+        }
+        maxEntryLength = maxLength;
+        fingerprint = createFingerprint();
+        contractionTrie = new ZappyContractionTrie(this);
+    }
+
+    private ZappyCodebook(final ByteBuffer buffer) throws IOException {
+        if ((buffer.remaining() < FILE_HEADER_SIZE) || (buffer.getInt() != FILE_MAGIC)) {
+            throw new IOException("Not a Zappy codebook file!");
+        }
+        final int version = buffer.getInt();
+        if (version != FILE_VERSION) {
+            throw new IOException("Unsupported codebook file version: " + version);
+        }
+        final int expectedFingerprint = buffer.getInt();
+        final int entryCount = buffer.getInt();
+        final int poolSize = buffer.getInt();
+        final int nodeCount = buffer.getInt();
+        final int expectedTrieChecksum = buffer.getInt();
+        if ((entryCount < 0) || (entryCount > (FAST_TABLE_SIZE + (16 * TABLE_SIZE))) ||
+                (poolSize < 0) || (poolSize > buffer.remaining())) {
+            throw new IOException("Invalid codebook file header!");
+        }
+        // Offsets follow from the lengths, as entries are pooled in order.
+        buffer.asIntBuffer().get(tableSizes);
+        buffer.position(buffer.position() + (TABLE_COUNT * Integer.BYTES));
+        int sizeSum = 0;
+        for (int tableId = 0; tableId <= 16; ++tableId) {
+            final int size = tableSizes[tableId];
+            if ((size < 0) || (size > (tableId == 0 ? FAST_TABLE_SIZE : TABLE_SIZE))) {
+                throw new IOException("Invalid table size: " + size);
+            }
+            sizeSum += size;
+        }
+        if (sizeSum != entryCount) {
+            throw new IOException("Invalid codebook file header!");
+        }
+        int offset = 0;
+        int maxLength = 0;
+        for (int tableId = 0; tableId <= 16; ++tableId) {
+            for (int lookupIndex = 0; lookupIndex < tableSizes[tableId]; ++lookupIndex) {
+                final int entry = (tableId << 8) | lookupIndex;
+                final int length = buffer.getInt();
+                if ((length <= 0) || (length > (poolSize - offset))) {
+                    throw new IOException("Invalid entry length: " + length);
+                }
+                offsets[entry] = offset;
+                lengths[entry] = length;
+                offset += length;
+                maxLength = Math.max(maxLength, length);
+            }
+        }
+        if (offset != poolSize) {
+            throw new IOException("Invalid codebook file header!");
+        }
+        pool = new byte[poolSize];
+        buffer.get(pool);
+        maxEntryLength = maxLength;
+        fingerprint = createFingerprint();
+        if (fingerprint != expectedFingerprint) {
+            throw new IOException("Codebook file checksum mismatch!");
+        }
+        // The trie is the rest of the file. Its arrays are used as they are, so they're
+        // verified too, not only checked for links that stay within them.
+        if (trieChecksum(buffer.slice()) != expectedTrieChecksum) {
+            throw new IOException("Codebook file checksum mismatch!");
+        }
+        contractionTrie = ZappyContractionTrie.read(buffer, nodeCount, this);
+    }
+
+    /**
+     * Saves the compiled codebook to a binary file, for {@link #load}.
+     *
+     * <p>The file holds the pooled entries and the compiled trie, little-endian, so loading
+     * is mostly bulk copies.
+     *
+     * @param path File to write. It's replaced if it exists.
+     * @throws IOException if the file fails to write.
+     */
+    public void save(final Path path) throws IOException {
+        int entryCount = 0;
+        for (final int size: tableSizes) {
+            entryCount += size;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(FILE_HEADER_SIZE + (Integer.BYTES * (TABLE_COUNT + entryCount)) +
+                pool.length + contractionTrie.byteSize()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(FILE_MAGIC);
+        buffer.putInt(FILE_VERSION);
+        buffer.putInt(fingerprint);
+        buffer.putInt(entryCount);
+        buffer.putInt(pool.length);
+        buffer.putInt(contractionTrie.nodeCount());
+        buffer.putInt(0); // Trie checksum, once the trie is written.
+        for (final int size: tableSizes) {
+            buffer.putInt(size);
+        }
+        for (int tableId = 0; tableId <= 16; ++tableId) {
+            for (int lookupIndex = 0; lookupIndex < tableSizes[tableId]; ++lookupIndex) {
+                buffer.putInt(lengths[(tableId << 8) | lookupIndex]);
+            }
+        }
+        buffer.put(pool);
+        final int trieStart = buffer.position();
+        contractionTrie.writeTo(buffer);
+        buffer.putInt(FILE_TRIE_CHECKSUM_INDEX, trieChecksum(buffer.slice(trieStart, buffer.position() - trieStart)));
+        buffer.flip();
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Loads a codebook saved with {@link #save}.
+     *
+     * <p>The file is memory-mapped and its arrays copied in bulk. Nothing is sorted, encoded,
+     * or compiled. Contents, the compiled trie included, are verified against the checksums saved
+     * with them.
+     *
+     * @param path File to read.
+     * @return The codebook.
+     * @throws IOException if the file fails to read, or is not a valid codebook file.
+     */
+    public static ZappyCodebook load(final Path path) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            return new ZappyCodebook(buffer);
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("Truncated codebook file!", e);
+        }
+    }
+
+    private static byte[][] createLookup(final int tableId, final String[] list) {
+        final int maxSize = tableId == 0 ? FAST_TABLE_SIZE : TABLE_SIZE;
+        if (list.length > maxSize) {
+            throw new IllegalArgumentException(
+                    "Too many contractions in table " + tableId + ": " + list.length + " (max " + maxSize + ")");
+        }
+        // Convert to bytes for contraction tables.
+        final byte[][] lookup = new byte[list.length][];
+        for (int i = 0; i < list.length; ++i) {
+            final String entry = list[i];
+            final byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+            if (tableId == 0) {
+                if (bytes.length <= 1) {
+                    throw new IllegalArgumentException("Contraction is smaller than encoding: [1-byte] " + entry);
+                }
+            } else if (bytes.length <= 2) {
+                throw new IllegalArgumentException("Contraction is smaller than encoding: [2-byte] " + entry);
+            }
+            lookup[i] = bytes;
+        }
+        return lookup;
+    }
+
+    private int createFingerprint() {
+        final CRC32C crc = new CRC32C();
+        for (int tableId = 0; tableId <= 16; ++tableId) {
+            updateInt(crc, tableSizes[tableId]);
+            for (int lookupIndex = 0; lookupIndex < tableSizes[tableId]; ++lookupIndex) {
+                final int entry = (tableId << 8) | lookupIndex;
+                updateInt(crc, lengths[entry]);
+                crc.update(pool, offsets[entry], lengths[entry]);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private static int trieChecksum(final ByteBuffer trieBytes) {
+        final CRC32C crc = new CRC32C();
+        crc.update(trieBytes);
+        return (int) crc.getValue();
+    }
+
+    private static void updateInt(final CRC32C crc, final int value) {
+        crc.update(value >>> 24);
+        crc.update(value >>> 16);
+        crc.update(value >>> 8);
+        crc.update(value);
+    }
+
+    /**
+     * Returns a checksum of all tables and their entries, in order.
+     *
+     * <p>Codebooks with the same fingerprint encode and decode the same, with near certainty.
+     *
+     * @return Fingerprint.
+     */
+    public int fingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Returns the number of entries in a table.
+     *
+     * @param tableId Table id.
+     * @return Number of entries, 0 if the table is not present.
+     */
+    public int tableSize(final int tableId) {
+        return tableSizes[tableId];
+    }
+
+    /**
+     * Returns the length in bytes of an entry.
+     *
+     * @param tableId Table id.
+     * @param lookupIndex Index within the table.
+     * @return Length in bytes of the entry.
+     */
+    public int entryLength(final int tableId, final int lookupIndex) {
+        return lengths[(tableId << 8) | lookupIndex];
+    }
+
+    /**
+     * Returns the length in bytes of the longest entry in any table.
+     *
+     * @return Length in bytes of the longest entry, 0 if there are none.
+     */
+    public int maxEntryLength() {
+        return maxEntryLength;
+    }
+
+    /**
+     * Writes the bytes of an entry into the buffer.
+     *
+     * <p>The buffer must have enough room for the entry.
+     *
+     * @param tableId Table id.
+     * @param lookupIndex Index within the table.
+     * @param buffer Destination buffer.
+     */
+    public void putEntry(final int tableId, final int lookupIndex, final ByteBuffer buffer) {
+        final int entry = (tableId << 8) | lookupIndex;
+        buffer.put(pool, offsets[entry], lengths[entry]);
+    }
+
+    /**
+     * Returns a codebook with the same tables as this one, except for one.
+     *
+     * <p>Entries are taken as they are. They must be longer than their token, and within the
+     * size of the table.
+     *
+     * @param tableId Id of the table to replace.
+     * @param lookup Entries of the table, or an empty array to drop it.
+     * @return The codebook.
+     */
+    ZappyCodebook withTable(final int tableId, final byte[][] lookup) {
+        final byte[][][] tables = new byte[TABLE_COUNT][][];
+        for (int id = 0; id <= 16; ++id) {
+            final byte[][] entries = new byte[tableSizes[id]][];
+            for (int lookupIndex = 0; lookupIndex < entries.length; ++lookupIndex) {
+                final int entry = (id << 8) | lookupIndex;
+                entries[lookupIndex] = Arrays.copyOfRange(pool, offsets[entry], offsets[entry] + lengths[entry]);
+            }
+            tables[id] = entries;
+        }
+        tables[tableId] = lookup;
+        return new ZappyCodebook(tables);
+    }
+
+    byte[] pool() {
+        return pool;
+    }
+
+    int entryOffset(final int tableId, final int lookupIndex) {
+        return offsets[(tableId << 8) | lookupIndex];
+    }
+
+    ZappyContractionTrie contractionTrie() {
+        return contractionTrie;
+    }
+}
@@ -0,0 +1,99 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Compiled codebooks by id, so messages encoded with different contraction tables can be
+ * decoded side by side.
+ *
+ * <p>A Zappy object from {@link Zappy#fromRegistry} starts every message with a header token
+ * carrying the id of the codebook it was encoded with. Decoding reads the id and looks up the
+ * codebook in an array, so nothing is rebuilt per message. This allows rolling out new tables:
+ * register both the old and new codebooks everywhere first, then switch encoders to the new id.
+ *
+ * <p>The header token is a repeat of zero bytes, which decoders without a registry skip.
+ * Registries are immutable and thread-safe.
+ */
+public final class ZappyCodebookRegistry {
+
+    /**
+     * Largest codebook id.
+     */
+    public static final int MAX_ID = 0xff;
+
+    // Header token and the id byte after it.
+    static final int HEADER_TOKEN = 0xa0;
+    static final int HEADER_LENGTH = 2;
+
+    private final Map<Integer, ZappyCodebook> codebooks;
+    private final ZappyDecoder[] decoders = new ZappyDecoder[MAX_ID + 1];
+    private final int maxEntryLength;
+
+    /**
+     * Creates a registry.
+     *
+     * @param codebooks Compiled codebooks by id. Ids are in [0..{@link #MAX_ID}].
+     */
+    public ZappyCodebookRegistry(final Map<Integer, ZappyCodebook> codebooks) {
+        if (codebooks.isEmpty()) {
+            throw new IllegalArgumentException("No codebooks!");
+        }
+        int maxLength = 0;
+        for (final Map.Entry<Integer, ZappyCodebook> entry: codebooks.entrySet()) {
+            final int id = entry.getKey();
+            if ((id < 0) || (id > MAX_ID)) {
+                throw new IllegalArgumentException("Invalid codebook id: " + id);
+            }
+            final ZappyCodebook codebook = Objects.requireNonNull(entry.getValue());
+            decoders[id] = new ZappyDecoder(codebook);
+            maxLength = Math.max(maxLength, codebook.maxEntryLength());
+        }
+        this.codebooks = Collections.unmodifiableMap(new TreeMap<>(codebooks));
+        maxEntryLength = maxLength;
+    }
+
+    /**
+     * Returns the registered ids.
+     *
+     * @return Ids in ascending order.
+     */
+    public Set<Integer> ids() {
+        return codebooks.keySet();
+    }
+
+    /**
+     * Returns a codebook by id.
+     *
+     * @param id Codebook id.
+     * @return The codebook, or null if the id is not registered.
+     */
+    public ZappyCodebook codebook(final int id) {
+        return codebooks.get(id);
+    }
+
+    /**
+     * Returns the decoder for a codebook id.
+     *
+     * @param id Codebook id, in [0..{@link #MAX_ID}].
+     * @return The decoder, or null if the id is not registered.
+     */
+    ZappyDecoder decoder(final int id) {
+        return decoders[id];
+    }
+
+    /**
+     * Returns the length in bytes of the longest entry in any codebook.
+     *
+     * @return Length in bytes of the longest entry.
+     */
+    int maxEntryLength() {
+        return maxEntryLength;
+    }
+}
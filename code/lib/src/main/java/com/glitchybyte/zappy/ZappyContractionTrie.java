@@ -0,0 +1,272 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Byte trie compiled from all contraction tables.
+ *
+ * <p>Finds, in a single walk from a given position, the same contraction the table-by-table
+ * search would: highest tableId first, and within a table the first (longest) entry.
+ *
+ * <p>Nodes are stored in flat arrays. The root has a direct 256-entry transition table,
+ * deeper nodes keep their children as a sibling list.
+ */
+public final class ZappyContractionTrie {
+
+    private static final int NO_MATCH = -1;
+
+    private final int[] rootChildren;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private byte[] label;
+    private int[] rank;
+    private int[] fastIndex;
+    private int nodeCount;
+
+    /**
+     * Compiles the contraction tables of a codebook into a trie.
+     *
+     * @param codebook The codebook whose contractions are indexed.
+     */
+    public ZappyContractionTrie(final ZappyCodebook codebook) {
+        rootChildren = new int[0x100];
+        final int capacity = 1 + codebook.pool().length;
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+        label = new byte[capacity];
+        rank = new int[capacity];
+        Arrays.fill(rank, NO_MATCH);
+        fastIndex = new int[capacity];
+        Arrays.fill(fastIndex, NO_MATCH);
+        nodeCount = 1; // Node 0 is the root.
+        for (int tableId = 0; tableId <= 16; ++tableId) {
+            final int tableSize = codebook.tableSize(tableId);
+            for (int lookupIndex = 0; lookupIndex < tableSize; ++lookupIndex) {
+                insert(codebook, tableId, lookupIndex);
+            }
+        }
+        // Trim to the nodes actually used, as entries share prefixes.
+        firstChild = Arrays.copyOf(firstChild, nodeCount);
+        nextSibling = Arrays.copyOf(nextSibling, nodeCount);
+        label = Arrays.copyOf(label, nodeCount);
+        rank = Arrays.copyOf(rank, nodeCount);
+        fastIndex = Arrays.copyOf(fastIndex, nodeCount);
+    }
+
+    private ZappyContractionTrie(final int[] rootChildren, final int nodeCount) {
+        this.rootChildren = rootChildren;
+        this.nodeCount = nodeCount;
+    }
+
+    /**
+     * Returns the number of nodes, including the root.
+     *
+     * @return Number of nodes.
+     */
+    int nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeTo} writes.
+     *
+     * @return Number of bytes.
+     */
+    int byteSize() {
+        return (Integer.BYTES * (0x100 + (4 * nodeCount))) + nodeCount;
+    }
+
+    /**
+     * Writes the trie arrays to a buffer, for {@link #read}.
+     *
+     * @param buffer Destination buffer, with room for {@link #byteSize()} bytes.
+     */
+    void writeTo(final ByteBuffer buffer) {
+        putInts(buffer, rootChildren);
+        putInts(buffer, firstChild);
+        putInts(buffer, nextSibling);
+        putInts(buffer, rank);
+        putInts(buffer, fastIndex);
+        buffer.put(label);
+    }
+
+    private static void putInts(final ByteBuffer buffer, final int[] values) {
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + (values.length * Integer.BYTES));
+    }
+
+    /**
+     * Reads a trie written by {@link #writeTo}.
+     *
+     * <p>Links are checked so that no walk can loop or leave the arrays, and matches are
+     * checked against the codebook tables.
+     *
+     * @param buffer Source buffer.
+     * @param nodeCount Number of nodes.
+     * @param codebook The codebook whose contractions are indexed.
+     * @return The trie.
+     * @throws IOException if the trie is invalid.
+     */
+    static ZappyContractionTrie read(final ByteBuffer buffer, final int nodeCount, final ZappyCodebook codebook)
+            throws IOException {
+        if ((nodeCount < 1) || (nodeCount > (buffer.remaining() / ((4 * Integer.BYTES) + 1)))) {
+            throw new IOException("Invalid trie node count: " + nodeCount);
+        }
+        final ZappyContractionTrie trie = new ZappyContractionTrie(getInts(buffer, 0x100), nodeCount);
+        trie.firstChild = getInts(buffer, nodeCount);
+        trie.nextSibling = getInts(buffer, nodeCount);
+        trie.rank = getInts(buffer, nodeCount);
+        trie.fastIndex = getInts(buffer, nodeCount);
+        trie.label = new byte[nodeCount];
+        buffer.get(trie.label);
+        for (final int child: trie.rootChildren) {
+            if ((child < 0) || (child >= nodeCount)) {
+                throw new IOException("Invalid trie link!");
+            }
+        }
+        for (int node = 0; node < nodeCount; ++node) {
+            // Children are always added after their parent, and siblings after each other.
+            final int child = trie.firstChild[node];
+            final int sibling = trie.nextSibling[node];
+            if ((child < 0) || (child >= nodeCount) || ((child != 0) && (child <= node)) ||
+                    (sibling < 0) || (sibling >= Math.max(1, node))) {
+                throw new IOException("Invalid trie link!");
+            }
+            final int entryRank = trie.rank[node];
+            if ((entryRank != NO_MATCH) && ((entryRank < 0) || ((entryRank >> 8) > 16) ||
+                    ((0xff - (entryRank & 0xff)) >= codebook.tableSize(entryRank >> 8)))) {
+                throw new IOException("Invalid trie match!");
+            }
+            final int lookupIndex = trie.fastIndex[node];
+            if ((lookupIndex != NO_MATCH) && ((lookupIndex < 0) || (lookupIndex >= codebook.tableSize(0)))) {
+                throw new IOException("Invalid trie match!");
+            }
+        }
+        return trie;
+    }
+
+    private static int[] getInts(final ByteBuffer buffer, final int count) {
+        final int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + (count * Integer.BYTES));
+        return values;
+    }
+
+    private void insert(final ZappyCodebook codebook, final int tableId, final int lookupIndex) {
+        final byte[] pool = codebook.pool();
+        final int offset = codebook.entryOffset(tableId, lookupIndex);
+        final int length = codebook.entryLength(tableId, lookupIndex);
+        int node = 0;
+        for (int i = offset; i < (offset + length); ++i) {
+            final byte b = pool[i];
+            int next = child(node, b);
+            if (next == 0) {
+                next = nodeCount++;
+                label[next] = b;
+                if (node == 0) {
+                    rootChildren[b & 0xff] = next;
+                } else {
+                    nextSibling[next] = firstChild[node];
+                    firstChild[node] = next;
+                }
+            }
+            node = next;
+        }
+        // Higher tables win, then lower (longer) indexes within a table.
+        final int entryRank = (tableId << 8) | (0xff - lookupIndex);
+        if (entryRank > rank[node]) {
+            rank[node] = entryRank;
+        }
+        if ((tableId == 0) && (fastIndex[node] == NO_MATCH)) {
+            fastIndex[node] = lookupIndex;
+        }
+    }
+
+    private int child(final int node, final byte b) {
+        if (node == 0) {
+            return rootChildren[b & 0xff];
+        }
+        int walker = firstChild[node];
+        while ((walker != 0) && (label[walker] != b)) {
+            walker = nextSibling[walker];
+        }
+        return walker;
+    }
+
+    /**
+     * Returns whether any contraction starts with the given byte.
+     *
+     * @param b First byte.
+     * @return True if at least one contraction starts with the byte.
+     */
+    public boolean canStart(final byte b) {
+        return rootChildren[b & 0xff] != 0;
+    }
+
+    /**
+     * Finds the best contraction starting at the given index.
+     *
+     * @param source Source bytes.
+     * @param index Index where the contraction must start.
+     * @param end Index one past the last usable byte.
+     * @return The matching entry as {@code (tableId << 8) | lookupIndex}, or -1 if no contraction matches.
+     */
+    public int find(final byte[] source, final int index, final int end) {
+        int node = rootChildren[source[index] & 0xff];
+        int bestRank = NO_MATCH;
+        int walker = index;
+        while (node != 0) {
+            if (rank[node] > bestRank) {
+                bestRank = rank[node];
+            }
+            ++walker;
+            if (walker >= end) {
+                break;
+            }
+            node = child(node, source[walker]);
+        }
+        if (bestRank == NO_MATCH) {
+            return NO_MATCH;
+        }
+        return (bestRank & 0xff00) | (0xff - (bestRank & 0xff));
+    }
+
+    /**
+     * Finds every contraction starting at the given index, one per length.
+     *
+     * <p>For each length, the entry with the shortest token is reported: one in table 0 if there
+     * is any, otherwise the one {@link #find} would pick.
+     *
+     * @param source Source bytes.
+     * @param index Index where the contractions must start.
+     * @param end Index one past the last usable byte.
+     * @param lengths Receives the length of each match, shortest first.
+     * @param entries Receives each match as {@code (tableId << 8) | lookupIndex}.
+     * @return Number of matches. No more than the array lengths are reported.
+     */
+    int findAll(final byte[] source, final int index, final int end, final int[] lengths, final int[] entries) {
+        int node = rootChildren[source[index] & 0xff];
+        int count = 0;
+        int walker = index;
+        while ((node != 0) && (count < lengths.length)) {
+            ++walker;
+            if (fastIndex[node] != NO_MATCH) {
+                lengths[count] = walker - index;
+                entries[count++] = fastIndex[node];
+            } else if (rank[node] != NO_MATCH) {
+                lengths[count] = walker - index;
+                entries[count++] = (rank[node] & 0xff00) | (0xff - (rank[node] & 0xff));
+            }
+            if (walker >= end) {
+                break;
+            }
+            node = child(node, source[walker]);
+        }
+        return count;
+    }
+}
@@ -3,28 +3,190 @@
 
 package com.glitchybyte.zappy;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Locale;
-import java.util.Map;
+import java.util.Objects;
 
 /**
  * Zappy decoder.
  *
- * <p>It uses base64 as the message encoding, but the internal bytes are compressed.
+ * <p>It uses base64 as the message encoding by default, but the internal bytes are compressed.
+ * Other transports are picked with {@link ZappyTransport}.
+ *
+ * <p>Instances hold no per-call state and are safe to share between threads.
  */
 public final class ZappyDecoder extends ZappyBase64StringDecoder {
 
-    private final Map<Integer, Map<Integer, byte[]>> contractions;
-    private ByteBuffer zappyBuffer = GByteBuffer.create();
+    // Two ASCII digits for each value 0..99.
+    private static final byte[] DIGIT_PAIRS = createDigitPairs();
+    private static final byte[] UPPERCASE_HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LOWERCASE_HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    // Longest expansion of non-contraction tokens: a back reference. Blobs and repeats are up
+    // to 31 bytes, and numbers up to "-2147483648".
+    private static final int MAX_PRIMITIVE_TOKEN_LENGTH = ZappyMatchFinder.MAX_LENGTH;
+
+    private final ZappyCodebook codebook;
+    private final int maxTokenLength;
+    private final ZappyMetrics metrics;
+    private final ZappyCodebookRegistry registry;
+    private final ZappyTransport transport;
 
     /**
      * Creates a Zappy decoder.
      *
-     * @param contractions The contractions used for aiding compression.
+     * @param codebook The compiled contractions used for aiding compression.
+     */
+    public ZappyDecoder(final ZappyCodebook codebook) {
+        this(codebook, null);
+    }
+
+    /**
+     * Creates a Zappy decoder that records one-shot decodes.
+     *
+     * @param codebook The compiled contractions used for aiding compression.
+     * @param metrics Metrics to record to, or null to record nothing.
+     */
+    public ZappyDecoder(final ZappyCodebook codebook, final ZappyMetrics metrics) {
+        this(codebook, metrics, null, ZappyTransport.BASE64);
+    }
+
+    /**
+     * Creates a Zappy decoder that may pick the codebook of each message from its codebook id
+     * header, and reads messages with the given transport.
+     *
+     * @param codebook The compiled contractions for messages without a header.
+     * @param metrics Metrics to record to, or null to record nothing.
+     * @param registry Codebooks by id, or null to skip headers.
+     * @param transport Transport of the compressed bytes.
+     */
+    ZappyDecoder(final ZappyCodebook codebook, final ZappyMetrics metrics, final ZappyCodebookRegistry registry,
+            final ZappyTransport transport) {
+        this.codebook = codebook;
+        this.metrics = metrics;
+        this.registry = registry;
+        this.transport = Objects.requireNonNull(transport);
+        final int maxEntryLength = registry == null ? codebook.maxEntryLength()
+                : Math.max(codebook.maxEntryLength(), registry.maxEntryLength());
+        maxTokenLength = Math.max(MAX_PRIMITIVE_TOKEN_LENGTH, maxEntryLength);
+    }
+
+    /**
+     * Returns the compiled contractions for messages without a header.
+     *
+     * @return The codebook.
+     */
+    ZappyCodebook codebook() {
+        return codebook;
+    }
+
+    /**
+     * Returns the metrics this decoder records to.
+     *
+     * @return Metrics, or null if none.
+     */
+    ZappyMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the codebooks this decoder picks from.
+     *
+     * @return Codebooks by id, or null if headers are skipped.
+     */
+    ZappyCodebookRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * Returns the transport of the compressed bytes.
+     *
+     * @return The transport.
      */
-    public ZappyDecoder(final Map<Integer, Map<Integer, byte[]>> contractions) {
-        this.contractions = contractions;
+    ZappyTransport transport() {
+        return transport;
+    }
+
+    /**
+     * Returns the decoder for a message, from its codebook id header.
+     *
+     * <p>Without a registry or a header, it's this decoder. Headers are otherwise no-op tokens,
+     * so the returned decoder resolves them along with the rest.
+     *
+     * @param source Compressed bytes.
+     * @param index Index of the start of the message.
+     * @param end Index one past the last usable byte.
+     * @return Decoder for the message.
+     * @throws ZappyParseException if the codebook id is not registered.
+     */
+    ZappyDecoder decoderFor(final byte[] source, final int index, final int end) throws ZappyParseException {
+        if ((registry == null) || ((end - index) < ZappyCodebookRegistry.HEADER_LENGTH) ||
+                ((source[index] & 0xff) != ZappyCodebookRegistry.HEADER_TOKEN)) {
+            return this;
+        }
+        final int id = source[index + 1] & 0xff;
+        final ZappyDecoder decoder = registry.decoder(id);
+        if (decoder == null) {
+            throw new ZappyParseException("Unknown codebook id: " + id, ZappyMetrics.DecodeFailure.UNKNOWN_CODEBOOK);
+        }
+        return decoder;
+    }
+
+    /**
+     * Returns the codebook a message is decoded with, from its codebook id header.
+     *
+     * <p>Only the transport groups holding the header are decoded.
+     *
+     * @param str A Zappy compressed string.
+     * @return Codebook for the message.
+     * @throws ZappyParseException if the header is invalid or the codebook id is not registered.
+     */
+    ZappyCodebook codebookFor(final CharSequence str) throws ZappyParseException {
+        if (registry == null) {
+            return codebook;
+        }
+        final int length = Math.min(str.length(), transport.encodedLength(headerGroupsLength()));
+        final ByteBuffer header = transport.decode(str.subSequence(0, length), ByteBuffer.allocate(headerGroupsLength()));
+        return decoderFor(header.array(), 0, header.position()).codebook;
+    }
+
+    /**
+     * Returns the codebook a message is decoded with, from its codebook id header.
+     *
+     * <p>Only the transport groups holding the header are decoded.
+     *
+     * @param data Transport bytes.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     * @return Codebook for the message.
+     * @throws ZappyParseException if the header is invalid or the codebook id is not registered.
+     */
+    ZappyCodebook codebookFor(final byte[] data, final int offset, final int length) throws ZappyParseException {
+        if (registry == null) {
+            return codebook;
+        }
+        final int headerLength = Math.min(length, transport.encodedLength(headerGroupsLength()));
+        final ByteBuffer header = transport.decode(data, offset, headerLength, ByteBuffer.allocate(headerGroupsLength()));
+        return decoderFor(header.array(), 0, header.position()).codebook;
+    }
+
+    private int headerGroupsLength() {
+        // Whole transport groups, so they decode on their own.
+        final int groupSize = transport.groupSize();
+        return ((ZappyCodebookRegistry.HEADER_LENGTH + groupSize - 1) / groupSize) * groupSize;
+    }
+
+    private static byte[] createDigitPairs() {
+        final byte[] pairs = new byte[200];
+        for (int i = 0; i < 100; ++i) {
+            pairs[i << 1] = (byte) ('0' + (i / 10));
+            pairs[(i << 1) + 1] = (byte) ('0' + (i % 10));
+        }
+        return pairs;
     }
 
     /**
@@ -35,132 +197,425 @@ public final class ZappyDecoder extends ZappyBase64StringDecoder {
      * @throws ZappyParseException if it's an invalid Zappy string.
      */
     public String decode(final String str) throws ZappyParseException {
-        byte[] bytes = base64AlphabetToBytes(str);
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            return decode(str, scratch);
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    /**
+     * Turns a Zappy compressed string into a string using the caller's scratch buffers.
+     *
+     * @param str A Zappy compressed string.
+     * @param scratch Scratch buffers owned by the caller.
+     * @return Expanded string.
+     * @throws ZappyParseException if it's an invalid Zappy string.
+     */
+    String decode(final String str, final ZappyScratch scratch) throws ZappyParseException {
+        decompress(str, scratch);
+        final ByteBuffer zappyBuffer = scratch.zappyBuffer;
+        return new String(zappyBuffer.array(), 0, zappyBuffer.position(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Turns Zappy compressed transport bytes into a string.
+     *
+     * <p>With a text transport these are the ASCII chars of a Zappy compressed string.
+     *
+     * @param data Transport bytes.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     * @return Expanded string.
+     * @throws ZappyParseException if they are invalid Zappy bytes.
+     */
+    public String decodeFromBytes(final byte[] data, final int offset, final int length) throws ZappyParseException {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            decompress(null, data, offset, length, scratch);
+            final ByteBuffer zappyBuffer = scratch.zappyBuffer;
+            return new String(zappyBuffer.array(), 0, zappyBuffer.position(), StandardCharsets.UTF_8);
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    /**
+     * Decodes Zappy compressed characters and writes the UTF-8 bytes into a buffer.
+     *
+     * <p>Writing starts at the buffer position, which is advanced by the number of bytes written.
+     * There is no charset decoding, and no allocation in steady state.
+     *
+     * @param str Zappy compressed characters.
+     * @param dst Destination buffer. It can be heap or direct.
+     * @return Number of bytes written.
+     * @throws ZappyParseException if it's an invalid Zappy string.
+     * @throws BufferOverflowException if the decoded bytes don't fit. Nothing is written in that case.
+     */
+    public int decodeTo(final CharSequence str, final ByteBuffer dst) throws ZappyParseException {
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            decompress(str, scratch);
+            final ByteBuffer zappyBuffer = scratch.zappyBuffer;
+            final int count = zappyBuffer.position();
+            if (dst.remaining() < count) {
+                throw new BufferOverflowException();
+            }
+            dst.put(zappyBuffer.array(), 0, count);
+            return count;
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    /**
+     * Decodes Zappy compressed characters into UTF-8 bytes.
+     *
+     * <p>There is no charset decoding. The returned array is the only allocation in steady state.
+     *
+     * @param str Zappy compressed characters.
+     * @return UTF-8 bytes.
+     * @throws ZappyParseException if it's an invalid Zappy string.
+     */
+    public byte[] decodeToBytes(final CharSequence str) throws ZappyParseException {
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            decompress(str, scratch);
+            final ByteBuffer zappyBuffer = scratch.zappyBuffer;
+            return Arrays.copyOf(zappyBuffer.array(), zappyBuffer.position());
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    /**
+     * Decodes Zappy compressed characters and appends the text to the output.
+     *
+     * <p>No string is built, and nothing is allocated in steady state. Malformed UTF-8 is
+     * replaced as {@link #decode} does.
+     *
+     * @param str Zappy compressed characters.
+     * @param out Output to append to.
+     * @return Number of characters appended.
+     * @throws ZappyParseException if it's an invalid Zappy string.
+     * @throws IOException if the output fails to append.
+     */
+    public int decodeTo(final CharSequence str, final Appendable out) throws ZappyParseException, IOException {
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            decompress(str, scratch);
+            final CharBuffer chars = scratch.utf8ToChars(scratch.zappyBuffer.flip());
+            final int count = chars.remaining();
+            out.append(chars);
+            return count;
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    /**
+     * Decodes Zappy compressed characters into the scratch expanded buffer.
+     *
+     * @param str Zappy compressed characters.
+     * @param scratch Scratch buffers owned by the caller.
+     * @throws ZappyParseException if it's an invalid Zappy string.
+     */
+    private void decompress(final CharSequence str, final ZappyScratch scratch) throws ZappyParseException {
+        decompress(str, null, 0, str.length(), scratch);
+    }
+
+    /**
+     * Decodes Zappy compressed characters or transport bytes into the scratch expanded buffer,
+     * whose position is then the number of UTF-8 bytes.
+     *
+     * @param str Zappy compressed characters, or null to decode the bytes.
+     * @param data Transport bytes, if there are no characters.
+     * @param offset Index of the first byte.
+     * @param length Number of characters or bytes.
+     * @param scratch Scratch buffers owned by the caller.
+     * @throws ZappyParseException if it's an invalid Zappy string.
+     */
+    private void decompress(final CharSequence str, final byte[] data, final int offset, final int length,
+            final ZappyScratch scratch) throws ZappyParseException {
+        if (metrics == null) {
+            expand(str, data, offset, length, scratch);
+            return;
+        }
+        final long startTime = System.nanoTime();
+        try {
+            expand(str, data, offset, length, scratch);
+        } catch (final ZappyParseException e) {
+            metrics.recordDecodeFailure(e);
+            throw e;
+        }
+        metrics.recordDecode(length, scratch.base64Buffer.position(), scratch.zappyBuffer.position(),
+                System.nanoTime() - startTime);
+    }
+
+    private void expand(final CharSequence str, final byte[] data, final int offset, final int length,
+            final ZappyScratch scratch) throws ZappyParseException {
+        scratch.base64Buffer = str == null ? transport.decode(data, offset, length, scratch.base64Buffer)
+                : transport.decode(str, scratch.base64Buffer);
+        final ZappyDecoder decoder = decoderFor(scratch.base64Buffer.array(), 0, scratch.base64Buffer.position());
         try {
-            bytes = stringToDecompressedBytes(bytes);
+            decoder.bytesToDecompressedBytes(scratch);
         } catch (final RuntimeException e) {
             throw new ZappyParseException(e);
         }
-        return new String(bytes, StandardCharsets.UTF_8);
     }
 
-    private byte[] stringToDecompressedBytes(final byte[] bytes) throws ZappyParseException {
-        final ByteBuffer source = GByteBuffer.createWrapped(bytes);
-        zappyBuffer.clear();
-        while (source.hasRemaining()) {
-            final byte b = source.get();
-            resolveNextToken(b, source);
+    private void bytesToDecompressedBytes(final ZappyScratch scratch) throws ZappyParseException {
+        final ByteBuffer sourceBuffer = scratch.base64Buffer;
+        final byte[] source = sourceBuffer.array();
+        final int end = sourceBuffer.position();
+        ByteBuffer zappyBuffer = scratch.zappyBuffer.clear();
+        int index = 0;
+        while (index < end) {
+            // One headroom check covers whatever the next tokens expand to.
+            if (zappyBuffer.remaining() < maxTokenLength) {
+                zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, Math.max(maxTokenLength, (end - index) * 2));
+            }
+            index = resolveTokens(zappyBuffer, source, index, end, end);
         }
-        return GByteBuffer.toByteArray(zappyBuffer);
+        scratch.zappyBuffer = zappyBuffer;
     }
 
-    private void resolveNextToken(final byte b, final ByteBuffer source) throws ZappyParseException {
+    /**
+     * Resolves tokens until the token limit is reached or the expanded buffer has less room
+     * than the longest token expansion.
+     *
+     * @param zappyBuffer Expanded buffer.
+     * @param source Compressed bytes.
+     * @param index Index of the first token.
+     * @param tokenLimit No token starts at or after this index.
+     * @param end Index one past the last usable byte. Tokens past it are truncated.
+     * @return Index of the first token not yet resolved.
+     * @throws ZappyParseException if a token is invalid or truncated.
+     */
+    int resolveTokens(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int tokenLimit,
+            final int end) throws ZappyParseException {
+        int walker = index;
+        while ((walker < tokenLimit) && (zappyBuffer.remaining() >= maxTokenLength)) {
+            walker += resolveNextToken(zappyBuffer, source, walker, end);
+        }
+        return walker;
+    }
+
+    /**
+     * Returns the longest expansion of a single token.
+     *
+     * @return Maximum token expansion in bytes.
+     */
+    int maxTokenLength() {
+        return maxTokenLength;
+    }
+
+    private int resolveNextToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) throws ZappyParseException {
+        final byte b = source[index];
         if ((b & 0x80) == 0) {
             // ASCII character. Take as-is.
-            resolveAsciiToken(b);
-            return;
+            return resolveAsciiTokens(zappyBuffer, source, index, end);
         }
         if ((b & 0x40) == 0) {
             // Level 1 compressed instruction.
             if ((b & 0x20) == 0) {
                 // Blob. Take as-is as a group.
-                resolveBlobToken(b, source);
-                return;
+                return resolveBlobToken(zappyBuffer, source, index, end);
             }
             // Repeated character.
-            resolveRepeatToken(b, source);
-            return;
+            return resolveRepeatToken(zappyBuffer, source, index, end);
         }
         // Level 2 compressed instruction.
         if ((b & 0x20) == 0) {
             // Unsigned integer.
             if ((b & 0x10) == 0) {
+                if ((b & 0x08) != 0) {
+                    // Back reference. Decimal integers never have 8 bytes or more.
+                    return resolveBackReferenceToken(zappyBuffer, source, index, end);
+                }
                 // Decimal integer.
-                resolveDecimalToken(b, source);
-                return;
+                return resolveDecimalToken(zappyBuffer, source, index, end);
             }
             // Hexadecimal integer.
-            final boolean isUppercase = (b & 0x08) == 0;
-            resolveHexadecimalToken(b, source, isUppercase);
-            return;
+            return resolveHexadecimalToken(zappyBuffer, source, index, end);
         }
         // Contraction lookup.
-        resolveContractionToken(b, source);
+        return resolveContractionToken(zappyBuffer, source, index, end);
+    }
+
+    private static void checkTokenLength(final int index, final int length, final int end) throws ZappyParseException {
+        if ((index + length) > end) {
+            throw new ZappyParseException("Truncated token!", ZappyMetrics.DecodeFailure.TRUNCATED_TOKEN);
+        }
     }
 
-    private void resolveAsciiToken(final byte b) {
-        zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, 1);
-        zappyBuffer.put(b);
+    private static int readValue(final byte[] source, final int index, final int count) {
+        // Little-endian, as the encoder writes it.
+        int value = 0;
+        for (int i = count - 1; i >= 0; --i) {
+            value = (value << 8) | (source[index + i] & 0xff);
+        }
+        return value;
     }
 
-    private void resolveBlobToken(final byte b, final ByteBuffer source) {
-        final int count = b & 0x1f;
-        zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, count);
-        zappyBuffer.put(zappyBuffer.position(), source, source.position(), count);
-        zappyBuffer.position(zappyBuffer.position() + count);
-        source.position(source.position() + count);
+    private static void putBytes(final ByteBuffer zappyBuffer, final byte[] bytes, final int offset, final int length) {
+        // Tokens are short, so go straight to the array instead of through ByteBuffer.put.
+        final int position = zappyBuffer.position();
+        System.arraycopy(bytes, offset, zappyBuffer.array(), position, length);
+        zappyBuffer.position(position + length);
     }
 
-    private void resolveRepeatToken(final byte b, final ByteBuffer source) {
-        final int count = b & 0x1f;
-        zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, count);
-        final byte sourceB = source.get();
-        for (int i = 0; i < count; ++i) {
-            zappyBuffer.put(sourceB);
+    private int resolveAsciiTokens(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) {
+        // Copy the whole run of ASCII characters that fits.
+        final int limit = Math.min(end, index + zappyBuffer.remaining());
+        int walker = index + 1;
+        while ((walker < limit) && (source[walker] >= 0)) {
+            ++walker;
         }
+        putBytes(zappyBuffer, source, index, walker - index);
+        return walker - index;
+    }
+
+    private int resolveBlobToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) throws ZappyParseException {
+        final int count = source[index] & 0x1f;
+        checkTokenLength(index, 1 + count, end);
+        putBytes(zappyBuffer, source, index + 1, count);
+        return 1 + count;
     }
 
-    private void resolveDecimalToken(final byte b, final ByteBuffer source) throws ZappyParseException {
-        final int count = b & 0x0f;
-        final int value = switch (count) {
-            case 1 -> GUtils.byteToInt(source.get());
-            case 2 -> GUtils.shortToInt(source.getShort());
-            case 4 -> source.getInt();
-            default -> throw new ZappyParseException("Invalid byte count: " + count);
-        };
-        final byte[] digits = Integer.toString(value).getBytes(StandardCharsets.UTF_8);
-        zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, digits.length);
-        zappyBuffer.put(digits);
+    private int resolveRepeatToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) throws ZappyParseException {
+        final int count = source[index] & 0x1f;
+        checkTokenLength(index, 2, end);
+        final int position = zappyBuffer.position();
+        Arrays.fill(zappyBuffer.array(), position, position + count, source[index + 1]);
+        zappyBuffer.position(position + count);
+        return 2;
     }
 
-    private void resolveHexadecimalToken(final byte b, final ByteBuffer source, final boolean isUppercase) throws ZappyParseException {
+    private int resolveDecimalToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) throws ZappyParseException {
+        final int count = source[index] & 0x0f;
+        if ((count != 1) && (count != 2) && (count != 4)) {
+            throw new ZappyParseException("Invalid byte count: " + count, ZappyMetrics.DecodeFailure.INVALID_NUMBER);
+        }
+        checkTokenLength(index, 1 + count, end);
+        final int value = readValue(source, index + 1, count);
+        final byte[] bytes = zappyBuffer.array();
+        int position = zappyBuffer.position();
+        // Same text as Integer.toString, which a malformed 4-byte value can make negative.
+        // Digits are produced from the negated value, so Integer.MIN_VALUE needs no special case.
+        if (value < 0) {
+            bytes[position++] = '-';
+        }
+        int n = value < 0 ? value : -value;
+        final int digitsEnd = position + decimalLength(n);
+        int walker = digitsEnd;
+        while (n <= -100) {
+            final int quotient = n / 100;
+            final int pair = ((quotient * 100) - n) << 1;
+            n = quotient;
+            bytes[--walker] = DIGIT_PAIRS[pair + 1];
+            bytes[--walker] = DIGIT_PAIRS[pair];
+        }
+        if (n <= -10) {
+            final int pair = -n << 1;
+            bytes[--walker] = DIGIT_PAIRS[pair + 1];
+            bytes[--walker] = DIGIT_PAIRS[pair];
+        } else {
+            bytes[--walker] = (byte) ('0' - n);
+        }
+        zappyBuffer.position(digitsEnd);
+        return 1 + count;
+    }
+
+    private static int decimalLength(final int negatedValue) {
+        int length = 1;
+        int limit = -10;
+        while ((length < 10) && (negatedValue <= limit)) {
+            ++length;
+            limit *= 10;
+        }
+        return length;
+    }
+
+    private int resolveBackReferenceToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) throws ZappyParseException {
+        checkTokenLength(index, ZappyMatchFinder.TOKEN_LENGTH, end);
+        final int value = readValue(source, index + 1, 2);
+        final int distance = (((source[index] & 0x07) << 10) | (value >>> 6)) + 1;
+        final int length = (value & 0x3f) + ZappyMatchFinder.MIN_LENGTH;
+        final int position = zappyBuffer.position();
+        // Copies are from the expanded output of the message, which starts the buffer.
+        if (distance > position) {
+            throw new ZappyParseException("Invalid back reference distance: " + distance,
+                    ZappyMetrics.DecodeFailure.INVALID_BACK_REFERENCE);
+        }
+        final byte[] bytes = zappyBuffer.array();
+        final int from = position - distance;
+        if (distance >= length) {
+            System.arraycopy(bytes, from, bytes, position, length);
+        } else {
+            // Overlapping copies repeat the last distance bytes, so go byte by byte.
+            for (int i = 0; i < length; ++i) {
+                bytes[position + i] = bytes[from + i];
+            }
+        }
+        zappyBuffer.position(position + length);
+        return ZappyMatchFinder.TOKEN_LENGTH;
+    }
+
+    private int resolveHexadecimalToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) throws ZappyParseException {
+        final byte b = source[index];
         final int count = b & 0x07;
-        final int value = switch (count) {
-            case 2 -> GUtils.shortToInt(source.getShort());
-            case 4 -> source.getInt();
-            default -> throw new ZappyParseException("Invalid byte count: " + count);
-        };
-        String hex = Integer.toHexString(value);
-        if (isUppercase) {
-            hex = hex.toUpperCase(Locale.US);
-        }
-        final byte[] digits = hex.getBytes(StandardCharsets.UTF_8);
-        zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, digits.length);
-        zappyBuffer.put(digits);
-    }
-
-    private void resolveContractionToken(final byte b, final ByteBuffer source) throws ZappyParseException {
-        int tableId;
-        int lookupIndex;
+        if ((count != 2) && (count != 4)) {
+            throw new ZappyParseException("Invalid byte count: " + count, ZappyMetrics.DecodeFailure.INVALID_NUMBER);
+        }
+        checkTokenLength(index, 1 + count, end);
+        final int value = readValue(source, index + 1, count);
+        final boolean isUppercase = (b & 0x08) == 0;
+        final byte[] digits = isUppercase ? UPPERCASE_HEX_DIGITS : LOWERCASE_HEX_DIGITS;
+        final byte[] bytes = zappyBuffer.array();
+        // Same text as Integer.toHexString: no leading zeroes.
+        final int length = Math.max(1, (Integer.SIZE - Integer.numberOfLeadingZeros(value) + 3) >> 2);
+        final int position = zappyBuffer.position();
+        int n = value;
+        for (int walker = position + length - 1; walker >= position; --walker) {
+            bytes[walker] = digits[n & 0x0f];
+            n >>>= 4;
+        }
+        zappyBuffer.position(position + length);
+        return 1 + count;
+    }
+
+    private int resolveContractionToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) throws ZappyParseException {
+        final byte b = source[index];
+        final int tableId;
+        final int lookupIndex;
+        final int used;
         if ((b & 0x10) == 0) {
             // Fast lookup!
             tableId = 0;
             lookupIndex = b & 0x0f;
+            used = 1;
         } else {
+            checkTokenLength(index, 2, end);
             tableId = (b & 0x0f) + 1;
-            lookupIndex = source.get();
+            lookupIndex = GUtils.byteToInt(source[index + 1]);
+            used = 2;
         }
-        final Map<Integer, byte[]> lookup = contractions.get(tableId);
-        if (lookup == null) {
+        final int tableSize = codebook.tableSize(tableId);
+        if (tableSize == 0) {
             throw new ZappyParseException(
-                    String.format(Locale.US, "No contractions found [tableId: %d]", tableId));
+                    String.format(Locale.US, "No contractions found [tableId: %d]", tableId),
+                    ZappyMetrics.DecodeFailure.UNKNOWN_CONTRACTION);
         }
-        final byte[] bytes = lookup.get(lookupIndex);
-        if (bytes == null) {
+        if (lookupIndex >= tableSize) {
             throw new ZappyParseException(
-                    String.format(Locale.US, "Contraction lookup index [%d]:%d not found!", tableId, lookupIndex));
+                    String.format(Locale.US, "Contraction lookup index [%d]:%d not found!", tableId, lookupIndex),
+                    ZappyMetrics.DecodeFailure.UNKNOWN_CONTRACTION);
         }
-        zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, bytes.length);
-        zappyBuffer.put(bytes);
+        putBytes(zappyBuffer, codebook.pool(), codebook.entryOffset(tableId, lookupIndex),
+                codebook.entryLength(tableId, lookupIndex));
+        return used;
     }
 }
@@ -3,29 +3,206 @@
 
 package com.glitchybyte.zappy;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Objects;
 
 /**
  * Zappy encoder.
  *
- * <p>It uses base64 as the message encoding, but the internal bytes are compressed.
+ * <p>It uses base64 as the message encoding by default, but the internal bytes are compressed.
+ * Other transports are picked with {@link ZappyTransport}.
+ *
+ * <p>Instances hold no per-call state and are safe to share between threads.
  */
 public final class ZappyEncoder extends ZappyBase64StringEncoder {
 
     private static final long MAX_DECIMAL = 0x7fffffff;
+    // Back reference candidates compared per position, by level.
+    private static final int FAST_MAX_CHAIN = 4;
+    private static final int DEFAULT_MAX_CHAIN = 16;
+    // Pending compressed bytes are flushed to the transport in whole groups. The buffer holds the
+    // threshold plus room for literal spans and the largest token (a 32-byte blob).
+    static final int FUSED_FLUSH_THRESHOLD = 0x300;
+    static final int FUSED_BUFFER_SIZE = 0x400;
 
-    private final Map<Integer, Map<Integer, byte[]>> contractions;
-    private ByteBuffer zappyBuffer = GByteBuffer.create();
+    private final ZappyCodebook codebook;
+    private final ZappyContractionTrie contractionTrie;
+    private final ZappyLiteralScanner literalScanner;
+    private final ZappyLevel level;
+    private final ZappyOptimalParser optimalParser;
+    private final ZappyMetrics metrics;
+    private final int codebookId;
+    private final ZappyTransport transport;
+    private final boolean usesBackReferences;
+    // Encoders at the other levels for optimalParseGain, created on first use. Encoders have only
+    // final fields, so a race at most creates an extra one.
+    private ZappyEncoder defaultSibling;
+    private ZappyEncoder maxSibling;
+
+    /**
+     * Creates a Zappy encoder at the {@link ZappyLevel#DEFAULT} level.
+     *
+     * @param codebook The compiled contractions used for aiding compression.
+     */
+    public ZappyEncoder(final ZappyCodebook codebook) {
+        this(codebook, ZappyLevel.DEFAULT);
+    }
 
     /**
      * Creates a Zappy encoder.
      *
-     * @param contractions The contractions used for aiding compression.
+     * <p>At {@link ZappyLevel#MAX} sources are parsed in windows, so streamed output of a long
+     * payload may differ from a one-shot encode, though it decodes the same.
+     *
+     * @param codebook The compiled contractions used for aiding compression.
+     * @param level Compression level.
+     */
+    public ZappyEncoder(final ZappyCodebook codebook, final ZappyLevel level) {
+        this(codebook, level, null);
+    }
+
+    /**
+     * Creates a Zappy encoder that records one-shot encodes.
+     *
+     * @param codebook The compiled contractions used for aiding compression.
+     * @param level Compression level.
+     * @param metrics Metrics to record to, or null to record nothing.
+     */
+    public ZappyEncoder(final ZappyCodebook codebook, final ZappyLevel level, final ZappyMetrics metrics) {
+        this(codebook, level, metrics, -1, ZappyTransport.BASE64, false);
+    }
+
+    /**
+     * Creates a Zappy encoder that may start every message with a codebook id header, writes
+     * it with the given transport, and may emit back references.
+     *
+     * @param codebook The compiled contractions used for aiding compression.
+     * @param level Compression level.
+     * @param metrics Metrics to record to, or null to record nothing.
+     * @param codebookId Codebook id in [0..{@link ZappyCodebookRegistry#MAX_ID}], or -1 for no header.
+     * @param transport Transport of the compressed bytes.
+     * @param usesBackReferences True to emit back references in one-shot encodes.
+     */
+    ZappyEncoder(final ZappyCodebook codebook, final ZappyLevel level, final ZappyMetrics metrics, final int codebookId,
+            final ZappyTransport transport, final boolean usesBackReferences) {
+        this.codebook = codebook;
+        this.level = Objects.requireNonNull(level);
+        this.metrics = metrics;
+        this.codebookId = codebookId;
+        this.transport = Objects.requireNonNull(transport);
+        this.usesBackReferences = usesBackReferences;
+        contractionTrie = codebook.contractionTrie();
+        literalScanner = new ZappyLiteralScanner(contractionTrie, level);
+        optimalParser = level == ZappyLevel.MAX ? new ZappyOptimalParser(codebook) : null;
+    }
+
+    /**
+     * Returns the compiled contractions used by this encoder.
+     *
+     * @return The codebook.
+     */
+    public ZappyCodebook codebook() {
+        return codebook;
+    }
+
+    /**
+     * Returns the compression level of this encoder.
+     *
+     * @return Compression level.
+     */
+    public ZappyLevel level() {
+        return level;
+    }
+
+    /**
+     * Returns the metrics this encoder records to.
+     *
+     * @return Metrics, or null if none.
+     */
+    ZappyMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the codebook id written as a header.
+     *
+     * @return Codebook id, or -1 if no header is written.
+     */
+    int codebookId() {
+        return codebookId;
+    }
+
+    /**
+     * Returns the transport of the compressed bytes.
+     *
+     * @return The transport.
+     */
+    ZappyTransport transport() {
+        return transport;
+    }
+
+    /**
+     * Returns whether one-shot encodes emit back references.
+     *
+     * @return True if back references are emitted.
+     */
+    boolean usesBackReferences() {
+        return usesBackReferences;
+    }
+
+    /**
+     * Writes the codebook id header, if any, at the start of a message.
+     *
+     * @param zappyBuffer Compressed buffer.
+     */
+    void putHeader(final ByteBuffer zappyBuffer) {
+        if (codebookId >= 0) {
+            zappyBuffer.put((byte) ZappyCodebookRegistry.HEADER_TOKEN);
+            zappyBuffer.put((byte) codebookId);
+        }
+    }
+
+    /**
+     * Returns how many compressed bytes the {@link ZappyLevel#MAX} level saves over the
+     * {@link ZappyLevel#DEFAULT} level for a char sequence, regardless of the level of this encoder.
+     *
+     * <p>Sizes are before base64, which adds a third.
+     *
+     * @param str A char sequence.
+     * @return Default compressed size minus max compressed size, in bytes.
      */
-    public ZappyEncoder(final Map<Integer, Map<Integer, byte[]>> contractions) {
-        this.contractions = contractions;
+    public int optimalParseGain(final CharSequence str) {
+        final ZappyEncoder defaultEncoder = sibling(ZappyLevel.DEFAULT);
+        final ZappyEncoder maxEncoder = sibling(ZappyLevel.MAX);
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            final int length = sourceToBytes(str, scratch);
+            final byte[] source = scratch.sourceBuffer.array();
+            return defaultEncoder.compressedLength(source, 0, length, scratch) -
+                    maxEncoder.compressedLength(source, 0, length, scratch);
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    private ZappyEncoder sibling(final ZappyLevel siblingLevel) {
+        if (siblingLevel == level) {
+            return this;
+        }
+        ZappyEncoder sibling = siblingLevel == ZappyLevel.DEFAULT ? defaultSibling : maxSibling;
+        if (sibling == null) {
+            sibling = new ZappyEncoder(codebook, siblingLevel);
+            if (siblingLevel == ZappyLevel.DEFAULT) {
+                defaultSibling = sibling;
+            } else {
+                maxSibling = sibling;
+            }
+        }
+        return sibling;
     }
 
     /**
@@ -35,29 +212,411 @@ public final class ZappyEncoder extends ZappyBase64StringEncoder {
      * @return A Zappy compressed string.
      */
     public String encode(final String str) {
-        final byte[] bytes = stringToCompressedBytes(str);
-        return bytesToBase64Alphabet(bytes);
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            return encode(str, scratch);
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    /**
+     * Turns a char sequence into a Zappy compressed string using the caller's scratch buffers.
+     *
+     * @param str A char sequence.
+     * @param scratch Scratch buffers owned by the caller.
+     * @return A Zappy compressed string.
+     */
+    String encode(final CharSequence str, final ZappyScratch scratch) {
+        return textToString(compressToText(str, scratch));
+    }
+
+    private static String textToString(final ByteBuffer textBuffer) {
+        // Transport bytes are chars one to one, so the string is built as compact Latin-1
+        // straight from the bytes.
+        return new String(textBuffer.array(), 0, textBuffer.position(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Turns a char sequence into Zappy compressed transport bytes.
+     *
+     * <p>With a text transport these are the ASCII chars of {@link #encode(String)}.
+     *
+     * @param str A char sequence.
+     * @return Transport bytes.
+     */
+    public byte[] encodeToBytes(final CharSequence str) {
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            final ByteBuffer textBuffer = compressToText(str, scratch);
+            return Arrays.copyOf(textBuffer.array(), textBuffer.position());
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    /**
+     * Turns UTF-8 bytes into a Zappy compressed string.
+     *
+     * <p>Tokens are read straight from the array. Bytes are encoded as they are, so they should
+     * be valid UTF-8 for the decoded string to match.
+     *
+     * @param utf8 UTF-8 bytes.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     * @return A Zappy compressed string.
+     */
+    public String encode(final byte[] utf8, final int offset, final int length) {
+        Objects.checkFromIndexSize(offset, length, utf8.length);
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            return textToString(compressToText(utf8, offset, length, scratch));
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    /**
+     * Turns the remaining UTF-8 bytes of a buffer into a Zappy compressed string.
+     *
+     * <p>Bytes from the buffer position to its limit are encoded, and the position is advanced
+     * to the limit. Tokens are read straight from the backing array of heap buffers. Direct and
+     * read-only buffers are copied once into pooled scratch memory. Bytes are encoded as they
+     * are, so they should be valid UTF-8 for the decoded string to match.
+     *
+     * @param utf8 UTF-8 bytes. It can be heap or direct.
+     * @return A Zappy compressed string.
+     */
+    public String encode(final ByteBuffer utf8) {
+        final int position = utf8.position();
+        final int length = utf8.remaining();
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            final ByteBuffer textBuffer;
+            if (utf8.hasArray()) {
+                textBuffer = compressToText(utf8.array(), utf8.arrayOffset() + position, length, scratch);
+            } else {
+                // The token loop reads arrays.
+                scratch.sourceBuffer = GByteBuffer.ensureCapacity(scratch.sourceBuffer.clear(), length);
+                utf8.get(position, scratch.sourceBuffer.array(), 0, length);
+                textBuffer = compressToText(scratch.sourceBuffer.array(), 0, length, scratch);
+            }
+            utf8.position(position + length);
+            return textToString(textBuffer);
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    /**
+     * Encodes a char sequence and appends the Zappy compressed string to the output.
+     *
+     * <p>Does not allocate in steady state.
+     *
+     * @param str A char sequence.
+     * @param out Output to append to.
+     * @return Number of characters appended.
+     * @throws IOException if the output fails to append.
+     */
+    public int encodeTo(final CharSequence str, final Appendable out) throws IOException {
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            final ByteBuffer textBuffer = compressToText(str, scratch);
+            final byte[] text = textBuffer.array();
+            final int count = textBuffer.position();
+            for (int i = 0; i < count; ++i) {
+                // Latin-1, for binary transports.
+                out.append((char) (text[i] & 0xff));
+            }
+            return count;
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    /**
+     * Encodes a char sequence and writes the Zappy compressed string into a char array.
+     *
+     * <p>Does not allocate in steady state. Use {@link #maxEncodedLength} to size the array.
+     *
+     * @param str A char sequence.
+     * @param dst Destination array.
+     * @param offset Index in the destination array where to start writing.
+     * @return Number of characters written.
+     * @throws IndexOutOfBoundsException if the encoded string doesn't fit. Nothing is written in that case.
+     */
+    public int encodeTo(final CharSequence str, final char[] dst, final int offset) {
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            final ByteBuffer textBuffer = compressToText(str, scratch);
+            final byte[] text = textBuffer.array();
+            final int count = textBuffer.position();
+            Objects.checkFromIndexSize(offset, count, dst.length);
+            for (int i = 0; i < count; ++i) {
+                dst[offset + i] = (char) (text[i] & 0xff);
+            }
+            return count;
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    /**
+     * Encodes a char sequence and writes the Zappy compressed transport bytes into a buffer.
+     *
+     * <p>Writing starts at the buffer position, which is advanced by the number of bytes written.
+     * Does not allocate in steady state. Use {@link #maxEncodedLength} to size the buffer.
+     *
+     * @param str A char sequence.
+     * @param dst Destination buffer. It can be heap or direct.
+     * @return Number of bytes written.
+     * @throws BufferOverflowException if the encoded string doesn't fit. Nothing is written in that case.
+     */
+    public int encodeTo(final CharSequence str, final ByteBuffer dst) {
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            final int length = sourceToBytes(str, scratch);
+            if (dst.hasArray() && (dst.remaining() >= transport.encodedLength(maxCompressedLength(length)))) {
+                // Guaranteed to fit. Write straight into the destination.
+                final int count = compressToText(scratch.sourceBuffer.array(), 0, length, scratch,
+                        dst.array(), dst.arrayOffset() + dst.position());
+                dst.position(dst.position() + count);
+                return count;
+            }
+            final ByteBuffer textBuffer = compressToText(scratch.sourceBuffer.array(), 0, length, scratch);
+            final int count = textBuffer.position();
+            if (dst.remaining() < count) {
+                throw new BufferOverflowException();
+            }
+            dst.put(textBuffer.array(), 0, count);
+            return count;
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    /**
+     * Returns the largest number of characters a Zappy compressed string can have for the given
+     * number of source chars.
+     *
+     * <p>It's the base64 length, which is the longest of the built-in transports.
+     *
+     * @param charCount Number of UTF-16 chars to encode.
+     * @return Maximum number of encoded characters.
+     */
+    public static int maxEncodedLength(final int charCount) {
+        return base64Length(maxCompressedLength(GUtils.maxUtf8Length(charCount)));
+    }
+
+    private int sourceToBytes(final CharSequence str, final ZappyScratch scratch) {
+        scratch.sourceBuffer = GByteBuffer.ensureCapacity(scratch.sourceBuffer.clear(), GUtils.maxUtf8Length(str.length()));
+        return GUtils.utf8Encode(str, scratch.sourceBuffer.array(), 0);
+    }
+
+    private ByteBuffer compressToText(final CharSequence str, final ZappyScratch scratch) {
+        final int length = sourceToBytes(str, scratch);
+        return compressToText(scratch.sourceBuffer.array(), 0, length, scratch);
+    }
+
+    private ByteBuffer compressToText(final byte[] source, final int offset, final int length, final ZappyScratch scratch) {
+        scratch.textBuffer = GByteBuffer.ensureCapacity(scratch.textBuffer.clear(), transport.encodedLength(maxCompressedLength(length)));
+        final ByteBuffer textBuffer = scratch.textBuffer;
+        final int count = compressToText(source, offset, length, scratch, textBuffer.array(), 0);
+        textBuffer.position(count);
+        return textBuffer;
+    }
+
+    /**
+     * Returns the largest number of compressed bytes the given number of source bytes can produce.
+     *
+     * <p>No token is longer than the bytes it represents, except blobs which add 1 token byte
+     * per up to 31 bytes. Room for a codebook id header is included.
+     *
+     * @param length Number of source bytes.
+     * @return Maximum number of compressed bytes.
+     */
+    static int maxCompressedLength(final int length) {
+        return Math.addExact(length, (length / 0x1f) + 1 + ZappyCodebookRegistry.HEADER_LENGTH);
+    }
+
+    private int compressToText(final byte[] source, final int offset, final int length, final ZappyScratch scratch,
+            final byte[] text, final int textOffset) {
+        // Compressed bytes are transport encoded as tokens are produced, in whole groups.
+        // Only the pending bytes since the last flush live in the small compressed buffer.
+        scratch.zappyBuffer = GByteBuffer.ensureCapacity(scratch.zappyBuffer.clear(), FUSED_BUFFER_SIZE);
+        final ByteBuffer zappyBuffer = scratch.zappyBuffer;
+        putHeader(zappyBuffer);
+        final byte[] zappy = zappyBuffer.array();
+        final long startTime = metrics == null ? 0 : System.nanoTime();
+        final ZappyMatchFinder matchFinder = usesBackReferences ? scratch.matchFinder() : null;
+        if (matchFinder != null) {
+            matchFinder.reset(offset, length);
+        }
+        scratch.resetParse();
+        final int end = offset + length;
+        int index = offset;
+        int textPosition = textOffset;
+        int compressedCount = 0;
+        // Start of the next token to count. A token may straddle a flush.
+        int tokenStart = 0;
+        while (index < end) {
+            index = addTokens(zappyBuffer, source, index, end, end, matchFinder, scratch);
+            final int pending = zappyBuffer.position();
+            if (pending >= FUSED_FLUSH_THRESHOLD) {
+                final int ready = pending - (pending % transport.groupSize());
+                if (metrics != null) {
+                    tokenStart = metrics.countTokens(zappy, tokenStart, ready) - ready;
+                }
+                textPosition += transport.encode(zappy, 0, ready, text, textPosition);
+                System.arraycopy(zappy, ready, zappy, 0, pending - ready);
+                zappyBuffer.position(pending - ready);
+                compressedCount += ready;
+            }
+        }
+        final int pending = zappyBuffer.position();
+        textPosition += transport.encode(zappy, 0, pending, text, textPosition);
+        if (metrics != null) {
+            metrics.countTokens(zappy, tokenStart, pending);
+            metrics.recordEncode(length, compressedCount + pending, textPosition - textOffset, System.nanoTime() - startTime);
+        }
+        return textPosition - textOffset;
+    }
+
+    /**
+     * Adds tokens for the source bytes until the token limit is reached or the compressed buffer
+     * has at least {@link #FUSED_FLUSH_THRESHOLD} pending bytes.
+     *
+     * <p>Tokens may consume bytes past the token limit, up to the end. They make the same choices
+     * as with the whole source as long as the end is the real end of the source, or at least
+     * {@link #maxTokenLookahead()} bytes past the token limit.
+     *
+     * <p>A pass over the source is a sequence of calls with the same source, token limit, end,
+     * and scratch object, which is reset with {@link ZappyScratch#resetParse()} before the first.
+     *
+     * @param zappyBuffer Compressed buffer, with room for {@link #FUSED_BUFFER_SIZE} bytes.
+     * @param source Source bytes.
+     * @param index Index of the first byte to encode.
+     * @param tokenLimit No token starts at or after this index.
+     * @param end Index one past the last usable byte.
+     * @param scratch Scratch object of the pass.
+     * @return Index of the first byte not yet encoded.
+     */
+    int addTokens(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int tokenLimit, final int end,
+            final ZappyScratch scratch) {
+        return addTokens(zappyBuffer, source, index, tokenLimit, end, null, scratch);
+    }
+
+    /**
+     * Adds tokens as {@link #addTokens(ByteBuffer, byte[], int, int, int, ZappyScratch)} does, and
+     * back references to earlier bytes of the message when a match finder is given.
+     *
+     * @param zappyBuffer Compressed buffer, with room for {@link #FUSED_BUFFER_SIZE} bytes.
+     * @param source Source bytes.
+     * @param index Index of the first byte to encode.
+     * @param tokenLimit No token starts at or after this index.
+     * @param end Index one past the last usable byte.
+     * @param matchFinder Match finder reset at the start of the message, or null for no back references.
+     * @param scratch Scratch object of the pass.
+     * @return Index of the first byte not yet encoded.
+     */
+    int addTokens(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int tokenLimit, final int end,
+            final ZappyMatchFinder matchFinder, final ZappyScratch scratch) {
+        if (optimalParser != null) {
+            return optimalParser.addTokens(zappyBuffer, source, index, tokenLimit, end, matchFinder, scratch);
+        }
+        if (matchFinder != null) {
+            return addTokensWithBackReferences(zappyBuffer, source, index, tokenLimit, end, matchFinder);
+        }
+        int walker = index;
+        while ((walker < tokenLimit) && (zappyBuffer.position() < FUSED_FLUSH_THRESHOLD)) {
+            // Bulk copy bytes that could only become ASCII tokens.
+            final int span = literalScanner.span(source, walker, Math.min(tokenLimit, walker + zappyBuffer.remaining()), end);
+            if (span > 0) {
+                zappyBuffer.put(source, walker, span);
+                walker += span;
+            } else if (level == ZappyLevel.FAST) {
+                walker += addNextFastToken(zappyBuffer, source, walker, end);
+            } else {
+                walker += addNextToken(zappyBuffer, source, walker, end);
+            }
+        }
+        return walker;
     }
 
-    private byte[] stringToCompressedBytes(final String str) {
-        final byte[] source = str.getBytes(StandardCharsets.UTF_8);
-        zappyBuffer.clear();
-        int index = 0;
-        while (index < source.length) {
-            index += addNextToken(source, index);
+    private int addTokensWithBackReferences(final ByteBuffer zappyBuffer, final byte[] source, final int index,
+            final int tokenLimit, final int end, final ZappyMatchFinder matchFinder) {
+        final int maxChain = level == ZappyLevel.FAST ? FAST_MAX_CHAIN : DEFAULT_MAX_CHAIN;
+        int walker = index;
+        while ((walker < tokenLimit) && (zappyBuffer.position() < FUSED_FLUSH_THRESHOLD)) {
+            // A match may start at any byte, so there are no bulk literal spans here.
+            final int matchLength = matchFinder.find(source, walker, end, maxChain, ZappyMatchFinder.MAX_LENGTH);
+            final int position = zappyBuffer.position();
+            final int used = level == ZappyLevel.FAST ? addNextFastToken(zappyBuffer, source, walker, end)
+                    : addNextToken(zappyBuffer, source, walker, end);
+            // The back reference wins if it saves more than the token it replaces.
+            final int tokenGain = used - (zappyBuffer.position() - position);
+            if ((matchLength - ZappyMatchFinder.TOKEN_LENGTH) > tokenGain) {
+                zappyBuffer.position(position);
+                ZappyMatchFinder.putToken(zappyBuffer, matchFinder.matchDistance(), matchLength);
+                walker += matchLength;
+            } else {
+                walker += used;
+            }
         }
-        return GByteBuffer.toByteArray(zappyBuffer);
+        return walker;
     }
 
-    private int addNextToken(final byte[] source, final int index) {
+    /**
+     * Returns the number of compressed bytes the source bytes encode into, before base64.
+     *
+     * @param source Source bytes.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     * @return Number of compressed bytes.
+     */
+    int compressedLength(final byte[] source, final int offset, final int length) {
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            return compressedLength(source, offset, length, scratch);
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+    }
+
+    private int compressedLength(final byte[] source, final int offset, final int length, final ZappyScratch scratch) {
+        scratch.zappyBuffer = GByteBuffer.ensureCapacity(scratch.zappyBuffer.clear(), FUSED_BUFFER_SIZE);
+        final ByteBuffer zappyBuffer = scratch.zappyBuffer;
+        scratch.resetParse();
+        final int end = offset + length;
+        int index = offset;
+        int count = 0;
+        while (index < end) {
+            index = addTokens(zappyBuffer, source, index, end, end, scratch);
+            count += zappyBuffer.position();
+            zappyBuffer.clear();
+        }
+        return count;
+    }
+
+    /**
+     * Returns how many bytes past its start a token may look at.
+     *
+     * @return Maximum token lookahead in bytes.
+     */
+    int maxTokenLookahead() {
+        // Repeats and blobs cover up to 31 bytes, numbers up to 10.
+        return Math.max(0x1f, codebook.maxEntryLength());
+    }
+
+    private int addNextToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) {
         int used;
         // Contraction.
-        used = addContractionToken(source, index);
+        used = addContractionToken(zappyBuffer, source, index, end);
         if (used > 0) {
             return used;
         }
         // Repeated.
-        used = addRepeatToken(source, index);
+        used = addRepeatToken(zappyBuffer, source, index, end);
         if (used > 0) {
             return used;
         }
@@ -65,72 +624,72 @@ public final class ZappyEncoder extends ZappyBase64StringEncoder {
         // Check for (0..9] || [A..F] || [a..f]
         if (((b > 0x30) && (b <= 0x39)) || ((b >= 0x41) && (b <= 0x46)) || ((b >= 0x61) && (b <= 0x66))) {
             // Unsigned integer.
-            used = addUnsignedIntegerToken(source, index);
+            used = addUnsignedIntegerToken(zappyBuffer, source, index, end);
             if (used > 0) {
                 return used;
             }
         }
         if ((b & 0x80) == 0) {
             // ASCII. Take as-is.
-            return addAsciiToken(source, index);
+            return addAsciiToken(zappyBuffer, source, index);
         }
         // Non-ASCII. Take as-is as a group.
-        return addBlobToken(source, index);
+        return addBlobToken(zappyBuffer, source, index, end);
     }
 
-    private int addContractionToken(final byte[] source, final int index) {
-        for (int tableId = 16; tableId >= 0; --tableId) {
-            final Map<Integer, byte[]> lookup = contractions.get(tableId);
-            if (lookup == null) {
-                continue;
-            }
-            final int lookupIndex = findLookupIndex(lookup, source, index);
-            if (lookupIndex == -1) {
-                continue;
+    private int addNextFastToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) {
+        int used;
+        // Repeated.
+        used = addRepeatToken(zappyBuffer, source, index, end);
+        if (used > 0) {
+            return used;
+        }
+        final byte b = source[index];
+        // Check for (0..9]
+        if ((b > 0x30) && (b <= 0x39)) {
+            // Decimal integer. Up to 9 digits always fit.
+            int count = 1;
+            while ((count < 9) && ((index + count) < end) && isDigit(source[index + count])) {
+                ++count;
             }
-            if (tableId == 0) {
-                zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, 1);
-                final int token = 0xe0 | lookupIndex;
-                zappyBuffer.put((byte) token);
-            } else {
-                zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, 2);
-                final int token = 0xf0 | (tableId - 1);
-                zappyBuffer.put((byte) token);
-                zappyBuffer.put((byte) lookupIndex);
+            used = addDecimalToken(zappyBuffer, source, index, count);
+            if (used > 0) {
+                return used;
             }
-            return lookup.get(lookupIndex).length;
         }
-        return 0;
+        if ((b & 0x80) == 0) {
+            // ASCII. Take as-is.
+            return addAsciiToken(zappyBuffer, source, index);
+        }
+        // Non-ASCII. Take as-is as a group.
+        return addBlobToken(zappyBuffer, source, index, end);
     }
 
-    private int findLookupIndex(final Map<Integer, byte[]> lookup, final byte[] source, final int index) {
-        for (final var entry: lookup.entrySet()) {
-            final int lookupIndex = entry.getKey();
-            final byte[] bytes = entry.getValue();
-            if (bytes.length > (source.length - index)) {
-                continue;
-            }
-            boolean found = true;
-            for (int i = 0; i < bytes.length; ++i) {
-                if (bytes[i] != source[index + i]) {
-                    found = false;
-                    break;
-                }
-            }
-            if (found) {
-                return lookupIndex;
-            }
+    private int addContractionToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) {
+        final int entry = contractionTrie.find(source, index, end);
+        if (entry == -1) {
+            return 0;
+        }
+        final int tableId = entry >> 8;
+        final int lookupIndex = entry & 0xff;
+        if (tableId == 0) {
+            final int token = 0xe0 | lookupIndex;
+            zappyBuffer.put((byte) token);
+        } else {
+            final int token = 0xf0 | (tableId - 1);
+            zappyBuffer.put((byte) token);
+            zappyBuffer.put((byte) lookupIndex);
         }
-        return -1;
+        return codebook.entryLength(tableId, lookupIndex);
     }
 
-    private int addRepeatToken(final byte[] source, final int index) {
+    private int addRepeatToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) {
         final int maxRepeatCount = 0x1f;
         int count = 1;
         final byte value = source[index];
         while (count < maxRepeatCount) {
             final int walker = index + count;
-            if (walker >= source.length) {
+            if (walker >= end) {
                 break;
             }
             final byte b = source[walker];
@@ -142,7 +701,6 @@ public final class ZappyEncoder extends ZappyBase64StringEncoder {
         if (count < 3) {
             return 0;
         }
-        zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, 2);
         final int token = 0xa0 | count;
         zappyBuffer.put((byte) token);
         zappyBuffer.put(value);
@@ -161,7 +719,7 @@ public final class ZappyEncoder extends ZappyBase64StringEncoder {
         return (b >= 0x30) && (b <= 0x39); // [0..9]
     }
 
-    private int addUnsignedIntegerToken(final byte[] source, final int index) {
+    private int addUnsignedIntegerToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) {
         // Collect up to 10 decimal or 8 hex.
         int count = 1;
         byte b = source[index];
@@ -169,7 +727,7 @@ public final class ZappyEncoder extends ZappyBase64StringEncoder {
         boolean isHex = isUppercase || isLowercaseHexDigit(b);
         while ((isHex && (count < 8)) || (!isHex && (count < 10))) {
         final int walker = index + count;
-            if (walker >= source.length) {
+            if (walker >= end) {
                 break;
             }
             b = source[walker];
@@ -208,11 +766,11 @@ public final class ZappyEncoder extends ZappyBase64StringEncoder {
             break;
         }
         return isHex ?
-                addHexadecimalToken(source, index, count, isUppercase) :
-                addDecimalToken(source, index, count);
+                addHexadecimalToken(zappyBuffer, source, index, count, isUppercase) :
+                addDecimalToken(zappyBuffer, source, index, count);
     }
 
-    private int addDecimalToken(final byte[] source, final int index, final int count) {
+    private int addDecimalToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int count) {
         // FIXME JS BUG: Can't have an unsigned 32bit int, if bit 31 is set JS interprets it as a negative number.
         //  So we'll only encode numbers up to 31 bits long. Though the problem only shows when decoding, we prevent
         //  encoding so we don't manifest the bug later.
@@ -240,7 +798,6 @@ public final class ZappyEncoder extends ZappyBase64StringEncoder {
         } else {
             byteCount = 1;
         }
-        zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, 1 + byteCount);
         final int token = 0xc0 | byteCount;
         zappyBuffer.put((byte) token);
         switch (byteCount) {
@@ -248,10 +805,11 @@ public final class ZappyEncoder extends ZappyBase64StringEncoder {
             case 2 -> zappyBuffer.putShort((short) value);
             default -> zappyBuffer.put((byte) value);
         }
-        return count;
+        // Digits past 31 bits are left for the next token.
+        return digit;
     }
 
-    private int addHexadecimalToken(final byte[] source, final int index, final int count, final boolean isUppercase) {
+    private int addHexadecimalToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int count, final boolean isUppercase) {
         // FIXME JS BUG: Can't have an unsigned 32bit int, if bit 31 is set JS interprets it as a negative number.
         //  So we'll only encode numbers up to 31 bits long. Though the problem only shows when decoding, we prevent
         //  encoding so we don't manifest the bug later.
@@ -279,7 +837,6 @@ public final class ZappyEncoder extends ZappyBase64StringEncoder {
             return 0;
         }
         final int byteCount = value > 0xffff ? 4 : 2;
-        zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, 1 + byteCount);
         final int token = (isUppercase ? 0xd0 : 0xd8) | byteCount;
         zappyBuffer.put((byte) token);
         if (byteCount == 4) {
@@ -290,18 +847,17 @@ public final class ZappyEncoder extends ZappyBase64StringEncoder {
         return digit;
     }
 
-    private int addAsciiToken(final byte[] source, final int index) {
-        zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, 1);
+    private int addAsciiToken(final ByteBuffer zappyBuffer, final byte[] source, final int index) {
         zappyBuffer.put(source[index]);
         return 1;
     }
 
-    private int addBlobToken(final byte[] source, final int index) {
+    private int addBlobToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int end) {
         final int maxBlobSize = 0x1f;
         int count = 1;
         while (count < maxBlobSize) {
             final int walker = index + count;
-            if (walker >= source.length) {
+            if (walker >= end) {
                 break;
             }
             final byte b = source[walker];
@@ -310,7 +866,6 @@ public final class ZappyEncoder extends ZappyBase64StringEncoder {
             }
             ++count;
         }
-        zappyBuffer = GByteBuffer.ensureCapacityForMoreBytes(zappyBuffer, 1 + count);
         final int token = 0x80 | count;
         zappyBuffer.put((byte) token);
         zappyBuffer.put(source, index, count);
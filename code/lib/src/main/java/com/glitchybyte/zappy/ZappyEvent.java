@@ -0,0 +1,109 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a Zappy or base64 encode or decode call.
+ *
+ * <p>Only slow or large calls are recorded: those that take at least the "slowerThan" setting
+ * (default 1 ms), or whose input or output is at least the "largerThan" setting (default
+ * 64 KiB). Both can be changed in a recording's settings, for example
+ * {@code com.glitchybyte.zappy.Call#slowerThan=100 us}.
+ *
+ * <p>When no recording has the event enabled, the JIT removes the event entirely.
+ */
+@Name("com.glitchybyte.zappy.Call")
+@Label("Zappy Call")
+@Category("Zappy")
+@Description("Slow or large Zappy encode or decode")
+@StackTrace(false)
+final class ZappyEvent extends jdk.jfr.Event {
+
+    static final String ENCODE = "encode";
+    static final String DECODE = "decode";
+    static final String BASE64_ENCODE = "base64Encode";
+    static final String BASE64_DECODE = "base64Decode";
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Input Length")
+    @Description("Characters, or bytes for UTF-8 input, in the input")
+    @DataAmount(DataAmount.BYTES)
+    long inputLength;
+
+    @Label("Output Length")
+    @Description("Characters in the output")
+    @DataAmount(DataAmount.BYTES)
+    long outputLength;
+
+    @Label("Ratio")
+    @Description("Output length over input length")
+    double ratio;
+
+    @Label("Tables")
+    @Description("Fingerprint of the contraction tables in use")
+    String tables;
+
+    // Not recorded. Settings are checked one by one, so each sets a flag, and the flags are
+    // joined after.
+    private transient long startNanos;
+    private transient boolean isSlow;
+    private transient boolean isLarge;
+
+    /**
+     * Starts timing the call.
+     */
+    void start() {
+        startNanos = System.nanoTime();
+        begin();
+    }
+
+    /**
+     * Ends timing the call, and commits it if it's slow or large.
+     *
+     * @param operation Operation name.
+     * @param inputLength Characters, or bytes for UTF-8 input, in the input.
+     * @param outputLength Characters in the output.
+     * @param codebook Codebook in use, or null for base64.
+     */
+    void finish(final String operation, final int inputLength, final int outputLength, final ZappyCodebook codebook) {
+        end();
+        this.inputLength = inputLength;
+        this.outputLength = outputLength;
+        if (!shouldCommit() || !(isSlow || isLarge)) {
+            return;
+        }
+        this.operation = operation;
+        ratio = inputLength == 0 ? 0 : (double) outputLength / inputLength;
+        tables = codebook == null ? null : String.format("%08x", codebook.fingerprint());
+        commit();
+    }
+
+    @SettingDefinition
+    @Name("largerThan")
+    @Label("Larger Than")
+    @Description("Record calls with at least this many input or output characters")
+    boolean largerThan(final ZappyEventThreshold.Length threshold) {
+        isLarge = Math.max(inputLength, outputLength) >= threshold.bytes();
+        return true;
+    }
+
+    @SettingDefinition
+    @Name("slowerThan")
+    @Label("Slower Than")
+    @Description("Record calls that take at least this long")
+    boolean slowerThan(final ZappyEventThreshold.Duration threshold) {
+        isSlow = (System.nanoTime() - startNanos) >= threshold.nanos();
+        return true;
+    }
+}
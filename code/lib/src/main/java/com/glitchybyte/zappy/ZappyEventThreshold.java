@@ -0,0 +1,113 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import jdk.jfr.SettingControl;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Threshold settings of {@link ZappyEvent}.
+ *
+ * <p>Values are a number and a unit, like JFR's own threshold. When several recordings set
+ * a threshold, the lowest one wins so every recording gets at least the events it asked for.
+ */
+abstract class ZappyEventThreshold extends SettingControl {
+
+    private final String[] units;
+    private final long[] scales;
+    private final String defaultValue;
+    private String value;
+    private volatile long threshold;
+
+    private ZappyEventThreshold(final String[] units, final long[] scales, final String defaultValue) {
+        this.units = units;
+        this.scales = scales;
+        this.defaultValue = defaultValue;
+        setValue(defaultValue);
+    }
+
+    private long parse(final String text) {
+        final String trimmed = text.trim().toLowerCase(Locale.ROOT);
+        for (int i = 0; i < units.length; ++i) {
+            if (trimmed.endsWith(units[i])) {
+                try {
+                    final long amount = Long.parseLong(trimmed.substring(0, trimmed.length() - units[i].length()).trim());
+                    return Math.multiplyHigh(amount, scales[i]) == 0 ? amount * scales[i] : Long.MAX_VALUE;
+                } catch (final NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String combine(final Set<String> values) {
+        String lowest = null;
+        long lowestThreshold = Long.MAX_VALUE;
+        for (final String candidate: values) {
+            final long candidateThreshold = parse(candidate);
+            if ((candidateThreshold >= 0) && ((lowest == null) || (candidateThreshold < lowestThreshold))) {
+                lowest = candidate;
+                lowestThreshold = candidateThreshold;
+            }
+        }
+        return lowest == null ? defaultValue : lowest;
+    }
+
+    @Override
+    public void setValue(final String value) {
+        final long parsed = parse(value);
+        if (parsed >= 0) {
+            this.value = value;
+            threshold = parsed;
+        }
+    }
+
+    @Override
+    public String getValue() {
+        return value;
+    }
+
+    long threshold() {
+        return threshold;
+    }
+
+    /**
+     * Duration threshold. Units are ns, us, ms, and s.
+     */
+    static final class Duration extends ZappyEventThreshold {
+
+        /**
+         * Creates the setting at 1 ms.
+         */
+        public Duration() {
+            // Two-letter units first, as they all end in "s" too.
+            super(new String[] { "ns", "us", "ms", "s" }, new long[] { 1, 1_000, 1_000_000, 1_000_000_000 }, "1 ms");
+        }
+
+        long nanos() {
+            return threshold();
+        }
+    }
+
+    /**
+     * Size threshold. Units are B, KiB, and MiB.
+     */
+    static final class Length extends ZappyEventThreshold {
+
+        /**
+         * Creates the setting at 64 KiB.
+         */
+        public Length() {
+            super(new String[] { "kib", "mib", "b" }, new long[] { 1 << 10, 1 << 20, 1 }, "64 KiB");
+        }
+
+        long bytes() {
+            return threshold();
+        }
+    }
+}
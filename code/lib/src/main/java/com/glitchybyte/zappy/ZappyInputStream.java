@@ -0,0 +1,76 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Objects;
+
+/**
+ * Input stream that reads the UTF-8 bytes of a Zappy compressed string.
+ *
+ * <p>The encoded text is read from upstream in chunks and decoded incrementally with bounded
+ * memory. An invalid message fails the read with an {@link IOException} whose cause is a
+ * {@link ZappyParseException}.
+ *
+ * <p>Streams are not thread-safe.
+ */
+public final class ZappyInputStream extends InputStream {
+
+    private final ZappyStreamDecoder streamDecoder;
+    private final byte[] single = new byte[1];
+
+    /**
+     * Creates a stream that reads the encoded text as bytes, ASCII for text transports.
+     *
+     * @param zappy Zappy object whose contractions are used.
+     * @param in Origin stream.
+     */
+    public ZappyInputStream(final Zappy zappy, final InputStream in) {
+        this(zappy, ZappyTextSource.of(Objects.requireNonNull(in)));
+    }
+
+    /**
+     * Creates a stream that reads the encoded text as chars.
+     *
+     * @param zappy Zappy object whose contractions are used.
+     * @param in Origin reader.
+     */
+    public ZappyInputStream(final Zappy zappy, final Reader in) {
+        this(zappy, ZappyTextSource.of(Objects.requireNonNull(in)));
+    }
+
+    /**
+     * Creates a stream that reads the encoded text as bytes, ASCII for text transports.
+     *
+     * @param zappy Zappy object whose contractions are used.
+     * @param in Origin channel. It must be blocking.
+     */
+    public ZappyInputStream(final Zappy zappy, final ReadableByteChannel in) {
+        this(zappy, ZappyTextSource.of(Objects.requireNonNull(in)));
+    }
+
+    private ZappyInputStream(final Zappy zappy, final ZappyTextSource source) {
+        streamDecoder = new ZappyStreamDecoder(zappy.decoder(), source);
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int count = streamDecoder.read(single, 0, 1);
+        return count < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        return streamDecoder.read(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        streamDecoder.close();
+    }
+}
@@ -0,0 +1,31 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+/**
+ * Compression level, trading encoding speed for output size.
+ *
+ * <p>Levels only change how the encoder picks tokens. Output of any level decodes with the
+ * same {@link ZappyDecoder}, as long as the contractions are the same.
+ */
+public enum ZappyLevel {
+
+    /**
+     * Lowest latency. No contractions, no hex numbers, and decimal numbers of up to 9 digits.
+     * Literal runs, repeats, and non-ASCII blobs are still encoded.
+     */
+    FAST,
+
+    /**
+     * Greedy encoding. Each position takes the first token that applies: contraction, repeat,
+     * number, then literal.
+     */
+    DEFAULT,
+
+    /**
+     * Smallest output. Weighs every token at every position and picks the smallest sequence.
+     * Slowest to encode.
+     */
+    MAX
+}
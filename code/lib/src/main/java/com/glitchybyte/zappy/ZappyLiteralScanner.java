@@ -0,0 +1,133 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Finds spans of source bytes that can only be encoded as plain ASCII tokens.
+ *
+ * <p>A byte is a literal if it's ASCII, no contraction starts with it, it can't start a
+ * number ([1..9], [A..F], [a..f]), and it doesn't start a run of 3 repeated bytes. Such spans
+ * can be copied to the output in bulk, with the same result as encoding them token by token.
+ * At {@link ZappyLevel#FAST} there are no contractions and numbers only start with [1..9].
+ *
+ * <p>When {@link ZappyVectorSupport#isEnabled()}, spans are classified a whole vector at a time.
+ */
+final class ZappyLiteralScanner {
+
+    // Literal bytes classified one by one before switching to the vector path.
+    private static final int SCALAR_PROBE = 0x10;
+
+    // Literal start bytes. Non-ASCII bytes are never literals.
+    private final boolean[] literals = new boolean[0x100];
+    // Set membership by nibbles: bit h of nibbleMasks[l] is set if (h << 4) | l is NOT a literal start.
+    // Repeated to fill the widest vector shape.
+    private final byte[] nibbleMasks = new byte[0x40];
+
+    /**
+     * Creates a scanner for the contractions in the trie.
+     *
+     * @param contractionTrie Compiled contractions.
+     * @param level Compression level of the encoder.
+     */
+    ZappyLiteralScanner(final ZappyContractionTrie contractionTrie, final ZappyLevel level) {
+        final boolean isFast = level == ZappyLevel.FAST;
+        for (int b = 0; b < 0x80; ++b) {
+            final boolean isDecimalStart = (b > 0x30) && (b <= 0x39);
+            final boolean isHexStart = ((b >= 0x41) && (b <= 0x46)) || ((b >= 0x61) && (b <= 0x66));
+            final boolean isContractionStart = !isFast && contractionTrie.canStart((byte) b);
+            literals[b] = !isDecimalStart && (isFast || !isHexStart) && !isContractionStart;
+            if (!literals[b]) {
+                for (int i = b & 0x0f; i < nibbleMasks.length; i += 0x10) {
+                    nibbleMasks[i] |= (byte) (1 << (b >> 4));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the literal span starting at the given index.
+     *
+     * @param source Source bytes.
+     * @param index Index where the span starts.
+     * @param limit Maximum index the span can reach.
+     * @param end Index one past the last usable byte. Used to look ahead for repeats.
+     * @return Number of literal bytes. It may be 0.
+     */
+    int span(final byte[] source, final int index, final int limit, final int end) {
+        // Most spans are short, so only reach for vectors once a span proves to be long.
+        int walker = scalarSpan(source, index, Math.min(limit, index + SCALAR_PROBE), end);
+        if (((walker - index) == SCALAR_PROBE) && ZappyVectorSupport.isEnabled() && Kernel.IS_WIDE_ENOUGH) {
+            walker += Kernel.span(nibbleMasks, source, walker, limit, end);
+        }
+        return scalarSpan(source, walker, limit, end) - index;
+    }
+
+    private int scalarSpan(final byte[] source, final int index, final int limit, final int end) {
+        int walker = index;
+        while (walker < limit) {
+            final byte b = source[walker];
+            if (!literals[b & 0xff]) {
+                break;
+            }
+            if (((walker + 2) < end) && (source[walker + 1] == b) && (source[walker + 2] == b)) {
+                break;
+            }
+            ++walker;
+        }
+        return walker;
+    }
+
+    // Holds the vector constants, so they are only initialized when the Vector API is enabled.
+    private static final class Kernel {
+
+        private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+        private static final int LANES = SPECIES.length();
+        // Nibble lookups need 16 lanes.
+        private static final boolean IS_WIDE_ENOUGH = LANES >= 0x10;
+        private static final ByteVector HIGH_BITS = createHighBits();
+
+        private static ByteVector createHighBits() {
+            // Bit for each high nibble. Non-ASCII high nibbles get none, they are checked by sign.
+            final byte[] bits = new byte[LANES];
+            for (int i = 0; i < LANES; ++i) {
+                final int nibble = i & 0x0f;
+                bits[i] = nibble < 8 ? (byte) (1 << nibble) : 0;
+            }
+            return ByteVector.fromArray(SPECIES, bits, 0);
+        }
+
+        /**
+         * Classifies whole vectors, stopping at the first non-literal.
+         *
+         * @return Number of literal bytes found in whole vectors.
+         */
+        static int span(final byte[] nibbleMasks, final byte[] source, final int index, final int limit,
+                final int end) {
+            final ByteVector masks = ByteVector.fromArray(SPECIES, nibbleMasks, 0);
+            // Repeats look 2 bytes ahead.
+            final int vectorEnd = Math.min(limit, end - 2);
+            int walker = index;
+            while ((walker + LANES) <= vectorEnd) {
+                final ByteVector bytes = ByteVector.fromArray(SPECIES, source, walker);
+                final ByteVector lowMasks = bytes.and((byte) 0x0f).selectFrom(masks);
+                final ByteVector highBits = bytes.lanewise(VectorOperators.LSHR, 4).and((byte) 0x0f).selectFrom(HIGH_BITS);
+                final VectorMask<Byte> notLiteral = lowMasks.and(highBits).compare(VectorOperators.NE, (byte) 0)
+                        .or(bytes.compare(VectorOperators.LT, (byte) 0));
+                final VectorMask<Byte> repeat = bytes.compare(VectorOperators.EQ, ByteVector.fromArray(SPECIES, source, walker + 1))
+                        .and(bytes.compare(VectorOperators.EQ, ByteVector.fromArray(SPECIES, source, walker + 2)));
+                final VectorMask<Byte> stop = notLiteral.or(repeat);
+                if (stop.anyTrue()) {
+                    return walker + stop.firstTrue() - index;
+                }
+                walker += LANES;
+            }
+            return walker - index;
+        }
+    }
+}
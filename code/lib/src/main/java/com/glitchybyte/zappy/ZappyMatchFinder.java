@@ -0,0 +1,190 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Hash-chain match finder for back reference tokens.
+ *
+ * <p>Every source position is hashed by its first {@link #MIN_LENGTH} bytes. Heads hold the
+ * latest position of each hash, and links chain each position to the previous one with the
+ * same hash, within a bounded window. Matches are verified byte by byte, so collisions and
+ * stale links only cost a comparison.
+ *
+ * <p>Positions are stored as stamps that keep growing from message to message. Stamps below
+ * the start of the current message are stale, so nothing is cleared between messages.
+ *
+ * <p>A back reference token is {@code 0xc8 | d >> 10} followed by a little-endian short with
+ * {@code (d & 0x3ff) << 6 | (length - 4)}, where {@code d} is the distance minus 1. Distances
+ * go up to {@link #WINDOW_SIZE} and lengths from {@link #MIN_LENGTH} to {@link #MAX_LENGTH}.
+ * Instances are not thread-safe. Each scratch object owns one.
+ */
+final class ZappyMatchFinder {
+
+    /**
+     * Farthest distance a back reference reaches.
+     */
+    static final int WINDOW_SIZE = 0x2000;
+
+    /**
+     * Shortest back reference.
+     */
+    static final int MIN_LENGTH = 4;
+
+    /**
+     * Longest back reference.
+     */
+    static final int MAX_LENGTH = MIN_LENGTH + 0x3f;
+
+    /**
+     * Compressed size of a back reference token.
+     */
+    static final int TOKEN_LENGTH = 3;
+
+    // Back references take the decimal headers with byte counts 8-15, which are otherwise invalid.
+    static final int TOKEN = 0xc8;
+
+    private static final int HASH_BITS = 14;
+
+    private final int[] heads = new int[1 << HASH_BITS];
+    private final int[] links = new int[WINDOW_SIZE];
+    // Stamp of the message start. Stamps below it are stale.
+    private int base = 1;
+    private int start = 0;
+    private int nextIndex = 0;
+    private int matchDistance = 0;
+
+    /**
+     * Starts a new message.
+     *
+     * @param start Index of the first byte of the message.
+     * @param length Number of bytes in the message.
+     */
+    void reset(final int start, final int length) {
+        final long nextBase = (long) base + (nextIndex - this.start);
+        if ((nextBase + length) >= Integer.MAX_VALUE) {
+            Arrays.fill(heads, 0);
+            base = 1;
+        } else {
+            base = (int) nextBase;
+        }
+        this.start = start;
+        nextIndex = start;
+    }
+
+    /**
+     * Finds the longest earlier match of the bytes at the given index.
+     *
+     * <p>All positions before the index are added to the chains first.
+     *
+     * @param source Source bytes.
+     * @param index Index of the bytes to match.
+     * @param end Index one past the last usable byte.
+     * @param maxChain Maximum number of candidates to compare.
+     * @param niceLength Match length that ends the search early.
+     * @return Match length, or 0 if no match of at least {@link #MIN_LENGTH} bytes is found.
+     */
+    int find(final byte[] source, final int index, final int end, final int maxChain, final int niceLength) {
+        return find(source, index, end, maxChain, niceLength, 0, 0);
+    }
+
+    /**
+     * Finds the longest earlier match of the bytes at the given index, starting from a known one.
+     *
+     * <p>Only candidates longer than the known match are compared in full, and a known match
+     * of at least the nice length is taken as is.
+     *
+     * @param source Source bytes.
+     * @param index Index of the bytes to match.
+     * @param end Index one past the last usable byte.
+     * @param maxChain Maximum number of candidates to compare.
+     * @param niceLength Match length that ends the search early.
+     * @param knownLength Length of a known match, or 0 if none.
+     * @param knownDistance Distance of the known match.
+     * @return Match length, or 0 if no match of at least {@link #MIN_LENGTH} bytes is found.
+     */
+    int find(final byte[] source, final int index, final int end, final int maxChain, final int niceLength,
+            final int knownLength, final int knownDistance) {
+        insertUpTo(source, index, end);
+        if ((end - index) < MIN_LENGTH) {
+            return 0;
+        }
+        final int maxLength = Math.min(MAX_LENGTH, end - index);
+        final int stopLength = Math.min(niceLength, maxLength);
+        int bestLength = Math.min(knownLength, maxLength);
+        matchDistance = knownDistance;
+        if (bestLength >= stopLength) {
+            return bestLength;
+        }
+        final int stamp = base + (index - start);
+        int candidate = heads[hash(source, index)];
+        for (int chain = 0; (chain < maxChain) && (candidate >= base) && ((stamp - candidate) <= WINDOW_SIZE); ++chain) {
+            // Overlapping parse windows may have added positions at or past the index.
+            if (candidate < stamp) {
+                final int candidateIndex = start + (candidate - base);
+                if (source[candidateIndex + bestLength] == source[index + bestLength]) {
+                    int length = 0;
+                    while ((length < maxLength) && (source[candidateIndex + length] == source[index + length])) {
+                        ++length;
+                    }
+                    if (length > bestLength) {
+                        bestLength = length;
+                        matchDistance = stamp - candidate;
+                        if (length >= stopLength) {
+                            break;
+                        }
+                    }
+                }
+            }
+            final int previous = links[candidate & (WINDOW_SIZE - 1)];
+            if (previous >= candidate) {
+                break;
+            }
+            candidate = previous;
+        }
+        return bestLength >= MIN_LENGTH ? bestLength : 0;
+    }
+
+    /**
+     * Returns the distance of the last match found.
+     *
+     * @return Distance back from the matched index, in [1..{@link #WINDOW_SIZE}].
+     */
+    int matchDistance() {
+        return matchDistance;
+    }
+
+    private void insertUpTo(final byte[] source, final int index, final int end) {
+        // Positions without enough bytes for a hash wait until more of the source is known.
+        final int limit = Math.min(index, end - MIN_LENGTH + 1);
+        while (nextIndex < limit) {
+            final int stamp = base + (nextIndex - start);
+            final int hash = hash(source, nextIndex);
+            links[stamp & (WINDOW_SIZE - 1)] = heads[hash];
+            heads[hash] = stamp;
+            ++nextIndex;
+        }
+    }
+
+    private static int hash(final byte[] source, final int index) {
+        final int value = (source[index] & 0xff) | ((source[index + 1] & 0xff) << 8) |
+                ((source[index + 2] & 0xff) << 16) | (source[index + 3] << 24);
+        return (value * 0x9e3779b1) >>> (Integer.SIZE - HASH_BITS);
+    }
+
+    /**
+     * Writes a back reference token.
+     *
+     * @param zappyBuffer Compressed buffer. It must be little-endian.
+     * @param distance Distance back from the current position, in [1..{@link #WINDOW_SIZE}].
+     * @param length Number of bytes to copy, in [{@link #MIN_LENGTH}..{@link #MAX_LENGTH}].
+     */
+    static void putToken(final ByteBuffer zappyBuffer, final int distance, final int length) {
+        final int value = distance - 1;
+        zappyBuffer.put((byte) (TOKEN | (value >>> 10)));
+        zappyBuffer.putShort((short) (((value & 0x3ff) << 6) | (length - MIN_LENGTH)));
+    }
+}
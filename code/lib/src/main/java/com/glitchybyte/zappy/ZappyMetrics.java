@@ -0,0 +1,441 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opt-in codec metrics.
+ *
+ * <p>Attach an instance with {@link Zappy#withMetrics(ZappyMetrics)}. One instance can be shared
+ * by many Zappy objects. Counters are striped {@link LongAdder}s, so threads don't contend when
+ * recording. Read them with {@link #snapshot()}, or over JMX with {@link #registerMBean(String)}.
+ *
+ * <p>One-shot and batch encodes and decodes are recorded. Streams are not. Without metrics
+ * attached, nothing is recorded and encoding checks for metrics once per output chunk, not
+ * per token: token types are counted from the compressed bytes, only when metrics are on.
+ */
+public final class ZappyMetrics implements ZappyMetricsMXBean {
+
+    /**
+     * Token types, as emitted by the encoder.
+     */
+    public enum TokenType {
+        /** Plain ASCII character. */
+        ASCII,
+        /** Group of up to 31 raw bytes. */
+        BLOB,
+        /** Run of 3 to 31 repeated bytes. */
+        REPEAT,
+        /** Decimal number. */
+        DECIMAL,
+        /** Hexadecimal number. */
+        HEX,
+        /** Table 0 contraction, 1 byte. */
+        FAST_CONTRACTION,
+        /** Tables 1-16 contraction, 2 bytes. */
+        CONTRACTION,
+        /** Copy of earlier bytes of the message, 3 bytes. */
+        BACK_REFERENCE
+    }
+
+    /**
+     * Causes of decode failures.
+     */
+    public enum DecodeFailure {
+        /** A character is not in the base64 alphabet, or that of another text transport. */
+        INVALID_BASE64,
+        /** The text length is not a valid length for the transport. */
+        INVALID_LENGTH,
+        /** A token is cut short by the end of the message. */
+        TRUNCATED_TOKEN,
+        /** A number token has an invalid byte count. */
+        INVALID_NUMBER,
+        /** A contraction token refers to a missing table or entry. */
+        UNKNOWN_CONTRACTION,
+        /** The codebook id header refers to a codebook not in the registry. */
+        UNKNOWN_CODEBOOK,
+        /** A back reference reaches before the start of the message. */
+        INVALID_BACK_REFERENCE,
+        /** Anything else. */
+        OTHER
+    }
+
+    /**
+     * Latency distribution in power of 2 buckets.
+     *
+     * @param count Number of samples.
+     * @param totalNanos Sum of all samples in nanoseconds.
+     * @param buckets Bucket i counts samples under 2^i nanoseconds, and at least 2^(i-1).
+     */
+    public record Latency(long count, long totalNanos, long[] buckets) {
+
+        /**
+         * Returns the mean latency.
+         *
+         * @return Mean latency in nanoseconds, or 0 if there are no samples.
+         */
+        public long meanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * Returns an upper bound of a latency percentile, the top of its bucket.
+         *
+         * @param percentile Percentile in [0..100].
+         * @return Latency in nanoseconds, or 0 if there are no samples.
+         */
+        public long percentileNanos(final double percentile) {
+            if ((percentile < 0) || (percentile > 100)) {
+                throw new IllegalArgumentException("Invalid percentile: " + percentile);
+            }
+            final long total = Math.max(count, 1);
+            final long rank = (long) Math.ceil((percentile / 100) * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; ++i) {
+                seen += buckets[i];
+                if ((seen >= rank) && (seen > 0)) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Metrics at one moment.
+     *
+     * @param encodedMessages Number of messages encoded.
+     * @param encodeInputBytes Number of UTF-8 bytes encoded.
+     * @param encodeCompressedBytes Number of compressed bytes produced, before base64.
+     * @param encodeTextBytes Number of base64 characters produced.
+     * @param decodedMessages Number of messages decoded successfully.
+     * @param decodeTextBytes Number of base64 characters decoded successfully.
+     * @param decodeCompressedBytes Number of compressed bytes decoded successfully.
+     * @param decodeOutputBytes Number of UTF-8 bytes produced by decoding.
+     * @param tokenCounts Number of tokens emitted, by type.
+     * @param decodeFailures Number of failed decodes, by cause.
+     * @param encodeLatency Encode latency distribution.
+     * @param decodeLatency Successful decode latency distribution.
+     */
+    public record Snapshot(long encodedMessages, long encodeInputBytes, long encodeCompressedBytes, long encodeTextBytes,
+            long decodedMessages, long decodeTextBytes, long decodeCompressedBytes, long decodeOutputBytes,
+            Map<TokenType, Long> tokenCounts, Map<DecodeFailure, Long> decodeFailures,
+            Latency encodeLatency, Latency decodeLatency) {
+
+        /**
+         * Returns the ratio of base64 characters to UTF-8 bytes for encoding.
+         *
+         * @return Encoded size over input size, or 0 if nothing was encoded.
+         */
+        public double encodeRatio() {
+            return encodeInputBytes == 0 ? 0 : (double) encodeTextBytes / encodeInputBytes;
+        }
+    }
+
+    // Bucket 40 is about 18 minutes, anything longer shares it.
+    private static final int LATENCY_BUCKET_COUNT = 41;
+
+    private final LongAdder encodedMessages = new LongAdder();
+    private final LongAdder encodeInputBytes = new LongAdder();
+    private final LongAdder encodeCompressedBytes = new LongAdder();
+    private final LongAdder encodeTextBytes = new LongAdder();
+    private final LongAdder decodedMessages = new LongAdder();
+    private final LongAdder decodeTextBytes = new LongAdder();
+    private final LongAdder decodeCompressedBytes = new LongAdder();
+    private final LongAdder decodeOutputBytes = new LongAdder();
+    private final LongAdder[] tokenCounts = createAdders(TokenType.values().length);
+    private final LongAdder[] decodeFailures = createAdders(DecodeFailure.values().length);
+    private final LongAdder encodeNanos = new LongAdder();
+    private final LongAdder[] encodeLatencyBuckets = createAdders(LATENCY_BUCKET_COUNT);
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LongAdder[] decodeLatencyBuckets = createAdders(LATENCY_BUCKET_COUNT);
+
+    /**
+     * Creates empty metrics.
+     */
+    public ZappyMetrics() {
+        // Nothing recorded yet.
+    }
+
+    private static LongAdder[] createAdders(final int count) {
+        final LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; ++i) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Counts the tokens in a range of compressed bytes.
+     *
+     * <p>The range must start at a token. The last token may end past it.
+     *
+     * @param zappy Compressed bytes.
+     * @param from Index of the first token.
+     * @param to Index one past the last token start.
+     * @return Index one past the last token counted. It may be past {@code to}.
+     */
+    int countTokens(final byte[] zappy, final int from, final int to) {
+        // Lengths follow from the first byte of each token.
+        int ascii = 0;
+        int blob = 0;
+        int repeat = 0;
+        int decimal = 0;
+        int hex = 0;
+        int fastContraction = 0;
+        int contraction = 0;
+        int backReference = 0;
+        int walker = from;
+        while (walker < to) {
+            final int b = zappy[walker] & 0xff;
+            if (b < 0x80) {
+                ++ascii;
+                walker += 1;
+            } else if (b < 0xa0) {
+                ++blob;
+                walker += 1 + (b & 0x1f);
+            } else if (b < 0xc0) {
+                // Codebook id headers are empty repeats, and aren't counted.
+                if (b != ZappyCodebookRegistry.HEADER_TOKEN) {
+                    ++repeat;
+                }
+                walker += 2;
+            } else if (b < ZappyMatchFinder.TOKEN) {
+                ++decimal;
+                walker += 1 + (b & 0x0f);
+            } else if (b < 0xd0) {
+                ++backReference;
+                walker += ZappyMatchFinder.TOKEN_LENGTH;
+            } else if (b < 0xe0) {
+                ++hex;
+                walker += 1 + (b & 0x07);
+            } else if (b < 0xf0) {
+                ++fastContraction;
+                walker += 1;
+            } else {
+                ++contraction;
+                walker += 2;
+            }
+        }
+        addTokens(TokenType.ASCII, ascii);
+        addTokens(TokenType.BLOB, blob);
+        addTokens(TokenType.REPEAT, repeat);
+        addTokens(TokenType.DECIMAL, decimal);
+        addTokens(TokenType.HEX, hex);
+        addTokens(TokenType.FAST_CONTRACTION, fastContraction);
+        addTokens(TokenType.CONTRACTION, contraction);
+        addTokens(TokenType.BACK_REFERENCE, backReference);
+        return walker;
+    }
+
+    private void addTokens(final TokenType type, final int count) {
+        if (count > 0) {
+            tokenCounts[type.ordinal()].add(count);
+        }
+    }
+
+    /**
+     * Records an encoded message.
+     *
+     * @param inputBytes Number of UTF-8 bytes.
+     * @param compressedBytes Number of compressed bytes.
+     * @param textBytes Number of base64 characters.
+     * @param nanos Time taken.
+     */
+    void recordEncode(final int inputBytes, final int compressedBytes, final int textBytes, final long nanos) {
+        encodedMessages.increment();
+        encodeInputBytes.add(inputBytes);
+        encodeCompressedBytes.add(compressedBytes);
+        encodeTextBytes.add(textBytes);
+        encodeNanos.add(nanos);
+        encodeLatencyBuckets[latencyBucket(nanos)].increment();
+    }
+
+    /**
+     * Records a decoded message.
+     *
+     * @param textBytes Number of base64 characters.
+     * @param compressedBytes Number of compressed bytes.
+     * @param outputBytes Number of UTF-8 bytes.
+     * @param nanos Time taken.
+     */
+    void recordDecode(final int textBytes, final int compressedBytes, final int outputBytes, final long nanos) {
+        decodedMessages.increment();
+        decodeTextBytes.add(textBytes);
+        decodeCompressedBytes.add(compressedBytes);
+        decodeOutputBytes.add(outputBytes);
+        decodeNanos.add(nanos);
+        decodeLatencyBuckets[latencyBucket(nanos)].increment();
+    }
+
+    /**
+     * Records a failed decode.
+     *
+     * @param e The failure.
+     */
+    void recordDecodeFailure(final ZappyParseException e) {
+        decodeFailures[e.failure().ordinal()].increment();
+    }
+
+    private static int latencyBucket(final long nanos) {
+        return Math.min(LATENCY_BUCKET_COUNT - 1, Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+    }
+
+    /**
+     * Returns the metrics at this moment.
+     *
+     * <p>Counters are read one by one while others may be recording, so totals of a snapshot
+     * taken under load can be off by the messages in flight.
+     *
+     * @return A snapshot.
+     */
+    public Snapshot snapshot() {
+        final Map<TokenType, Long> tokens = new EnumMap<>(TokenType.class);
+        for (final TokenType type: TokenType.values()) {
+            tokens.put(type, tokenCounts[type.ordinal()].sum());
+        }
+        final Map<DecodeFailure, Long> failures = new EnumMap<>(DecodeFailure.class);
+        for (final DecodeFailure failure: DecodeFailure.values()) {
+            failures.put(failure, decodeFailures[failure.ordinal()].sum());
+        }
+        return new Snapshot(encodedMessages.sum(), encodeInputBytes.sum(), encodeCompressedBytes.sum(),
+                encodeTextBytes.sum(), decodedMessages.sum(), decodeTextBytes.sum(), decodeCompressedBytes.sum(),
+                decodeOutputBytes.sum(), Collections.unmodifiableMap(tokens), Collections.unmodifiableMap(failures),
+                latency(encodeNanos, encodeLatencyBuckets), latency(decodeNanos, decodeLatencyBuckets));
+    }
+
+    private static Latency latency(final LongAdder nanos, final LongAdder[] adders) {
+        final long[] buckets = new long[adders.length];
+        long count = 0;
+        for (int i = 0; i < adders.length; ++i) {
+            buckets[i] = adders[i].sum();
+            count += buckets[i];
+        }
+        return new Latency(count, nanos.sum(), buckets);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     *
+     * @param name Value of the "name" key of the object name, to tell instances apart.
+     * @return The object name registered, under the "com.glitchybyte.zappy" domain.
+     * @throws JMException if the name is invalid or already registered.
+     */
+    public ObjectName registerMBean(final String name) throws JMException {
+        final ObjectName objectName = new ObjectName("com.glitchybyte.zappy:type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override
+    public long getEncodedMessages() {
+        return encodedMessages.sum();
+    }
+
+    @Override
+    public long getEncodeInputBytes() {
+        return encodeInputBytes.sum();
+    }
+
+    @Override
+    public long getEncodeCompressedBytes() {
+        return encodeCompressedBytes.sum();
+    }
+
+    @Override
+    public long getEncodeTextBytes() {
+        return encodeTextBytes.sum();
+    }
+
+    @Override
+    public long getDecodedMessages() {
+        return decodedMessages.sum();
+    }
+
+    @Override
+    public long getDecodeTextBytes() {
+        return decodeTextBytes.sum();
+    }
+
+    @Override
+    public long getDecodeCompressedBytes() {
+        return decodeCompressedBytes.sum();
+    }
+
+    @Override
+    public long getDecodeOutputBytes() {
+        return decodeOutputBytes.sum();
+    }
+
+    @Override
+    public Map<String, Long> getTokenCounts() {
+        final Map<String, Long> counts = new LinkedHashMap<>();
+        for (final TokenType type: TokenType.values()) {
+            counts.put(type.name(), tokenCounts[type.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getDecodeFailures() {
+        final Map<String, Long> counts = new LinkedHashMap<>();
+        for (final DecodeFailure failure: DecodeFailure.values()) {
+            counts.put(failure.name(), decodeFailures[failure.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public long getEncodeMeanNanos() {
+        return latency(encodeNanos, encodeLatencyBuckets).meanNanos();
+    }
+
+    @Override
+    public long getEncodeP50Nanos() {
+        return latency(encodeNanos, encodeLatencyBuckets).percentileNanos(50);
+    }
+
+    @Override
+    public long getEncodeP99Nanos() {
+        return latency(encodeNanos, encodeLatencyBuckets).percentileNanos(99);
+    }
+
+    @Override
+    public long getDecodeMeanNanos() {
+        return latency(decodeNanos, decodeLatencyBuckets).meanNanos();
+    }
+
+    @Override
+    public long getDecodeP50Nanos() {
+        return latency(decodeNanos, decodeLatencyBuckets).percentileNanos(50);
+    }
+
+    @Override
+    public long getDecodeP99Nanos() {
+        return latency(decodeNanos, decodeLatencyBuckets).percentileNanos(99);
+    }
+
+    @Override
+    public void reset() {
+        for (final LongAdder adder: new LongAdder[] { encodedMessages, encodeInputBytes, encodeCompressedBytes,
+                encodeTextBytes, decodedMessages, decodeTextBytes, decodeCompressedBytes, decodeOutputBytes,
+                encodeNanos, decodeNanos }) {
+            adder.reset();
+        }
+        for (final LongAdder[] adders: new LongAdder[][] { tokenCounts, decodeFailures, encodeLatencyBuckets,
+                decodeLatencyBuckets }) {
+            for (final LongAdder adder: adders) {
+                adder.reset();
+            }
+        }
+    }
+}
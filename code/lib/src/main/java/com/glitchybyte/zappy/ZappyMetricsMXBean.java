@@ -0,0 +1,132 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ZappyMetrics}.
+ *
+ * <p>Values are read live, so different attributes may be from slightly different moments.
+ * Use {@link ZappyMetrics#snapshot()} for a consistent set in code.
+ */
+public interface ZappyMetricsMXBean {
+
+    /**
+     * Returns the number of messages encoded.
+     *
+     * @return Number of messages.
+     */
+    long getEncodedMessages();
+
+    /**
+     * Returns the number of UTF-8 bytes encoded.
+     *
+     * @return Number of bytes.
+     */
+    long getEncodeInputBytes();
+
+    /**
+     * Returns the number of compressed bytes produced by encoding, before base64.
+     *
+     * @return Number of bytes.
+     */
+    long getEncodeCompressedBytes();
+
+    /**
+     * Returns the number of base64 characters produced by encoding.
+     *
+     * @return Number of characters.
+     */
+    long getEncodeTextBytes();
+
+    /**
+     * Returns the number of messages decoded successfully.
+     *
+     * @return Number of messages.
+     */
+    long getDecodedMessages();
+
+    /**
+     * Returns the number of base64 characters decoded successfully.
+     *
+     * @return Number of characters.
+     */
+    long getDecodeTextBytes();
+
+    /**
+     * Returns the number of compressed bytes decoded successfully.
+     *
+     * @return Number of bytes.
+     */
+    long getDecodeCompressedBytes();
+
+    /**
+     * Returns the number of UTF-8 bytes produced by decoding.
+     *
+     * @return Number of bytes.
+     */
+    long getDecodeOutputBytes();
+
+    /**
+     * Returns the number of tokens emitted by encoding, by token type name.
+     *
+     * @return Token counts.
+     */
+    Map<String, Long> getTokenCounts();
+
+    /**
+     * Returns the number of failed decodes, by failure name.
+     *
+     * @return Failure counts.
+     */
+    Map<String, Long> getDecodeFailures();
+
+    /**
+     * Returns the mean encode latency.
+     *
+     * @return Mean latency in nanoseconds, or 0 if nothing was encoded.
+     */
+    long getEncodeMeanNanos();
+
+    /**
+     * Returns an upper bound of the median encode latency.
+     *
+     * @return Latency in nanoseconds.
+     */
+    long getEncodeP50Nanos();
+
+    /**
+     * Returns an upper bound of the 99th percentile encode latency.
+     *
+     * @return Latency in nanoseconds.
+     */
+    long getEncodeP99Nanos();
+
+    /**
+     * Returns the mean decode latency.
+     *
+     * @return Mean latency in nanoseconds, or 0 if nothing was decoded.
+     */
+    long getDecodeMeanNanos();
+
+    /**
+     * Returns an upper bound of the median decode latency.
+     *
+     * @return Latency in nanoseconds.
+     */
+    long getDecodeP50Nanos();
+
+    /**
+     * Returns an upper bound of the 99th percentile decode latency.
+     *
+     * @return Latency in nanoseconds.
+     */
+    long getDecodeP99Nanos();
+
+    /**
+     * Sets all counters back to zero.
+     */
+    void reset();
+}
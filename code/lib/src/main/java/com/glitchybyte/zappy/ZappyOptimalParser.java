@@ -0,0 +1,337 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Minimum size token sequence for the {@link ZappyLevel#MAX} level.
+ *
+ * <p>The greedy encoder takes the first token that applies at each position. This parser
+ * instead weighs every token that applies at every position and keeps the cheapest sequence,
+ * using dynamic programming from the end of a window back to its start. It only produces the
+ * tokens the greedy encoder produces, so any decoder reads its output. With back references
+ * on, every length of the longest match at each position is weighed too.
+ *
+ * <p>Sources are parsed in 4 KiB windows, and only the first half of a window is committed
+ * unless it reaches the end, so memory and work per byte are bounded. Messages that fit a
+ * window are parsed exactly. The parsed tokens are kept in the scratch object and committed
+ * across as many calls as the compressed buffer takes, so each window is parsed once.
+ */
+final class ZappyOptimalParser {
+
+    private static final int WINDOW_SIZE = 0x1000;
+    private static final int MAX_RUN = 0x1f;
+    private static final long MAX_NUMBER = 0x7fffffff;
+    // Longest token length that fits its packed form.
+    private static final int MAX_TOKEN_LENGTH = 0x0fff;
+
+    // A token is packed as kind, length and argument.
+    private static final int KIND_ASCII = 0;
+    private static final int KIND_BLOB = 1;
+    private static final int KIND_REPEAT = 2;
+    private static final int KIND_DECIMAL = 3;
+    private static final int KIND_UPPERCASE_HEX = 4;
+    private static final int KIND_LOWERCASE_HEX = 5;
+    private static final int KIND_CONTRACTION = 6;
+    private static final int KIND_BACK_REFERENCE = 7;
+    // Back reference candidates compared per position, and the match length that is good enough
+    // to stop. Positions inside a match at least that long reuse it instead of searching.
+    private static final int MAX_CHAIN = 64;
+    private static final int NICE_LENGTH = 32;
+
+    private final ZappyCodebook codebook;
+    private final ZappyContractionTrie contractionTrie;
+    private final int windowSize;
+
+    /**
+     * Creates an optimal parser.
+     *
+     * @param codebook The compiled contractions used for aiding compression.
+     */
+    ZappyOptimalParser(final ZappyCodebook codebook) {
+        this.codebook = codebook;
+        contractionTrie = codebook.contractionTrie();
+        windowSize = Math.max(WINDOW_SIZE, codebook.maxEntryLength() * 2);
+    }
+
+    private static int token(final int kind, final int length, final int argument) {
+        return (kind << 28) | (length << 16) | argument;
+    }
+
+    private static int tokenKind(final int token) {
+        return token >>> 28;
+    }
+
+    private static int tokenLength(final int token) {
+        return (token >>> 16) & 0x0fff;
+    }
+
+    private static int tokenArgument(final int token) {
+        return token & 0xffff;
+    }
+
+    /**
+     * Adds tokens with the same contract as {@link ZappyEncoder#addTokens}.
+     *
+     * @param zappyBuffer Compressed buffer, with room for {@link ZappyEncoder#FUSED_BUFFER_SIZE} bytes.
+     * @param source Source bytes.
+     * @param index Index of the first byte to encode.
+     * @param tokenLimit No token starts at or after this index.
+     * @param end Index one past the last usable byte.
+     * @param matchFinder Match finder reset at the start of the message, or null for no back references.
+     * @param scratch Scratch object of the pass, holding the parsed tokens between calls.
+     * @return Index of the first byte not yet encoded.
+     */
+    int addTokens(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int tokenLimit, final int end,
+            final ZappyMatchFinder matchFinder, final ZappyScratch scratch) {
+        if ((index < scratch.parseStart) || (index >= scratch.parseCommitLimit)) {
+            final int windowEnd = (int) Math.min(end, (long) index + windowSize);
+            parse(scratch, source, index, windowEnd, matchFinder);
+            scratch.parseStart = index;
+            scratch.parseCommitLimit = windowEnd == end ? tokenLimit : Math.min(tokenLimit, index + (windowSize >> 1));
+        }
+        final int[] tokens = scratch.parseTokens;
+        final int start = scratch.parseStart;
+        final int commitLimit = scratch.parseCommitLimit;
+        int walker = index;
+        while ((walker < commitLimit) && (zappyBuffer.position() < ZappyEncoder.FUSED_FLUSH_THRESHOLD)) {
+            final int token = tokens[walker - start];
+            putToken(zappyBuffer, source, walker, token);
+            walker += tokenLength(token);
+        }
+        return walker;
+    }
+
+    private void parse(final ZappyScratch scratch, final byte[] source, final int start, final int end,
+            final ZappyMatchFinder matchFinder) {
+        final int length = end - start;
+        if (scratch.parseCosts.length <= length) {
+            scratch.parseCosts = new int[windowSize + 1];
+            scratch.parseTokens = new int[windowSize + 1];
+        }
+        // Scratch objects are shared by every codebook. Matches past the array length are dropped.
+        if (scratch.parseMatchLengths.length <= codebook.maxEntryLength()) {
+            scratch.parseMatchLengths = new int[codebook.maxEntryLength() + 1];
+            scratch.parseMatchEntries = new int[codebook.maxEntryLength() + 1];
+        }
+        if ((matchFinder != null) && (scratch.parseBackReferenceLengths.length <= length)) {
+            scratch.parseBackReferenceLengths = new int[windowSize + 1];
+            scratch.parseBackReferenceDistances = new int[windowSize + 1];
+            scratch.parseBackReferenceEnd = 0;
+        }
+        // costs[i] is the fewest bytes that encode the source from start + i to the end, and
+        // tokens[i] the first token of that sequence.
+        final int[] costs = scratch.parseCosts;
+        final int[] tokens = scratch.parseTokens;
+        final int[] matchLengths = scratch.parseMatchLengths;
+        final int[] matchEntries = scratch.parseMatchEntries;
+        // Back references look back, so their matches are found front to back first.
+        final int[] backReferenceLengths = scratch.parseBackReferenceLengths;
+        final int[] backReferenceDistances = scratch.parseBackReferenceDistances;
+        if (matchFinder != null) {
+            final int known = reuseBackReferences(scratch, start);
+            for (int i = known; i < length; ++i) {
+                // The rest of the previous match is a match at the same distance to start from.
+                int knownLength = 0;
+                int knownDistance = 0;
+                if ((i > 0) && (backReferenceLengths[i - 1] > ZappyMatchFinder.MIN_LENGTH)) {
+                    knownLength = backReferenceLengths[i - 1] - 1;
+                    knownDistance = backReferenceDistances[i - 1];
+                }
+                backReferenceLengths[i] = matchFinder.find(source, start + i, end, MAX_CHAIN, NICE_LENGTH,
+                        knownLength, knownDistance);
+                backReferenceDistances[i] = matchFinder.matchDistance();
+            }
+            scratch.parseBackReferenceStart = start;
+            scratch.parseBackReferenceEnd = end;
+        }
+        costs[length] = 0;
+        for (int i = length - 1; i >= 0; --i) {
+            final int index = start + i;
+            final byte b = source[index];
+            // Contractions. Checked first so they win ties, as with the greedy encoder.
+            int bestCost = Integer.MAX_VALUE;
+            int bestToken = 0;
+            final int matchCount = contractionTrie.findAll(source, index, end, matchLengths, matchEntries);
+            for (int m = 0; (m < matchCount) && (matchLengths[m] <= MAX_TOKEN_LENGTH); ++m) {
+                final int entry = matchEntries[m];
+                final int cost = ((entry >> 8) == 0 ? 1 : 2) + costs[i + matchLengths[m]];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestToken = token(KIND_CONTRACTION, matchLengths[m], entry);
+                }
+            }
+            // Repeats of any length from 3.
+            int run = 1;
+            while ((run < MAX_RUN) && ((i + run) < length) && (source[index + run] == b)) {
+                ++run;
+            }
+            for (int count = 3; count <= run; ++count) {
+                final int cost = 2 + costs[i + count];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestToken = token(KIND_REPEAT, count, 0);
+                }
+            }
+            // Numbers. No leading zeroes, as the decoder doesn't write them back.
+            if ((b > '0') && (b <= '9')) {
+                long value = 0;
+                for (int count = 1; (count <= 10) && ((i + count) <= length); ++count) {
+                    final byte digit = source[index + count - 1];
+                    if ((digit < '0') || (digit > '9')) {
+                        break;
+                    }
+                    value = (value * 10) + (digit - '0');
+                    if (value > MAX_NUMBER) {
+                        break;
+                    }
+                    if (value >= 100) {
+                        final int cost = 1 + numberByteCount(value) + costs[i + count];
+                        if (cost < bestCost) {
+                            bestCost = cost;
+                            bestToken = token(KIND_DECIMAL, count, 0);
+                        }
+                    }
+                }
+            }
+            for (int kind = KIND_UPPERCASE_HEX; kind <= KIND_LOWERCASE_HEX; ++kind) {
+                final boolean isUppercase = kind == KIND_UPPERCASE_HEX;
+                if ((b == '0') || !isHexDigit(b, isUppercase)) {
+                    continue;
+                }
+                long value = 0;
+                for (int count = 1; (count <= 8) && ((i + count) <= length); ++count) {
+                    final byte digit = source[index + count - 1];
+                    if (!isHexDigit(digit, isUppercase)) {
+                        break;
+                    }
+                    value = (value << 4) | hexDigitValue(digit);
+                    if (value > MAX_NUMBER) {
+                        break;
+                    }
+                    if (value >= 0x1000) {
+                        final int cost = 1 + (value > 0xffff ? 4 : 2) + costs[i + count];
+                        if (cost < bestCost) {
+                            bestCost = cost;
+                            bestToken = token(kind, count, 0);
+                        }
+                    }
+                }
+            }
+            // Literals.
+            if (b >= 0) {
+                final int cost = 1 + costs[i + 1];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestToken = token(KIND_ASCII, 1, 0);
+                }
+            } else {
+                // Blobs may span ASCII bytes, which pays off when joining two non-ASCII runs.
+                final int limit = Math.min(MAX_RUN, length - i);
+                for (int count = 1; count <= limit; ++count) {
+                    final int cost = 1 + count + costs[i + count];
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestToken = token(KIND_BLOB, count, 0);
+                    }
+                }
+            }
+            // Back references of any length up to the longest match.
+            if ((matchFinder != null) && (backReferenceLengths[i] > 0)) {
+                for (int count = ZappyMatchFinder.MIN_LENGTH; count <= backReferenceLengths[i]; ++count) {
+                    final int cost = ZappyMatchFinder.TOKEN_LENGTH + costs[i + count];
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestToken = token(KIND_BACK_REFERENCE, count, backReferenceDistances[i] - 1);
+                    }
+                }
+            }
+            costs[i] = bestCost;
+            tokens[i] = bestToken;
+        }
+    }
+
+    private static int reuseBackReferences(final ZappyScratch scratch, final int start) {
+        // Matches of the last window hold, unless its end cut them short.
+        final int reusableEnd = scratch.parseBackReferenceEnd - ZappyMatchFinder.MAX_LENGTH;
+        if ((start < scratch.parseBackReferenceStart) || (start >= reusableEnd)) {
+            return 0;
+        }
+        final int shift = start - scratch.parseBackReferenceStart;
+        final int count = reusableEnd - start;
+        System.arraycopy(scratch.parseBackReferenceLengths, shift, scratch.parseBackReferenceLengths, 0, count);
+        System.arraycopy(scratch.parseBackReferenceDistances, shift, scratch.parseBackReferenceDistances, 0, count);
+        return count;
+    }
+
+    private static boolean isHexDigit(final byte b, final boolean isUppercase) {
+        return ((b >= '0') && (b <= '9')) ||
+                (isUppercase ? ((b >= 'A') && (b <= 'F')) : ((b >= 'a') && (b <= 'f')));
+    }
+
+    private static int hexDigitValue(final byte b) {
+        if (b <= '9') {
+            return b - '0';
+        }
+        return (b & 0x0f) + 9; // 'A' and 'a' are 0x41 and 0x61.
+    }
+
+    private static int numberByteCount(final long value) {
+        if (value > 0xffff) {
+            return 4;
+        }
+        return value > 0xff ? 2 : 1;
+    }
+
+    private void putToken(final ByteBuffer zappyBuffer, final byte[] source, final int index, final int token) {
+        final int length = tokenLength(token);
+        switch (tokenKind(token)) {
+            case KIND_ASCII -> zappyBuffer.put(source[index]);
+            case KIND_BLOB -> {
+                zappyBuffer.put((byte) (0x80 | length));
+                zappyBuffer.put(source, index, length);
+            }
+            case KIND_REPEAT -> {
+                zappyBuffer.put((byte) (0xa0 | length));
+                zappyBuffer.put(source[index]);
+            }
+            case KIND_DECIMAL -> {
+                long value = 0;
+                for (int i = index; i < (index + length); ++i) {
+                    value = (value * 10) + (source[i] - '0');
+                }
+                putNumber(zappyBuffer, 0xc0, value, numberByteCount(value));
+            }
+            case KIND_UPPERCASE_HEX, KIND_LOWERCASE_HEX -> {
+                long value = 0;
+                for (int i = index; i < (index + length); ++i) {
+                    value = (value << 4) | hexDigitValue(source[i]);
+                }
+                final int prefix = tokenKind(token) == KIND_UPPERCASE_HEX ? 0xd0 : 0xd8;
+                putNumber(zappyBuffer, prefix, value, value > 0xffff ? 4 : 2);
+            }
+            case KIND_BACK_REFERENCE -> ZappyMatchFinder.putToken(zappyBuffer, tokenArgument(token) + 1, length);
+            default -> {
+                final int entry = tokenArgument(token);
+                final int tableId = entry >> 8;
+                if (tableId == 0) {
+                    zappyBuffer.put((byte) (0xe0 | (entry & 0xff)));
+                } else {
+                    zappyBuffer.put((byte) (0xf0 | (tableId - 1)));
+                    zappyBuffer.put((byte) entry);
+                }
+            }
+        }
+    }
+
+    private static void putNumber(final ByteBuffer zappyBuffer, final int prefix, final long value, final int byteCount) {
+        zappyBuffer.put((byte) (prefix | byteCount));
+        switch (byteCount) {
+            case 4 -> zappyBuffer.putInt((int) value);
+            case 2 -> zappyBuffer.putShort((short) value);
+            default -> zappyBuffer.put((byte) value);
+        }
+    }
+}
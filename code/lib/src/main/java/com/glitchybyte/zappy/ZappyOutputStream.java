@@ -0,0 +1,104 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+
+/**
+ * Output stream that Zappy encodes UTF-8 bytes written to it.
+ *
+ * <p>Encoding is incremental with bounded memory, and the text written downstream is identical
+ * to {@link Zappy#encode} of the whole payload. The end of the text is only written by
+ * {@link #finish()} or {@link #close()}.
+ *
+ * <p>Streams are not thread-safe.
+ */
+public final class ZappyOutputStream extends OutputStream {
+
+    private final ZappyStreamEncoder streamEncoder;
+    private final byte[] single = new byte[1];
+
+    /**
+     * Creates a stream that writes the encoded text as bytes, ASCII for text transports.
+     *
+     * @param zappy Zappy object whose contractions are used.
+     * @param out Destination stream.
+     */
+    public ZappyOutputStream(final Zappy zappy, final OutputStream out) {
+        this(zappy, ZappyTextSink.of(Objects.requireNonNull(out)));
+    }
+
+    /**
+     * Creates a stream that writes the encoded text as chars.
+     *
+     * @param zappy Zappy object whose contractions are used.
+     * @param out Destination writer.
+     */
+    public ZappyOutputStream(final Zappy zappy, final Writer out) {
+        this(zappy, ZappyTextSink.of(Objects.requireNonNull(out)));
+    }
+
+    /**
+     * Creates a stream that writes the encoded text as bytes, ASCII for text transports.
+     *
+     * @param zappy Zappy object whose contractions are used.
+     * @param out Destination channel.
+     */
+    public ZappyOutputStream(final Zappy zappy, final WritableByteChannel out) {
+        this(zappy, ZappyTextSink.of(Objects.requireNonNull(out)));
+    }
+
+    private ZappyOutputStream(final Zappy zappy, final ZappyTextSink sink) {
+        streamEncoder = new ZappyStreamEncoder(zappy.encoder(), sink);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        single[0] = (byte) b;
+        streamEncoder.write(single, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        streamEncoder.write(b, off, len);
+    }
+
+    /**
+     * Writes all text encoded so far downstream and flushes it.
+     *
+     * <p>The last few bytes written may stay pending, as their tokens depend on what comes next.
+     *
+     * @throws IOException if the destination fails.
+     */
+    @Override
+    public void flush() throws IOException {
+        streamEncoder.flush();
+    }
+
+    /**
+     * Finishes encoding without closing the destination.
+     *
+     * <p>Nothing can be written afterward.
+     *
+     * @throws IOException if the destination fails.
+     */
+    public void finish() throws IOException {
+        streamEncoder.finish();
+    }
+
+    /**
+     * Finishes encoding and closes the destination.
+     *
+     * @throws IOException if the destination fails.
+     */
+    @Override
+    public void close() throws IOException {
+        streamEncoder.close();
+    }
+}
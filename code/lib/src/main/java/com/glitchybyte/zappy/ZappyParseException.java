@@ -8,13 +8,26 @@ package com.glitchybyte.zappy;
  */
 public class ZappyParseException extends Exception {
 
+    private final ZappyMetrics.DecodeFailure failure;
+
     /**
      * Creates a parse exception with a message.
      *
      * @param message Message to attach to the exception.
      */
     public ZappyParseException(final String message) {
+        this(message, ZappyMetrics.DecodeFailure.OTHER);
+    }
+
+    /**
+     * Creates a parse exception with a message and the kind of failure.
+     *
+     * @param message Message to attach to the exception.
+     * @param failure What went wrong.
+     */
+    public ZappyParseException(final String message, final ZappyMetrics.DecodeFailure failure) {
         super(message);
+        this.failure = failure;
     }
 
     /**
@@ -24,5 +37,15 @@ public class ZappyParseException extends Exception {
      */
     public ZappyParseException(final Throwable cause) {
         super(cause);
+        failure = ZappyMetrics.DecodeFailure.OTHER;
+    }
+
+    /**
+     * Returns the kind of failure.
+     *
+     * @return What went wrong.
+     */
+    public ZappyMetrics.DecodeFailure failure() {
+        return failure;
     }
 }
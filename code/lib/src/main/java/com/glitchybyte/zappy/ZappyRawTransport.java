@@ -0,0 +1,59 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Raw transport. Compressed bytes go on the wire as they are.
+ *
+ * <p>Strings hold one byte per char as Latin-1.
+ */
+final class ZappyRawTransport implements ZappyTransport {
+
+    @Override
+    public int groupSize() {
+        return 1;
+    }
+
+    @Override
+    public int encodedLength(final int byteCount) {
+        return byteCount;
+    }
+
+    @Override
+    public int encode(final byte[] bytes, final int offset, final int length, final byte[] dst, final int dstOffset) {
+        System.arraycopy(bytes, offset, dst, dstOffset, length);
+        return length;
+    }
+
+    @Override
+    public ByteBuffer decode(final CharSequence str, final ByteBuffer buffer) throws ZappyParseException {
+        final int length = str.length();
+        final ByteBuffer rawBuffer = GByteBuffer.ensureCapacity(buffer.clear(), length);
+        final byte[] bytes = rawBuffer.array();
+        for (int i = 0; i < length; ++i) {
+            final char c = str.charAt(i);
+            if (c > 0xff) {
+                throw new ZappyParseException("Invalid raw character!", ZappyMetrics.DecodeFailure.INVALID_BASE64);
+            }
+            bytes[i] = (byte) c;
+        }
+        rawBuffer.position(length);
+        return rawBuffer;
+    }
+
+    @Override
+    public ByteBuffer decode(final byte[] data, final int offset, final int length, final ByteBuffer buffer) {
+        final ByteBuffer rawBuffer = GByteBuffer.ensureCapacity(buffer.clear(), length);
+        System.arraycopy(data, offset, rawBuffer.array(), 0, length);
+        rawBuffer.position(length);
+        return rawBuffer;
+    }
+
+    @Override
+    public String toString() {
+        return "RAW";
+    }
+}
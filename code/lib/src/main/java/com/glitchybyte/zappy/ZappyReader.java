@@ -0,0 +1,122 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Reader that reads the text of a Zappy compressed string.
+ *
+ * <p>The encoded text is read from upstream in chunks and decoded incrementally with bounded
+ * memory. UTF-8 sequences split across chunks are reassembled, and malformed ones are replaced
+ * the same way {@link Zappy#decode} does. An invalid message fails the read with an
+ * {@link IOException} whose cause is a {@link ZappyParseException}.
+ *
+ * <p>Readers are not thread-safe.
+ */
+public final class ZappyReader extends Reader {
+
+    private static final int BUFFER_SIZE = 0x2000;
+
+    private final ZappyStreamDecoder streamDecoder;
+    private final CharsetDecoder utf8Decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // Both buffers are kept ready for reading.
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE).flip();
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE).flip();
+    private boolean isBytesEnd = false;
+    private boolean isCharsEnd = false;
+
+    /**
+     * Creates a reader that reads the encoded text as bytes, ASCII for text transports.
+     *
+     * @param zappy Zappy object whose contractions are used.
+     * @param in Origin stream.
+     */
+    public ZappyReader(final Zappy zappy, final InputStream in) {
+        this(zappy, ZappyTextSource.of(Objects.requireNonNull(in)));
+    }
+
+    /**
+     * Creates a reader that reads the encoded text as chars.
+     *
+     * @param zappy Zappy object whose contractions are used.
+     * @param in Origin reader.
+     */
+    public ZappyReader(final Zappy zappy, final Reader in) {
+        this(zappy, ZappyTextSource.of(Objects.requireNonNull(in)));
+    }
+
+    /**
+     * Creates a reader that reads the encoded text as bytes, ASCII for text transports.
+     *
+     * @param zappy Zappy object whose contractions are used.
+     * @param in Origin channel. It must be blocking.
+     */
+    public ZappyReader(final Zappy zappy, final ReadableByteChannel in) {
+        this(zappy, ZappyTextSource.of(Objects.requireNonNull(in)));
+    }
+
+    private ZappyReader(final Zappy zappy, final ZappyTextSource source) {
+        streamDecoder = new ZappyStreamDecoder(zappy.decoder(), source);
+    }
+
+    @Override
+    public int read(final char[] cbuf, final int off, final int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, cbuf.length);
+        if (len == 0) {
+            return 0;
+        }
+        while (!chars.hasRemaining()) {
+            if (isCharsEnd) {
+                return -1;
+            }
+            decodeChars();
+        }
+        final int count = Math.min(len, chars.remaining());
+        chars.get(cbuf, off, count);
+        return count;
+    }
+
+    private void decodeChars() throws IOException {
+        chars.clear();
+        while (chars.position() == 0) {
+            if (isBytesEnd) {
+                utf8Decoder.decode(bytes, chars, true);
+                utf8Decoder.flush(chars);
+                isCharsEnd = true;
+                break;
+            }
+            utf8Decoder.decode(bytes, chars, false);
+            if (chars.position() > 0) {
+                break;
+            }
+            // Not enough bytes for a whole char.
+            bytes.compact();
+            final int count = streamDecoder.read(bytes.array(), bytes.position(), bytes.remaining());
+            if (count < 0) {
+                isBytesEnd = true;
+            } else {
+                bytes.position(bytes.position() + count);
+            }
+            bytes.flip();
+        }
+        chars.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        streamDecoder.close();
+    }
+}
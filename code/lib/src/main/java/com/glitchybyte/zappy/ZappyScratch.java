@@ -0,0 +1,157 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per-call scratch buffers.
+ *
+ * <p>Scratch objects are handed out from a small lock-free striped pool, so concurrent calls
+ * never share buffers, and steady state calls reuse them instead of allocating. Stripes are
+ * picked from the calling thread, which keeps platform threads mostly on their own slot while
+ * still letting short-lived virtual threads reuse buffers left behind by others.
+ */
+final class ZappyScratch {
+
+    private static final int MAX_POOLED_CAPACITY = 1 << 20;
+    private static final int PROBE_COUNT = 4;
+    private static final AtomicReferenceArray<ZappyScratch> pool = createPool();
+
+    ByteBuffer sourceBuffer = GByteBuffer.create();
+    ByteBuffer zappyBuffer = GByteBuffer.create();
+    ByteBuffer base64Buffer = GByteBuffer.create();
+    ByteBuffer textBuffer = GByteBuffer.create();
+    // Decoding to chars without a string. Created on first use.
+    CharsetDecoder utf8Decoder = null;
+    CharBuffer charBuffer = null;
+    // Optimal parse state. Sized by the window, not the message, so never trimmed.
+    int[] parseCosts = new int[0];
+    int[] parseTokens = new int[0];
+    int[] parseMatchLengths = new int[0];
+    int[] parseMatchEntries = new int[0];
+    int[] parseBackReferenceLengths = new int[0];
+    int[] parseBackReferenceDistances = new int[0];
+    // Source range whose parsed tokens are still to be committed. Later calls of the same pass
+    // resume from them instead of parsing again.
+    int parseStart = 0;
+    int parseCommitLimit = 0;
+    // Source range of the back reference matches of the last parse. Matches not cut short by
+    // its end are reused where the next window overlaps it.
+    int parseBackReferenceStart = 0;
+    int parseBackReferenceEnd = 0;
+    // Back reference state. Created on first use, and fixed in size.
+    private ZappyMatchFinder matchFinder = null;
+
+    private static AtomicReferenceArray<ZappyScratch> createPool() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        final int size = Integer.highestOneBit(Math.max(1, processors * 2) - 1) << 1;
+        return new AtomicReferenceArray<>(Math.max(PROBE_COUNT, size));
+    }
+
+    private static int stripe() {
+        final int hash = System.identityHashCode(Thread.currentThread());
+        return (hash ^ (hash >>> 16)) & (pool.length() - 1);
+    }
+
+    /**
+     * Takes a scratch object from the pool, or creates one if none is available.
+     *
+     * @return A scratch object owned by the caller until released.
+     */
+    static ZappyScratch acquire() {
+        final int mask = pool.length() - 1;
+        final int stripe = stripe();
+        for (int i = 0; i < PROBE_COUNT; ++i) {
+            final ZappyScratch scratch = pool.getAndSet((stripe + i) & mask, null);
+            if (scratch != null) {
+                return scratch;
+            }
+        }
+        return new ZappyScratch();
+    }
+
+    /**
+     * Returns a scratch object to the pool.
+     *
+     * <p>Oversized buffers are dropped so a single large message doesn't pin memory.
+     * If the pool is full around the caller's stripe, the scratch object is discarded.
+     *
+     * @param scratch Scratch object previously acquired.
+     */
+    static void release(final ZappyScratch scratch) {
+        scratch.sourceBuffer = trim(scratch.sourceBuffer);
+        scratch.zappyBuffer = trim(scratch.zappyBuffer);
+        scratch.base64Buffer = trim(scratch.base64Buffer);
+        scratch.textBuffer = trim(scratch.textBuffer);
+        if ((scratch.charBuffer != null) && (scratch.charBuffer.capacity() > MAX_POOLED_CAPACITY)) {
+            scratch.charBuffer = null;
+        }
+        final int mask = pool.length() - 1;
+        final int stripe = stripe();
+        for (int i = 0; i < PROBE_COUNT; ++i) {
+            if (pool.compareAndSet((stripe + i) & mask, null, scratch)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forgets the parsed tokens, before a pass over new source bytes.
+     */
+    void resetParse() {
+        parseStart = 0;
+        parseCommitLimit = 0;
+        parseBackReferenceStart = 0;
+        parseBackReferenceEnd = 0;
+    }
+
+    /**
+     * Returns the match finder for back references, creating it on first use.
+     *
+     * @return The match finder.
+     */
+    ZappyMatchFinder matchFinder() {
+        if (matchFinder == null) {
+            matchFinder = new ZappyMatchFinder();
+        }
+        return matchFinder;
+    }
+
+    /**
+     * Decodes UTF-8 bytes into the char buffer, replacing malformed input as strings do.
+     *
+     * @param bytes UTF-8 bytes, from position to limit.
+     * @return The char buffer, flipped to hold the decoded chars.
+     */
+    CharBuffer utf8ToChars(final ByteBuffer bytes) {
+        if (utf8Decoder == null) {
+            utf8Decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        // Never more chars than bytes.
+        if ((charBuffer == null) || (charBuffer.capacity() < bytes.remaining())) {
+            charBuffer = CharBuffer.allocate(Math.max(0x100, bytes.remaining()));
+        }
+        charBuffer.clear();
+        utf8Decoder.reset();
+        utf8Decoder.decode(bytes, charBuffer, true);
+        utf8Decoder.flush(charBuffer);
+        return charBuffer.flip();
+    }
+
+    private static ByteBuffer trim(final ByteBuffer buffer) {
+        return buffer.capacity() > MAX_POOLED_CAPACITY ? GByteBuffer.create() : buffer;
+    }
+
+    private ZappyScratch() {
+        // Created through acquire.
+    }
+}
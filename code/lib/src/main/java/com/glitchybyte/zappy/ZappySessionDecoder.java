@@ -0,0 +1,74 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoding side of a session of messages, like those of a WebSocket connection.
+ *
+ * <p>It learns the same words from the messages it decodes as the {@link ZappySessionEncoder}
+ * did from the messages it encoded, so both keep the same contraction table. Messages must be
+ * decoded in the order they were encoded, all of them. A message that fails to decode teaches
+ * nothing, but the encoder already learned from it, so the session can't go on after a failure.
+ * Later calls throw {@link IllegalStateException}.
+ *
+ * <p>Sessions are not thread-safe.
+ */
+public final class ZappySessionDecoder {
+
+    private final ZappyDecoder baseDecoder;
+    private final ZappySessionTable table;
+    private ZappyDecoder decoder;
+    private boolean isBroken = false;
+
+    /**
+     * Creates a session.
+     *
+     * @param zappy Zappy object with the same contractions and transport as the encoding side.
+     * @throws IllegalArgumentException if the Zappy object uses all of tables 1-16.
+     */
+    public ZappySessionDecoder(final Zappy zappy) {
+        baseDecoder = zappy.decoder();
+        table = new ZappySessionTable(baseDecoder.codebook());
+        decoder = baseDecoder;
+    }
+
+    /**
+     * Turns the next Zappy compressed string of the session into a string.
+     *
+     * @param str A Zappy compressed string.
+     * @return Expanded string.
+     * @throws ZappyParseException if it's an invalid Zappy string.
+     * @throws IllegalStateException if an earlier message failed to decode.
+     */
+    public String decode(final String str) throws ZappyParseException {
+        if (isBroken) {
+            throw new IllegalStateException("Session is broken by an earlier decoding failure!");
+        }
+        final byte[] decoded;
+        try {
+            decoded = decoder.decodeToBytes(str);
+        } catch (final ZappyParseException e) {
+            isBroken = true;
+            throw e;
+        }
+        table.learn(decoded, 0, decoded.length);
+        final ZappyCodebook codebook = table.codebook();
+        if (codebook != decoder.codebook()) {
+            // Codebook id headers are skipped, as the session table is in no registry.
+            decoder = new ZappyDecoder(codebook, baseDecoder.metrics(), null, baseDecoder.transport());
+        }
+        return new String(decoded, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the number of words learned so far.
+     *
+     * @return Number of words in the session table.
+     */
+    public int tableSize() {
+        return table.entryCount();
+    }
+}
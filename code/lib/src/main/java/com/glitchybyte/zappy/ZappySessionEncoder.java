@@ -0,0 +1,69 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+/**
+ * Encoding side of a session of messages, like those of a WebSocket connection.
+ *
+ * <p>Words repeated across messages are learned into a contraction table of the session, and
+ * later messages are encoded with it. A {@link ZappySessionDecoder} learns the same words from
+ * the messages it decodes, so the table is never sent. Messages must be decoded in the order
+ * they are encoded, all of them, by one decoder. The table holds up to
+ * {@link ZappyCodebook#TABLE_SIZE} words, and the least recently seen is dropped for a new one.
+ *
+ * <p>The table takes the highest contraction table left empty by the Zappy object. The
+ * {@link ZappyLevel#FAST} level skips contractions, so it doesn't use the table. Sessions are
+ * not thread-safe.
+ */
+public final class ZappySessionEncoder {
+
+    private final ZappyEncoder baseEncoder;
+    private final ZappySessionTable table;
+    private ZappyEncoder encoder;
+    private byte[] source = new byte[0];
+
+    /**
+     * Creates a session.
+     *
+     * @param zappy Zappy object whose contractions, level, and transport are used.
+     * @throws IllegalArgumentException if the Zappy object uses all of tables 1-16.
+     */
+    public ZappySessionEncoder(final Zappy zappy) {
+        baseEncoder = zappy.encoder();
+        table = new ZappySessionTable(baseEncoder.codebook());
+        encoder = baseEncoder;
+    }
+
+    /**
+     * Turns the next message of the session into a Zappy compressed string.
+     *
+     * @param str A string.
+     * @return A Zappy compressed string.
+     */
+    public String encode(final String str) {
+        final int maxLength = GUtils.maxUtf8Length(str.length());
+        if (source.length < maxLength) {
+            source = new byte[maxLength];
+        }
+        final int length = GUtils.utf8Encode(str, source, 0);
+        final String encoded = encoder.encode(source, 0, length);
+        // Encoding is lossless, so these are the exact bytes the decoder learns from.
+        table.learn(source, 0, length);
+        final ZappyCodebook codebook = table.codebook();
+        if (codebook != encoder.codebook()) {
+            encoder = new ZappyEncoder(codebook, baseEncoder.level(), baseEncoder.metrics(), baseEncoder.codebookId(),
+                    baseEncoder.transport(), baseEncoder.usesBackReferences());
+        }
+        return encoded;
+    }
+
+    /**
+     * Returns the number of words learned so far.
+     *
+     * @return Number of words in the session table.
+     */
+    public int tableSize() {
+        return table.entryCount();
+    }
+}
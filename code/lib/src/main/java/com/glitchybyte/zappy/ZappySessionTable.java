@@ -0,0 +1,214 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.util.Arrays;
+
+/**
+ * Contraction table learned from the messages of a session.
+ *
+ * <p>After every message, both ends of a session learn from the same bytes, the encoder from
+ * the message and the decoder from its lossless decoding, so their tables stay the same without
+ * ever being sent. Messages are split into words at json and URL
+ * punctuation and whitespace. Numbers are skipped. A word becomes an entry the second time it's seen, so one-off
+ * values like ids and timestamps don't push out words that repeat. Entries keep their index
+ * until evicted, and the least recently seen entry is evicted when the table is full.
+ *
+ * <p>The entries take the highest contraction table left empty by the base codebook, so they're
+ * found by the same trie as every other contraction.
+ */
+final class ZappySessionTable {
+
+    /**
+     * Shortest word learned. Shorter words would save at most 1 byte over their 2-byte token.
+     */
+    static final int MIN_ENTRY_LENGTH = 4;
+
+    /**
+     * Longest word learned.
+     */
+    static final int MAX_ENTRY_LENGTH = 0x40;
+
+    private static final boolean[] delimiters = createDelimiters();
+    // Hashes of words seen once, by their top bits. Collisions only admit or forget a word
+    // early, the same way on both ends.
+    private static final int SEEN_BITS = 10;
+    private static final int BUCKET_COUNT = 0x200;
+
+    private final ZappyCodebook baseCodebook;
+    private final int tableId;
+    private final byte[][] entries = new byte[ZappyCodebook.TABLE_SIZE][];
+    private final int[] entryHashes = new int[ZappyCodebook.TABLE_SIZE];
+    private final long[] lastSeen = new long[ZappyCodebook.TABLE_SIZE];
+    // Entry indexes plus 1 by hash, chained through the next array. 0 ends a chain.
+    private final int[] buckets = new int[BUCKET_COUNT];
+    private final int[] next = new int[ZappyCodebook.TABLE_SIZE];
+    private final int[] seen = new int[1 << SEEN_BITS];
+    private int entryCount = 0;
+    private long clock = 0;
+    private ZappyCodebook codebook;
+
+    private static boolean[] createDelimiters() {
+        final boolean[] table = new boolean[0x100];
+        for (final char c: " \t\r\n\"{}[],:;=&?/\\".toCharArray()) {
+            table[c] = true;
+        }
+        return table;
+    }
+
+    /**
+     * Creates an empty table over a codebook.
+     *
+     * @param baseCodebook Codebook whose contractions are used along with the learned ones.
+     * @throws IllegalArgumentException if the codebook uses all of tables 1-16.
+     */
+    ZappySessionTable(final ZappyCodebook baseCodebook) {
+        this.baseCodebook = baseCodebook;
+        tableId = emptyTableId(baseCodebook);
+        codebook = baseCodebook;
+    }
+
+    private static int emptyTableId(final ZappyCodebook codebook) {
+        for (int tableId = 16; tableId > 0; --tableId) {
+            if (codebook.tableSize(tableId) == 0) {
+                return tableId;
+            }
+        }
+        throw new IllegalArgumentException("No empty contraction table for the session!");
+    }
+
+    /**
+     * Returns the base codebook with the learned entries.
+     *
+     * <p>It's compiled again only after entries change.
+     *
+     * @return The codebook.
+     */
+    ZappyCodebook codebook() {
+        if (codebook == null) {
+            codebook = baseCodebook.withTable(tableId, Arrays.copyOf(entries, entryCount));
+        }
+        return codebook;
+    }
+
+    /**
+     * Returns the number of learned entries.
+     *
+     * @return Number of entries.
+     */
+    int entryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Learns the words of a message.
+     *
+     * @param source Decoded bytes of the message.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     */
+    void learn(final byte[] source, final int offset, final int length) {
+        final int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; ++i) {
+            if (delimiters[source[i] & 0xff]) {
+                learnWord(source, start, i, end);
+                start = i + 1;
+            }
+        }
+        learnWord(source, start, end, end);
+    }
+
+    private void learnWord(final byte[] source, final int start, final int end, final int messageEnd) {
+        final int length = end - start;
+        if ((length < MIN_ENTRY_LENGTH) || (length > MAX_ENTRY_LENGTH)) {
+            return;
+        }
+        int hash = 0;
+        boolean isNumber = true;
+        for (int i = start; i < end; ++i) {
+            final byte b = source[i];
+            hash = (hash * 31) + b;
+            isNumber &= (b >= 0x30) && (b <= 0x39);
+        }
+        if (isNumber) {
+            // Numbers have their own tokens, and ids rarely repeat.
+            return;
+        }
+        hash *= 0x9e3779b1;
+        final int index = findEntry(source, start, end, hash);
+        if (index >= 0) {
+            lastSeen[index] = ++clock;
+            return;
+        }
+        if (isBaseContraction(source, start, end, messageEnd)) {
+            return;
+        }
+        final int seenIndex = hash >>> (Integer.SIZE - SEEN_BITS);
+        if (seen[seenIndex] != hash) {
+            seen[seenIndex] = hash;
+            return;
+        }
+        seen[seenIndex] = 0;
+        addEntry(Arrays.copyOfRange(source, start, end), hash);
+    }
+
+    private int findEntry(final byte[] source, final int start, final int end, final int hash) {
+        int index = buckets[hash & (BUCKET_COUNT - 1)] - 1;
+        while (index >= 0) {
+            if ((entryHashes[index] == hash) && Arrays.equals(entries[index], 0, entries[index].length, source, start, end)) {
+                return index;
+            }
+            index = next[index] - 1;
+        }
+        return -1;
+    }
+
+    private boolean isBaseContraction(final byte[] source, final int start, final int end, final int messageEnd) {
+        // Words covered by a contraction, like "https" by "https://", already have a token at
+        // least as short. Learning them would take precedence over it.
+        final int entry = baseCodebook.contractionTrie().find(source, start, messageEnd);
+        return (entry != -1) && (baseCodebook.entryLength(entry >> 8, entry & 0xff) >= (end - start));
+    }
+
+    private void addEntry(final byte[] bytes, final int hash) {
+        final int index;
+        if (entryCount < entries.length) {
+            index = entryCount++;
+        } else {
+            index = leastRecentlySeen();
+            unlink(index);
+        }
+        entries[index] = bytes;
+        entryHashes[index] = hash;
+        lastSeen[index] = ++clock;
+        final int bucket = hash & (BUCKET_COUNT - 1);
+        next[index] = buckets[bucket];
+        buckets[bucket] = index + 1;
+        codebook = null;
+    }
+
+    private int leastRecentlySeen() {
+        int oldest = 0;
+        for (int index = 1; index < entryCount; ++index) {
+            if (lastSeen[index] < lastSeen[oldest]) {
+                oldest = index;
+            }
+        }
+        return oldest;
+    }
+
+    private void unlink(final int index) {
+        final int bucket = entryHashes[index] & (BUCKET_COUNT - 1);
+        if (buckets[bucket] == (index + 1)) {
+            buckets[bucket] = next[index];
+            return;
+        }
+        int walker = buckets[bucket] - 1;
+        while (next[walker] != (index + 1)) {
+            walker = next[walker] - 1;
+        }
+        next[walker] = next[index];
+    }
+}
@@ -0,0 +1,137 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder behind the streaming classes.
+ *
+ * <p>Text is read in chunks. Characters that don't complete a group of the transport, and
+ * compressed bytes that may hold a token cut by the chunk end, are carried to the next round.
+ * The last {@link ZappyMatchFinder#WINDOW_SIZE} decoded bytes are kept for back references.
+ * Memory use is bounded regardless of the payload size.
+ */
+final class ZappyStreamDecoder {
+
+    private static final int TEXT_BUFFER_SIZE = 0x2000;
+    // A blob token and its 31 bytes.
+    private static final int MAX_COMPRESSED_TOKEN_LENGTH = 0x20;
+
+    private final ZappyDecoder decoder;
+    // Decoder picked from the codebook id header, once the start of the message is read.
+    private ZappyDecoder tokenDecoder = null;
+    private final ZappyTextSource source;
+    private final byte[] text = new byte[TEXT_BUFFER_SIZE];
+    private int textCount = 0;
+    private boolean isTextEnd = false;
+    // Characters per transport group. Whole groups decode on their own.
+    private final int textGroupSize;
+    private ByteBuffer transportBuffer = GByteBuffer.create();
+    // No transport has fewer characters than bytes.
+    private final byte[] compressed = new byte[MAX_COMPRESSED_TOKEN_LENGTH + TEXT_BUFFER_SIZE];
+    private int compressedIndex = 0;
+    private int compressedEnd = 0;
+    private final ByteBuffer zappyBuffer;
+    private int zappyIndex = 0;
+
+    /**
+     * Creates an incremental decoder.
+     *
+     * @param decoder Decoder whose tokens are used.
+     * @param source Origin of the encoded text.
+     */
+    ZappyStreamDecoder(final ZappyDecoder decoder, final ZappyTextSource source) {
+        this.decoder = decoder;
+        this.source = source;
+        final ZappyTransport transport = decoder.transport();
+        textGroupSize = transport.encodedLength(transport.groupSize());
+        zappyBuffer = GByteBuffer.ensureCapacity(GByteBuffer.create(),
+                ZappyMatchFinder.WINDOW_SIZE + Math.max(TEXT_BUFFER_SIZE, decoder.maxTokenLength() * 4));
+    }
+
+    /**
+     * Reads decoded UTF-8 bytes.
+     *
+     * @param bytes Destination bytes.
+     * @param offset Index of the first byte.
+     * @param length Maximum number of bytes.
+     * @return Number of bytes read, or -1 at the end of the message.
+     * @throws IOException if the origin fails to read, or the message is invalid.
+     */
+    int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if ((zappyIndex == zappyBuffer.position()) && !fill()) {
+            return -1;
+        }
+        final int count = Math.min(length, zappyBuffer.position() - zappyIndex);
+        System.arraycopy(zappyBuffer.array(), zappyIndex, bytes, offset, count);
+        zappyIndex += count;
+        return count;
+    }
+
+    /**
+     * Closes the origin.
+     *
+     * @throws IOException if the origin fails to close.
+     */
+    void close() throws IOException {
+        source.close();
+    }
+
+    private boolean fill() throws IOException {
+        // Back references copy from decoded bytes already read, so a window of them is kept.
+        final int position = zappyBuffer.position();
+        final int history = Math.min(position, ZappyMatchFinder.WINDOW_SIZE);
+        System.arraycopy(zappyBuffer.array(), position - history, zappyBuffer.array(), 0, history);
+        zappyBuffer.position(history);
+        zappyIndex = history;
+        try {
+            while (zappyBuffer.position() == history) {
+                // Until the end of the text, no token may start where it could be cut short.
+                final int tokenLimit = isTextEnd ? compressedEnd : compressedEnd - MAX_COMPRESSED_TOKEN_LENGTH;
+                if (compressedIndex < tokenLimit) {
+                    if (tokenDecoder == null) {
+                        tokenDecoder = decoder.decoderFor(compressed, compressedIndex, compressedEnd);
+                    }
+                    compressedIndex = tokenDecoder.resolveTokens(zappyBuffer, compressed, compressedIndex, tokenLimit, compressedEnd);
+                } else if (isTextEnd) {
+                    return false;
+                } else {
+                    readText();
+                }
+            }
+        } catch (final ZappyParseException e) {
+            throw new IOException(e);
+        } catch (final RuntimeException e) {
+            throw new IOException(new ZappyParseException(e));
+        }
+        return true;
+    }
+
+    private void readText() throws IOException, ZappyParseException {
+        final int count = source.read(text, textCount, text.length - textCount);
+        if (count < 0) {
+            isTextEnd = true;
+        } else {
+            textCount += count;
+        }
+        // Only whole groups can be decoded, except for the last one.
+        final int groupsEnd = isTextEnd ? textCount : textCount - (textCount % textGroupSize);
+        if (groupsEnd == 0) {
+            return;
+        }
+        transportBuffer = decoder.transport().decode(text, 0, groupsEnd, transportBuffer);
+        final int leftover = compressedEnd - compressedIndex;
+        System.arraycopy(compressed, compressedIndex, compressed, 0, leftover);
+        System.arraycopy(transportBuffer.array(), 0, compressed, leftover, transportBuffer.position());
+        compressedIndex = 0;
+        compressedEnd = leftover + transportBuffer.position();
+        System.arraycopy(text, groupsEnd, text, 0, textCount - groupsEnd);
+        textCount -= groupsEnd;
+    }
+}
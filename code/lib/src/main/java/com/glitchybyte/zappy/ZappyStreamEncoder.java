@@ -0,0 +1,148 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental encoder behind the streaming classes.
+ *
+ * <p>Source bytes are buffered until there is enough lookahead for tokens to make the same
+ * choices they make with the whole source. Compressed bytes that don't complete a group of
+ * the transport are carried to the next round. Memory use is bounded regardless of the
+ * payload size, and the output is identical to a one-shot encode without back references,
+ * which streams don't emit.
+ */
+final class ZappyStreamEncoder {
+
+    private static final int SOURCE_BUFFER_SIZE = 0x2000;
+
+    private final ZappyEncoder encoder;
+    private final ZappyTextSink sink;
+    private final int lookahead;
+    private final byte[] source;
+    private int sourceCount = 0;
+    private final ByteBuffer zappyBuffer = GByteBuffer.ensureCapacity(GByteBuffer.create(), ZappyEncoder.FUSED_BUFFER_SIZE);
+    private final byte[] text;
+    private boolean isFinished = false;
+
+    /**
+     * Creates an incremental encoder.
+     *
+     * @param encoder Encoder whose tokens are used.
+     * @param sink Destination of the encoded text.
+     */
+    ZappyStreamEncoder(final ZappyEncoder encoder, final ZappyTextSink sink) {
+        this.encoder = encoder;
+        this.sink = sink;
+        lookahead = encoder.maxTokenLookahead();
+        source = new byte[Math.max(SOURCE_BUFFER_SIZE, lookahead * 4)];
+        text = new byte[encoder.transport().encodedLength(ZappyEncoder.FUSED_BUFFER_SIZE)];
+        encoder.putHeader(zappyBuffer);
+    }
+
+    /**
+     * Adds source bytes.
+     *
+     * @param bytes UTF-8 bytes.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     * @throws IOException if the sink fails to write.
+     */
+    void write(final byte[] bytes, final int offset, final int length) throws IOException {
+        ensureOpen();
+        int walker = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            final int count = Math.min(remaining, source.length - sourceCount);
+            System.arraycopy(bytes, walker, source, sourceCount, count);
+            sourceCount += count;
+            walker += count;
+            remaining -= count;
+            if (sourceCount == source.length) {
+                encodeSource(false);
+            }
+        }
+    }
+
+    /**
+     * Writes all completed text to the sink and flushes it.
+     *
+     * <p>Bytes that still need lookahead, or that don't complete a transport group, stay pending.
+     *
+     * @throws IOException if the sink fails to write or flush.
+     */
+    void flush() throws IOException {
+        sink.flush();
+    }
+
+    /**
+     * Encodes all pending bytes and writes the end of the text to the sink, without closing it.
+     *
+     * <p>Nothing can be written afterward.
+     *
+     * @throws IOException if the sink fails to write.
+     */
+    void finish() throws IOException {
+        if (isFinished) {
+            return;
+        }
+        encodeSource(true);
+        emitText(true);
+        isFinished = true;
+    }
+
+    /**
+     * Finishes encoding and closes the sink.
+     *
+     * @throws IOException if the sink fails to write or close.
+     */
+    void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            sink.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (isFinished) {
+            throw new IOException("Stream finished!");
+        }
+    }
+
+    private void encodeSource(final boolean isFinal) throws IOException {
+        // Without the final bytes, no token may start where it can't see its full lookahead.
+        final int tokenLimit = isFinal ? sourceCount : sourceCount - lookahead;
+        int index = 0;
+        // Source bytes move between passes, so parsed tokens are only kept within one.
+        final ZappyScratch scratch = ZappyScratch.acquire();
+        try {
+            scratch.resetParse();
+            while (index < tokenLimit) {
+                index = encoder.addTokens(zappyBuffer, source, index, tokenLimit, sourceCount, scratch);
+                emitText(false);
+            }
+        } finally {
+            ZappyScratch.release(scratch);
+        }
+        System.arraycopy(source, index, source, 0, sourceCount - index);
+        sourceCount -= index;
+    }
+
+    private void emitText(final boolean isFinal) throws IOException {
+        final byte[] zappy = zappyBuffer.array();
+        final int pending = zappyBuffer.position();
+        final ZappyTransport transport = encoder.transport();
+        final int ready = isFinal ? pending : pending - (pending % transport.groupSize());
+        if (ready == 0) {
+            return;
+        }
+        final int count = transport.encode(zappy, 0, ready, text, 0);
+        sink.write(text, 0, count);
+        System.arraycopy(zappy, ready, zappy, 0, pending - ready);
+        zappyBuffer.position(pending - ready);
+    }
+}
@@ -0,0 +1,543 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Builds contraction tables from a corpus of sample messages.
+ *
+ * <p>Candidates are substrings that repeat across the corpus. Each one is scored by the bytes
+ * it actually saves: what its text costs with the primitive tokens (so runs that already fold
+ * into a repeat or number token are worth little), minus the cost of its contraction token,
+ * 1 byte in table 0 and 2 bytes in tables 1-16. Candidates are picked greedily by total
+ * savings, only counting occurrences not already covered by a picked entry.
+ *
+ * <p>The result defines all 17 tables, unused ones empty, so none of the default
+ * contractions remain. It can be given as-is to {@link Zappy#Zappy(Map)} or
+ * {@link ZappyCodebook#ZappyCodebook(Map)}.
+ *
+ * <p>Instances are not thread-safe.
+ */
+public final class ZappyTableTrainer {
+
+    /**
+     * Default maximum number of corpus bytes sampled.
+     */
+    public static final int DEFAULT_MAX_CORPUS_SIZE = 0x100000;
+
+    private static final int MIN_ENTRY_LENGTH = 2;
+    private static final int MAX_ENTRY_LENGTH = 0x30;
+    private static final int MIN_OCCURRENCES = 2;
+    private static final int MAX_CANDIDATES = 0x10000;
+    private static final int MAX_ENTRIES = ZappyCodebook.FAST_TABLE_SIZE + (16 * ZappyCodebook.TABLE_SIZE);
+
+    // Measures primitive token costs. No contractions at all.
+    private static final ZappyEncoder primitiveEncoder = createPrimitiveEncoder();
+
+    private final int maxCorpusSize;
+    private final List<byte[]> samples = new ArrayList<>();
+    private int corpusSize = 0;
+
+    /**
+     * Creates a trainer that samples up to {@link #DEFAULT_MAX_CORPUS_SIZE} bytes.
+     */
+    public ZappyTableTrainer() {
+        this(DEFAULT_MAX_CORPUS_SIZE);
+    }
+
+    /**
+     * Creates a trainer.
+     *
+     * @param maxCorpusSize Maximum number of UTF-8 bytes sampled. Samples past it are ignored.
+     */
+    public ZappyTableTrainer(final int maxCorpusSize) {
+        if (maxCorpusSize <= 0) {
+            throw new IllegalArgumentException("Invalid maxCorpusSize: " + maxCorpusSize);
+        }
+        this.maxCorpusSize = maxCorpusSize;
+    }
+
+    /**
+     * Trains contraction tables from a corpus.
+     *
+     * @param corpus Sample messages.
+     * @return Contraction tables ready for {@link Zappy#Zappy(Map)}.
+     */
+    public static Map<Integer, String[]> train(final Iterable<String> corpus) {
+        final ZappyTableTrainer trainer = new ZappyTableTrainer();
+        for (final String sample: corpus) {
+            trainer.addSample(sample);
+        }
+        return trainer.train();
+    }
+
+    private static ZappyEncoder createPrimitiveEncoder() {
+        final Map<Integer, String[]> source = new HashMap<>();
+        for (int tableId = 0; tableId <= 16; ++tableId) {
+            source.put(tableId, new String[0]);
+        }
+        return new ZappyEncoder(new ZappyCodebook(source));
+    }
+
+    /**
+     * Adds a sample message.
+     *
+     * @param sample Sample message.
+     * @return This trainer.
+     */
+    public ZappyTableTrainer addSample(final String sample) {
+        if (corpusSize >= maxCorpusSize) {
+            return this;
+        }
+        final byte[] bytes = sample.getBytes(StandardCharsets.UTF_8);
+        final int length = Math.min(bytes.length, maxCorpusSize - corpusSize);
+        samples.add(length == bytes.length ? bytes : Arrays.copyOf(bytes, length));
+        corpusSize += length;
+        return this;
+    }
+
+    /**
+     * Trains contraction tables from the samples added so far.
+     *
+     * @return Contraction tables ready for {@link Zappy#Zappy(Map)}.
+     */
+    public Map<Integer, String[]> train() {
+        final byte[] corpus = new byte[corpusSize];
+        final int[] sampleEnds = new int[samples.size()];
+        int offset = 0;
+        for (int i = 0; i < samples.size(); ++i) {
+            final byte[] sample = samples.get(i);
+            System.arraycopy(sample, 0, corpus, offset, sample.length);
+            offset += sample.length;
+            sampleEnds[i] = offset;
+        }
+        final List<Candidate> candidates = findCandidates(corpus, sampleEnds);
+        findOccurrences(corpus, sampleEnds, candidates);
+        return createTables(selectEntries(corpus.length, candidates));
+    }
+
+    private static final class Candidate {
+
+        final byte[] bytes;
+        final int gain;
+        long savings;
+        int[] occurrences = new int[4];
+        int occurrenceCount = 0;
+        int coveredCount = 0;
+
+        Candidate(final byte[] bytes, final int gain, final int count) {
+            this.bytes = bytes;
+            this.gain = gain;
+            savings = (long) gain * count;
+        }
+
+        int length() {
+            return bytes.length;
+        }
+
+        boolean isFastOnly() {
+            // Too short for a 2-byte token to save anything.
+            return bytes.length < 3;
+        }
+
+        void addOccurrence(final int position) {
+            if (occurrenceCount == occurrences.length) {
+                occurrences = Arrays.copyOf(occurrences, occurrenceCount * 2);
+            }
+            occurrences[occurrenceCount++] = position;
+        }
+
+        int countUncovered(final boolean[] covered) {
+            int count = 0;
+            int nextFree = 0;
+            for (int i = 0; i < occurrenceCount; ++i) {
+                final int position = occurrences[i];
+                if ((position >= nextFree) && isUncovered(covered, position)) {
+                    ++count;
+                    nextFree = position + bytes.length;
+                }
+            }
+            return count;
+        }
+
+        private boolean isUncovered(final boolean[] covered, final int position) {
+            for (int i = position; i < (position + bytes.length); ++i) {
+                if (covered[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void cover(final boolean[] covered) {
+            int nextFree = 0;
+            for (int i = 0; i < occurrenceCount; ++i) {
+                final int position = occurrences[i];
+                if ((position >= nextFree) && isUncovered(covered, position)) {
+                    Arrays.fill(covered, position, position + bytes.length, true);
+                    nextFree = position + bytes.length;
+                }
+            }
+        }
+
+        boolean startsWith(final Candidate other) {
+            return (other.bytes.length <= bytes.length)
+                    && Arrays.equals(bytes, 0, other.bytes.length, other.bytes, 0, other.bytes.length);
+        }
+
+        String entry() {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static List<Candidate> findCandidates(final byte[] corpus, final int[] sampleEnds) {
+        // Substrings are counted a length at a time, and only positions whose shorter
+        // substring repeated are extended, as a longer one can't repeat more often.
+        // A substring's id is the id of its one byte shorter prefix plus its last byte.
+        final boolean[] isExtendable = new boolean[corpus.length];
+        Arrays.fill(isExtendable, true);
+        final int[] ids = new int[corpus.length];
+        final List<Candidate> found = new ArrayList<>();
+        for (int length = 1; length <= MAX_ENTRY_LENGTH; ++length) {
+            final IdTable idTable = new IdTable();
+            int[] counts = new int[0x100];
+            int[] firstPositions = new int[0x100];
+            boolean isAnyExtendable = false;
+            int sampleStart = 0;
+            for (final int sampleEnd: sampleEnds) {
+                for (int position = sampleStart; position < sampleEnd; ++position) {
+                    if (!isExtendable[position]) {
+                        continue;
+                    }
+                    if ((position + length) > sampleEnd) {
+                        isExtendable[position] = false;
+                        continue;
+                    }
+                    final int id = idTable.idOf(((long) ids[position] << 8) | (corpus[position + length - 1] & 0xff));
+                    if (id == counts.length) {
+                        counts = Arrays.copyOf(counts, id * 2);
+                        firstPositions = Arrays.copyOf(firstPositions, id * 2);
+                    }
+                    if (counts[id]++ == 0) {
+                        firstPositions[id] = position;
+                    }
+                    ids[position] = id;
+                }
+                sampleStart = sampleEnd;
+            }
+            for (int position = 0; position < corpus.length; ++position) {
+                if (isExtendable[position]) {
+                    isExtendable[position] = counts[ids[position]] >= MIN_OCCURRENCES;
+                    isAnyExtendable |= isExtendable[position];
+                }
+            }
+            if (!isAnyExtendable) {
+                break;
+            }
+            if (length < MIN_ENTRY_LENGTH) {
+                continue;
+            }
+            for (int id = 0; id < idTable.size(); ++id) {
+                if (counts[id] < MIN_OCCURRENCES) {
+                    continue;
+                }
+                final int position = firstPositions[id];
+                if (!isEntryText(corpus, position, length)) {
+                    continue;
+                }
+                final int tokenCost = length < 3 ? 1 : 2;
+                final int gain = primitiveEncoder.compressedLength(corpus, position, length) - tokenCost;
+                if (gain > 0) {
+                    found.add(new Candidate(Arrays.copyOfRange(corpus, position, position + length), gain, counts[id]));
+                }
+            }
+        }
+        // Keep the most promising ones.
+        found.sort(Comparator.comparingLong((Candidate c) -> c.savings).reversed());
+        return found.subList(0, Math.min(found.size(), MAX_CANDIDATES));
+    }
+
+    /**
+     * Open addressing map from substring keys to dense ids.
+     */
+    private static final class IdTable {
+
+        private long[] keys = new long[0x400];
+        private int[] values = new int[0x400];
+        private int size = 0;
+
+        IdTable() {
+            Arrays.fill(keys, -1);
+        }
+
+        int size() {
+            return size;
+        }
+
+        int idOf(final long key) {
+            int slot = slot(key, keys.length);
+            while (keys[slot] != -1) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            keys[slot] = key;
+            values[slot] = size;
+            if (++size > (keys.length >> 1)) {
+                grow();
+            }
+            return size - 1;
+        }
+
+        private static int slot(final long key, final int capacity) {
+            final long mixed = key * 0x9e3779b97f4a7c15L;
+            return (int) (mixed >>> 32) & (capacity - 1);
+        }
+
+        private void grow() {
+            final long[] oldKeys = keys;
+            final int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            Arrays.fill(keys, -1);
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldKeys[i] != -1) {
+                    int slot = slot(oldKeys[i], keys.length);
+                    while (keys[slot] != -1) {
+                        slot = (slot + 1) & (keys.length - 1);
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    private static boolean isEntryText(final byte[] corpus, final int position, final int length) {
+        final int end = position + length;
+        // Bare numbers are values, not vocabulary, and number tokens already shrink them.
+        int walker = position;
+        while ((walker < end) && isDigit(corpus[walker])) {
+            ++walker;
+        }
+        if (walker == end) {
+            return false;
+        }
+        // Must be whole UTF-8 characters.
+        walker = position;
+        while (walker < end) {
+            final int b = corpus[walker] & 0xff;
+            if (b < 0x80) {
+                ++walker;
+            } else if (b >= 0xf0) {
+                walker += 4;
+            } else if (b >= 0xe0) {
+                walker += 3;
+            } else if (b >= 0xc0) {
+                walker += 2;
+            } else {
+                return false;
+            }
+        }
+        return walker == end;
+    }
+
+    private static boolean isTokenBoundary(final byte[] corpus, final int position, final int sampleStart, final int sampleEnd) {
+        // An occurrence may not split a number or a run, as a number or repeat token would take
+        // them whole, and the encoder tries contractions first.
+        if ((position == sampleStart) || (position == sampleEnd)) {
+            return true;
+        }
+        final byte before = corpus[position - 1];
+        final byte after = corpus[position];
+        if (isDigit(before) && isDigit(after)) {
+            return false;
+        }
+        if (before != after) {
+            return true;
+        }
+        final boolean isRunBefore = ((position - 2) >= sampleStart) && (corpus[position - 2] == after);
+        final boolean isRunAfter = ((position + 1) < sampleEnd) && (corpus[position + 1] == after);
+        return !isRunBefore && !isRunAfter;
+    }
+
+    private static boolean isDigit(final byte b) {
+        return (b >= '0') && (b <= '9');
+    }
+
+    private static void findOccurrences(final byte[] corpus, final int[] sampleEnds, final List<Candidate> candidates) {
+        final CandidateTrie trie = new CandidateTrie(candidates);
+        int sampleStart = 0;
+        for (final int sampleEnd: sampleEnds) {
+            for (int position = sampleStart; position < sampleEnd; ++position) {
+                if (isTokenBoundary(corpus, position, sampleStart, sampleEnd)) {
+                    trie.addOccurrences(corpus, position, sampleStart, sampleEnd);
+                }
+            }
+            sampleStart = sampleEnd;
+        }
+    }
+
+    /**
+     * Byte trie of the candidates, laid out like {@link ZappyContractionTrie}.
+     */
+    private static final class CandidateTrie {
+
+        private final int[] rootChildren = new int[0x100];
+        private int[] firstChild = new int[0x400];
+        private int[] nextSibling = new int[0x400];
+        private byte[] label = new byte[0x400];
+        private Candidate[] candidates = new Candidate[0x400];
+        private int nodeCount = 1; // Node 0 is the root.
+
+        CandidateTrie(final List<Candidate> list) {
+            for (final Candidate candidate: list) {
+                insert(candidate);
+            }
+        }
+
+        private void insert(final Candidate candidate) {
+            int node = 0;
+            for (final byte b: candidate.bytes) {
+                int next = child(node, b);
+                if (next == 0) {
+                    if (nodeCount == label.length) {
+                        final int capacity = nodeCount * 2;
+                        firstChild = Arrays.copyOf(firstChild, capacity);
+                        nextSibling = Arrays.copyOf(nextSibling, capacity);
+                        label = Arrays.copyOf(label, capacity);
+                        candidates = Arrays.copyOf(candidates, capacity);
+                    }
+                    next = nodeCount++;
+                    label[next] = b;
+                    if (node == 0) {
+                        rootChildren[b & 0xff] = next;
+                    } else {
+                        nextSibling[next] = firstChild[node];
+                        firstChild[node] = next;
+                    }
+                }
+                node = next;
+            }
+            candidates[node] = candidate;
+        }
+
+        private int child(final int node, final byte b) {
+            if (node == 0) {
+                return rootChildren[b & 0xff];
+            }
+            int walker = firstChild[node];
+            while ((walker != 0) && (label[walker] != b)) {
+                walker = nextSibling[walker];
+            }
+            return walker;
+        }
+
+        void addOccurrences(final byte[] corpus, final int position, final int sampleStart, final int sampleEnd) {
+            int node = 0;
+            for (int walker = position; walker < sampleEnd; ++walker) {
+                node = child(node, corpus[walker]);
+                if (node == 0) {
+                    return;
+                }
+                final Candidate candidate = candidates[node];
+                if ((candidate != null) && isTokenBoundary(corpus, walker + 1, sampleStart, sampleEnd)) {
+                    candidate.addOccurrence(position);
+                }
+            }
+        }
+    }
+
+    private static List<Candidate> selectEntries(final int corpusLength, final Iterable<Candidate> candidates) {
+        // Lazy greedy: savings only go down as more of the corpus is covered, so a candidate
+        // whose refreshed savings still top the queue is the best pick.
+        final PriorityQueue<Candidate> queue = new PriorityQueue<>(
+                Comparator.comparingLong((Candidate c) -> c.savings).reversed());
+        candidates.forEach(queue::add);
+        final boolean[] covered = new boolean[corpusLength];
+        final List<Candidate> selected = new ArrayList<>();
+        int fastOnlyCount = 0;
+        while (!queue.isEmpty() && (selected.size() < MAX_ENTRIES)) {
+            final Candidate candidate = queue.poll();
+            if (candidate.isFastOnly() && (fastOnlyCount == ZappyCodebook.FAST_TABLE_SIZE)) {
+                continue;
+            }
+            final int count = candidate.countUncovered(covered);
+            final long savings = (long) candidate.gain * count;
+            if (savings <= 0) {
+                continue;
+            }
+            if (savings < candidate.savings) {
+                candidate.savings = savings;
+                if (!queue.isEmpty() && (savings < queue.peek().savings)) {
+                    queue.add(candidate);
+                    continue;
+                }
+            }
+            candidate.cover(covered);
+            candidate.coveredCount = count;
+            selected.add(candidate);
+            if (candidate.isFastOnly()) {
+                ++fastOnlyCount;
+            }
+        }
+        return selected;
+    }
+
+    private static Map<Integer, String[]> createTables(final List<Candidate> selected) {
+        // Short entries only save in table 0. The remaining slots go to the entries used the
+        // most, as each use saves one more byte there.
+        final List<Candidate> fast = new ArrayList<>();
+        final List<Candidate> rest = new ArrayList<>();
+        for (final Candidate candidate: selected) {
+            (candidate.isFastOnly() ? fast : rest).add(candidate);
+        }
+        rest.sort(Comparator.comparingInt((Candidate c) -> c.coveredCount).reversed());
+        for (int i = 0; (i < rest.size()) && (fast.size() < ZappyCodebook.FAST_TABLE_SIZE); ) {
+            // Table 0 is searched last, so an entry starting with another entry would never match.
+            if (hasPrefixIn(rest.get(i), rest)) {
+                ++i;
+            } else {
+                fast.add(rest.remove(i));
+            }
+        }
+        // Whatever doesn't fit in tables 1-16 has room left in table 0.
+        while (rest.size() > (16 * ZappyCodebook.TABLE_SIZE)) {
+            fast.add(rest.remove(0));
+        }
+        // Higher tables are searched first, so longer entries go there to win over their prefixes.
+        rest.sort(Comparator.comparingInt(Candidate::length).reversed());
+        final int tableCount = (rest.size() + ZappyCodebook.TABLE_SIZE - 1) / ZappyCodebook.TABLE_SIZE;
+        final Map<Integer, String[]> tables = new HashMap<>();
+        tables.put(0, fast.stream().map(Candidate::entry).toArray(String[]::new));
+        for (int tableId = 1; tableId <= 16; ++tableId) {
+            final int from = (tableCount - tableId) * ZappyCodebook.TABLE_SIZE;
+            if (tableId > tableCount) {
+                tables.put(tableId, new String[0]);
+                continue;
+            }
+            final int to = Math.min(rest.size(), from + ZappyCodebook.TABLE_SIZE);
+            tables.put(tableId, rest.subList(from, to).stream().map(Candidate::entry).toArray(String[]::new));
+        }
+        return tables;
+    }
+
+    private static boolean hasPrefixIn(final Candidate candidate, final List<Candidate> entries) {
+        for (final Candidate entry: entries) {
+            if ((entry != candidate) && candidate.startsWith(entry)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,129 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Downstream destination for encoded ASCII text.
+ */
+interface ZappyTextSink {
+
+    /**
+     * Writes transport bytes. Text transports are ASCII, binary ones Latin-1.
+     *
+     * @param ascii Source bytes.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     * @throws IOException if the destination fails to write.
+     */
+    void write(byte[] ascii, int offset, int length) throws IOException;
+
+    /**
+     * Flushes the destination.
+     *
+     * @throws IOException if the destination fails to flush.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Closes the destination.
+     *
+     * @throws IOException if the destination fails to close.
+     */
+    void close() throws IOException;
+
+    /**
+     * Creates a sink that writes to a stream.
+     *
+     * @param out Destination stream.
+     * @return A sink.
+     */
+    static ZappyTextSink of(final OutputStream out) {
+        return new ZappyTextSink() {
+            @Override
+            public void write(final byte[] ascii, final int offset, final int length) throws IOException {
+                out.write(ascii, offset, length);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
+    /**
+     * Creates a sink that writes to a writer.
+     *
+     * @param out Destination writer.
+     * @return A sink.
+     */
+    static ZappyTextSink of(final Writer out) {
+        return new ZappyTextSink() {
+            private char[] chars = new char[0];
+
+            @Override
+            public void write(final byte[] ascii, final int offset, final int length) throws IOException {
+                if (chars.length < length) {
+                    chars = new char[length];
+                }
+                for (int i = 0; i < length; ++i) {
+                    // Latin-1, for binary transports.
+                    chars[i] = (char) (ascii[offset + i] & 0xff);
+                }
+                out.write(chars, 0, length);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
+    /**
+     * Creates a sink that writes to a channel.
+     *
+     * <p>Non-blocking channels are written to until they accept all bytes.
+     *
+     * @param out Destination channel.
+     * @return A sink.
+     */
+    static ZappyTextSink of(final WritableByteChannel out) {
+        return new ZappyTextSink() {
+            @Override
+            public void write(final byte[] ascii, final int offset, final int length) throws IOException {
+                final ByteBuffer buffer = ByteBuffer.wrap(ascii, offset, length);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+
+            @Override
+            public void flush() {
+                // Channels don't buffer.
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+}
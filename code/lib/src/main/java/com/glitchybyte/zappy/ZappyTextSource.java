@@ -0,0 +1,112 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Upstream origin of encoded ASCII text.
+ */
+interface ZappyTextSource {
+
+    /**
+     * Reads transport bytes. Text transports are ASCII, binary ones Latin-1.
+     *
+     * <p>Reading chars that are not Latin-1 fails with a {@link ZappyParseException} cause.
+     *
+     * @param ascii Destination bytes.
+     * @param offset Index of the first byte.
+     * @param length Maximum number of bytes. It's always greater than 0.
+     * @return Number of bytes read, or -1 at the end of the text.
+     * @throws IOException if the origin fails to read.
+     */
+    int read(byte[] ascii, int offset, int length) throws IOException;
+
+    /**
+     * Closes the origin.
+     *
+     * @throws IOException if the origin fails to close.
+     */
+    void close() throws IOException;
+
+    /**
+     * Creates a source that reads from a stream.
+     *
+     * @param in Origin stream.
+     * @return A source.
+     */
+    static ZappyTextSource of(final InputStream in) {
+        return new ZappyTextSource() {
+            @Override
+            public int read(final byte[] ascii, final int offset, final int length) throws IOException {
+                return in.read(ascii, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * Creates a source that reads from a reader.
+     *
+     * @param in Origin reader.
+     * @return A source.
+     */
+    static ZappyTextSource of(final Reader in) {
+        return new ZappyTextSource() {
+            private char[] chars = new char[0];
+
+            @Override
+            public int read(final byte[] ascii, final int offset, final int length) throws IOException {
+                if (chars.length < length) {
+                    chars = new char[length];
+                }
+                final int count = in.read(chars, 0, length);
+                for (int i = 0; i < count; ++i) {
+                    final char ch = chars[i];
+                    if (ch > 0xff) {
+                        // Every byte is valid in a binary transport, so there is no byte to map it to.
+                        throw new IOException(new ZappyParseException("Invalid character!", ZappyMetrics.DecodeFailure.INVALID_BASE64));
+                    }
+                    ascii[offset + i] = (byte) ch;
+                }
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * Creates a source that reads from a channel.
+     *
+     * <p>The channel is expected to be blocking.
+     *
+     * @param in Origin channel.
+     * @return A source.
+     */
+    static ZappyTextSource of(final ReadableByteChannel in) {
+        return new ZappyTextSource() {
+            @Override
+            public int read(final byte[] ascii, final int offset, final int length) throws IOException {
+                return in.read(ByteBuffer.wrap(ascii, offset, length));
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+}
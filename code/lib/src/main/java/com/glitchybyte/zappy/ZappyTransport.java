@@ -0,0 +1,101 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transport stage of Zappy messages.
+ *
+ * <p>Compression produces bytes. A transport turns them into what goes on the wire, and back.
+ * Text transports produce ASCII bytes, which map one to one to the chars of encoded strings.
+ * Binary transports produce any byte, and their strings hold one byte per char as Latin-1.
+ *
+ * <p>Encoding is fused with compression. Compressed bytes are handed to the transport as
+ * they are produced, in pieces whose lengths are multiples of {@link #groupSize()}, except for
+ * the last one. Pieces are written back to back, so a transport must encode a run of whole
+ * groups the same regardless of where it's split.
+ *
+ * <p>Transports hold no per-call state and are safe to share between threads.
+ */
+public interface ZappyTransport {
+
+    /**
+     * URL-safe base64 with "-" and "_", and no padding. It's the default.
+     *
+     * <p>Adds a third to the compressed size.
+     */
+    ZappyTransport BASE64 = new ZappyBase64Transport();
+
+    /**
+     * Base85 with an alphabet safe inside JSON strings, and no padding.
+     *
+     * <p>Adds a quarter to the compressed size. There are no quotes, backslashes, or whitespace
+     * in the alphabet, so nothing is escaped in JSON. It's not URL-safe.
+     */
+    ZappyTransport BASE85 = new ZappyBase85Transport();
+
+    /**
+     * Compressed bytes as they are, for binary channels.
+     *
+     * <p>Adds nothing to the compressed size. Use {@link Zappy#encodeToBytes} and
+     * {@link Zappy#decodeFromBytes}.
+     */
+    ZappyTransport RAW = new ZappyRawTransport();
+
+    /**
+     * Returns the number of compressed bytes that encode as a unit.
+     *
+     * @return Group size in bytes.
+     */
+    int groupSize();
+
+    /**
+     * Returns the number of transport bytes the given number of compressed bytes encodes into.
+     *
+     * @param byteCount Number of compressed bytes.
+     * @return Number of transport bytes.
+     */
+    int encodedLength(int byteCount);
+
+    /**
+     * Encodes compressed bytes.
+     *
+     * @param bytes Compressed bytes.
+     * @param offset Index of the first byte to encode.
+     * @param length Number of bytes to encode.
+     * @param dst Destination array. It must have room for {@link #encodedLength} bytes.
+     * @param dstOffset Index in the destination array where to start writing.
+     * @return Number of transport bytes written.
+     */
+    int encode(byte[] bytes, int offset, int length, byte[] dst, int dstOffset);
+
+    /**
+     * Decodes characters into compressed bytes.
+     *
+     * <p>Decoded bytes are written from the start of the buffer. On return, the buffer
+     * position is the number of decoded bytes.
+     *
+     * @param str Encoded characters.
+     * @param buffer Buffer to decode into. Its contents are discarded.
+     * @return The ByteBuffer object holding the decoded bytes. It may be the same as the given one.
+     * @throws ZappyParseException if the characters are invalid for this transport.
+     */
+    ByteBuffer decode(CharSequence str, ByteBuffer buffer) throws ZappyParseException;
+
+    /**
+     * Decodes transport bytes into compressed bytes.
+     *
+     * <p>Decoded bytes are written from the start of the buffer. On return, the buffer
+     * position is the number of decoded bytes.
+     *
+     * @param data Transport bytes.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     * @param buffer Buffer to decode into. Its contents are discarded.
+     * @return The ByteBuffer object holding the decoded bytes. It may be the same as the given one.
+     * @throws ZappyParseException if the bytes are invalid for this transport.
+     */
+    ByteBuffer decode(byte[] data, int offset, int length, ByteBuffer buffer) throws ZappyParseException;
+}
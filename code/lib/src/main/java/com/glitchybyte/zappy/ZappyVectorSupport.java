@@ -0,0 +1,29 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+/**
+ * Availability of the Vector API.
+ *
+ * <p>Vector code paths are only taken when the {@code jdk.incubator.vector} module is enabled
+ * at runtime (e.g., {@code --add-modules jdk.incubator.vector}). Otherwise, the classes holding
+ * vector code are never loaded and scalar paths are used.
+ */
+final class ZappyVectorSupport {
+
+    private static final boolean enabled = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    /**
+     * Returns whether the Vector API is available.
+     *
+     * @return True if vector code paths can be used.
+     */
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    private ZappyVectorSupport() {
+        // Hiding constructor.
+    }
+}
@@ -0,0 +1,178 @@
+// Copyright 2024 GlitchyByte
+// SPDX-License-Identifier: Apache-2.0
+
+package com.glitchybyte.zappy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+
+/**
+ * Writer that Zappy encodes the text written to it.
+ *
+ * <p>Encoding is incremental with bounded memory, and the text written downstream is identical
+ * to {@link Zappy#encode} of the whole payload. Surrogate pairs may be split across writes.
+ * The end of the text is only written by {@link #finish()} or {@link #close()}.
+ *
+ * <p>Writers are not thread-safe.
+ */
+public final class ZappyWriter extends Writer {
+
+    private static final int CHUNK_SIZE = 0x800;
+
+    private final ZappyStreamEncoder streamEncoder;
+    private final byte[] utf8 = new byte[GUtils.maxUtf8Length(CHUNK_SIZE)];
+    private char highSurrogate = 0;
+
+    /**
+     * Creates a writer that writes the encoded text as bytes, ASCII for text transports.
+     *
+     * @param zappy Zappy object whose contractions are used.
+     * @param out Destination stream.
+     */
+    public ZappyWriter(final Zappy zappy, final OutputStream out) {
+        this(zappy, ZappyTextSink.of(Objects.requireNonNull(out)));
+    }
+
+    /**
+     * Creates a writer that writes the encoded text as chars.
+     *
+     * @param zappy Zappy object whose contractions are used.
+     * @param out Destination writer.
+     */
+    public ZappyWriter(final Zappy zappy, final Writer out) {
+        this(zappy, ZappyTextSink.of(Objects.requireNonNull(out)));
+    }
+
+    /**
+     * Creates a writer that writes the encoded text as bytes, ASCII for text transports.
+     *
+     * @param zappy Zappy object whose contractions are used.
+     * @param out Destination channel.
+     */
+    public ZappyWriter(final Zappy zappy, final WritableByteChannel out) {
+        this(zappy, ZappyTextSink.of(Objects.requireNonNull(out)));
+    }
+
+    private ZappyWriter(final Zappy zappy, final ZappyTextSink sink) {
+        streamEncoder = new ZappyStreamEncoder(zappy.encoder(), sink);
+    }
+
+    @Override
+    public void write(final int c) throws IOException {
+        writeChars(String.valueOf((char) c), 0, 1);
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, cbuf.length);
+        writeChars(CharBuffer.wrap(cbuf), off, off + len);
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, str.length());
+        writeChars(str, off, off + len);
+    }
+
+    @Override
+    public Writer append(final CharSequence csq) throws IOException {
+        final CharSequence chars = csq == null ? "null" : csq;
+        writeChars(chars, 0, chars.length());
+        return this;
+    }
+
+    @Override
+    public Writer append(final CharSequence csq, final int start, final int end) throws IOException {
+        final CharSequence chars = csq == null ? "null" : csq;
+        Objects.checkFromToIndex(start, end, chars.length());
+        writeChars(chars, start, end);
+        return this;
+    }
+
+    private void writeChars(final CharSequence chars, final int start, final int end) throws IOException {
+        int walker = start;
+        if ((highSurrogate != 0) && (walker < end)) {
+            // Complete the pair left over from the previous write.
+            final char low = chars.charAt(walker);
+            if (Character.isLowSurrogate(low)) {
+                final int codePoint = Character.toCodePoint(highSurrogate, low);
+                utf8[0] = (byte) (0xf0 | (codePoint >> 18));
+                utf8[1] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                utf8[2] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                utf8[3] = (byte) (0x80 | (codePoint & 0x3f));
+                streamEncoder.write(utf8, 0, 4);
+                ++walker;
+            } else {
+                writeUnpairedSurrogate();
+            }
+            highSurrogate = 0;
+        }
+        while (walker < end) {
+            int chunkEnd = Math.min(end, walker + CHUNK_SIZE);
+            final char last = chars.charAt(chunkEnd - 1);
+            final boolean isSplitPair = Character.isHighSurrogate(last);
+            if (isSplitPair) {
+                // Keep the pair together. Its low surrogate is in the next chunk, or the next write.
+                --chunkEnd;
+            }
+            final int count = GUtils.utf8Encode(chars, walker, chunkEnd, utf8, 0);
+            streamEncoder.write(utf8, 0, count);
+            walker = chunkEnd;
+            if (isSplitPair && (chunkEnd == (end - 1))) {
+                highSurrogate = last;
+                walker = end;
+            }
+        }
+    }
+
+    private void writeUnpairedSurrogate() throws IOException {
+        // Same replacement as String.getBytes.
+        utf8[0] = '?';
+        streamEncoder.write(utf8, 0, 1);
+    }
+
+    /**
+     * Writes all text encoded so far downstream and flushes it.
+     *
+     * <p>The last few chars written may stay pending, as their tokens depend on what comes next.
+     *
+     * @throws IOException if the destination fails.
+     */
+    @Override
+    public void flush() throws IOException {
+        streamEncoder.flush();
+    }
+
+    /**
+     * Finishes encoding without closing the destination.
+     *
+     * <p>Nothing can be written afterward.
+     *
+     * @throws IOException if the destination fails.
+     */
+    public void finish() throws IOException {
+        if (highSurrogate != 0) {
+            writeUnpairedSurrogate();
+            highSurrogate = 0;
+        }
+        streamEncoder.finish();
+    }
+
+    /**
+     * Finishes encoding and closes the destination.
+     *
+     * @throws IOException if the destination fails.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            streamEncoder.close();
+        }
+    }
+}
@@ -5,6 +5,9 @@ package com.glitchybyte.zappy;
 
 import org.junit.jupiter.api.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class GUtilsTest {
@@ -24,4 +27,15 @@ public class GUtilsTest {
         final int value = GUtils.shortToInt(s);
         assertEquals(0xffff, value);
     }
+
+    @Test
+    void utf8Encode() {
+        final String[] samples = { "", "hello", "été", "中文", "👍☠️✌️", "a\ud83d", "\udc4db", "\ud83d\ud83d\udc4d" };
+        for (final String sample: samples) {
+            final byte[] expected = sample.getBytes(StandardCharsets.UTF_8);
+            final byte[] bytes = new byte[2 + GUtils.maxUtf8Length(sample.length())];
+            final int count = GUtils.utf8Encode(new StringBuilder(sample), bytes, 2);
+            assertArrayEquals(expected, Arrays.copyOfRange(bytes, 2, 2 + count));
+        }
+    }
 }
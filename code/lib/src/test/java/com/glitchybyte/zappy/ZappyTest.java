@@ -4,8 +4,46 @@
 package com.glitchybyte.zappy;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -36,6 +74,53 @@ public class ZappyTest {
         assertThrowsExactly(ZappyParseException.class, () -> zappy.base64StringDecode("aGVsbG8c1")); // Wrong length.
     }
 
+    @Test
+    void base64LongEncodeDecode() throws ZappyParseException {
+        final Zappy zappy = new Zappy(null);
+        for (int length = 0; length < 300; ++length) {
+            final String original = "{\"msg\":\"héllo wörld ✌\"}".repeat(20).substring(0, length);
+            final String encoded = zappy.base64StringEncode(original);
+            assertEquals(Base64.getUrlEncoder().withoutPadding().encodeToString(original.getBytes(StandardCharsets.UTF_8)), encoded);
+            final String decoded = zappy.base64StringDecode(encoded);
+            assertEquals(original, decoded);
+        }
+    }
+
+    @Test
+    void base64LongMalformedCheck() {
+        final Zappy zappy = new Zappy(null);
+        final String encoded = zappy.base64StringEncode("hello world ".repeat(20));
+        for (final char ch: new char[] { '@', '=', '+', '/', ' ', 'é', 'Ł', '\u0141' }) {
+            for (final int index: new int[] { 0, 17, 100, encoded.length() - 1 }) {
+                final String malformed = encoded.substring(0, index) + ch + encoded.substring(index + 1);
+                assertThrowsExactly(ZappyParseException.class, () -> zappy.base64StringDecode(malformed));
+            }
+        }
+    }
+
+    @Test
+    void base64AsciiDecode() throws ZappyParseException {
+        final ZappyDecoder decoder = new ZappyDecoder(new ZappyCodebook(null));
+        for (int length = 0; length < 300; ++length) {
+            final byte[] original = new byte[length];
+            for (int i = 0; i < length; ++i) {
+                original[i] = (byte) (i * 31 + 7);
+            }
+            final byte[] encoded = ("~~" + Base64.getUrlEncoder().withoutPadding().encodeToString(original) + "~~")
+                    .getBytes(StandardCharsets.US_ASCII);
+            final ByteBuffer decoded = decoder.base64AsciiToBytes(encoded, 2, encoded.length - 4, ByteBuffer.allocate(0));
+            assertArrayEquals(original, Arrays.copyOf(decoded.array(), decoded.position()));
+            if (encoded.length > 6) {
+                for (final byte b: new byte[] { '@', '=', '+', '/', (byte) 0xc1 }) {
+                    final byte[] malformed = encoded.clone();
+                    malformed[encoded.length - 3 - (length % 5)] = b;
+                    assertThrowsExactly(ZappyParseException.class,
+                            () -> decoder.base64AsciiToBytes(malformed, 2, malformed.length - 4, ByteBuffer.allocate(0)));
+                }
+            }
+        }
+    }
+
     @Test
     void emptyMessage() {
         final Zappy zappy = new Zappy(null);
@@ -155,6 +240,20 @@ public class ZappyTest {
         assertEquals(original, decoded);
     }
 
+    @Test
+    void integerOver31BitsKeepsEveryDigit() throws ZappyParseException {
+        // Digits past 31 bits go to the next token. Back references need the decoded bytes to
+        // match the source exactly.
+        final String original = "{\"order\":\"ord-4000000000\",\"ts\":9999999999,\"ids\":[4294967296,2147483648,2147483647]}";
+        for (final ZappyLevel level: ZappyLevel.values()) {
+            final Zappy zappy = new Zappy(null).withLevel(level);
+            assertEquals(original, zappy.decode(zappy.encode(original)));
+            final Zappy referencing = zappy.withBackReferences(true);
+            final String repeated = original.repeat(3);
+            assertEquals(repeated, referencing.decode(referencing.encode(repeated)));
+        }
+    }
+
     @Test
     void integerWithLeadingZeroes() throws ZappyParseException {
         final Zappy zappy = new Zappy(null);
@@ -167,6 +266,21 @@ public class ZappyTest {
         assertEquals(original, decoded);
     }
 
+    @Test
+    void integerAndHexRanges() throws ZappyParseException {
+        final Zappy zappy = new Zappy(null);
+        final StringBuilder sb = new StringBuilder();
+        for (long value = 1; value <= Integer.MAX_VALUE; value = value * 7 + 3) {
+            sb.append(value).append(':').append(Long.toHexString(value)).append(':')
+                    .append(Long.toHexString(value).toUpperCase(Locale.US)).append(' ');
+        }
+        sb.append(Integer.MAX_VALUE).append(":7fffffff:FFFF:ffff:1000:1000");
+        final String original = sb.toString();
+        final String encoded = zappy.encode(original);
+        final String decoded = zappy.decode(encoded);
+        assertEquals(original, decoded);
+    }
+
     @Test
     void hexMixedCaseShouldNotContract() throws ZappyParseException {
         final Zappy zappy = new Zappy(null);
@@ -309,6 +423,251 @@ public class ZappyTest {
         assertEquals(original, decoded);
     }
 
+    @Test
+    void longLiteralSpans() throws ZappyParseException {
+        final Zappy zappy = new Zappy(null);
+        final String literals = "_-.:;,!?/|() xyz[]{}<>".repeat(8);
+        for (int i = 0; i < literals.length(); i += 7) {
+            final String original = literals.substring(0, i) + "zzz https:" + literals.substring(i) + "1234~~~~";
+            final String encoded = zappy.encode(original);
+            final String decoded = zappy.decode(encoded);
+            assertEquals(original, decoded);
+        }
+    }
+
+    @Test
+    void encodeToAppendable() throws Exception {
+        final Zappy zappy = new Zappy(null);
+        final String original = "{\"url\":\"https://example.com\",\"emoji\":\"🥸\",\"n\":65535}";
+        final StringBuilder sb = new StringBuilder("prefix:");
+        final int count = zappy.encodeTo(new StringBuilder(original), sb);
+        assertEquals("prefix:" + zappy.encode(original), sb.toString());
+        assertEquals(sb.length() - 7, count);
+    }
+
+    @Test
+    void encodeToCharArray() {
+        final Zappy zappy = new Zappy(null);
+        final String original = "{\"url\":\"https://example.com\",\"emoji\":\"🥸\",\"n\":65535}";
+        final char[] dst = new char[3 + Zappy.maxEncodedLength(original.length())];
+        final int count = zappy.encodeTo(original, dst, 3);
+        assertEquals(zappy.encode(original), new String(dst, 3, count));
+        assertThrows(IndexOutOfBoundsException.class, () -> zappy.encodeTo(original, new char[count - 1], 0));
+    }
+
+    @Test
+    void encodeToByteBuffer() {
+        final Zappy zappy = new Zappy(null);
+        final String original = "{\"url\":\"https://example.com\",\"emoji\":\"🥸\",\"n\":65535}";
+        final String expected = zappy.encode(original);
+        for (final ByteBuffer dst: new ByteBuffer[] { ByteBuffer.allocate(200), ByteBuffer.allocateDirect(200) }) {
+            dst.put((byte) '>');
+            final int count = zappy.encodeTo(original, dst);
+            assertEquals(1 + count, dst.position());
+            dst.flip().get();
+            final byte[] bytes = new byte[dst.remaining()];
+            dst.get(bytes);
+            assertEquals(expected, new String(bytes, StandardCharsets.US_ASCII));
+        }
+        assertThrowsExactly(BufferOverflowException.class, () -> zappy.encodeTo(original, ByteBuffer.allocate(4)));
+    }
+
+    private static String createLargeMessage() {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 3000; ++i) {
+            sb.append("{\"id\":").append(i * 7919).append(",\"url\":\"https://example.com/").append(Integer.toHexString(i * 4099))
+                    .append("\",\"ok\":").append(i % 3 == 0).append(",\"tag\":\"").append("x".repeat(i % 40))
+                    .append(i % 5 == 0 ? "👍🥸" : "é").append("\"},");
+        }
+        return sb.append("null]").toString();
+    }
+
+    @Test
+    void outputStreamMatchesEncode() throws Exception {
+        final Zappy zappy = new Zappy(Map.of(1, new String[] { "\"url\":\"https://example.com/", "\"tag\":\"" }));
+        final String original = createLargeMessage();
+        final byte[] bytes = original.getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Random random = new Random(1);
+        try (final ZappyOutputStream stream = new ZappyOutputStream(zappy, out)) {
+            int index = 0;
+            while (index < bytes.length) {
+                final int count = Math.min(bytes.length - index, random.nextInt(600));
+                if (count == 1) {
+                    stream.write(bytes[index]);
+                } else {
+                    stream.write(bytes, index, count);
+                }
+                index += count;
+            }
+        }
+        final String encoded = out.toString(StandardCharsets.US_ASCII);
+        assertEquals(zappy.encode(original), encoded);
+        assertEquals(original, zappy.decode(encoded));
+    }
+
+    @Test
+    void writerMatchesEncode() throws Exception {
+        final Zappy zappy = new Zappy(null);
+        final String original = createLargeMessage();
+        final StringWriter out = new StringWriter();
+        final Random random = new Random(2);
+        try (final ZappyWriter writer = new ZappyWriter(zappy, out)) {
+            int index = 0;
+            while (index < original.length()) {
+                // Chunks split surrogate pairs.
+                final int count = Math.min(original.length() - index, random.nextInt(5000));
+                writer.write(original, index, count);
+                index += count;
+            }
+        }
+        assertEquals(zappy.encode(original), out.toString());
+        final ByteArrayOutputStream channelOut = new ByteArrayOutputStream();
+        try (final ZappyWriter writer = new ZappyWriter(zappy, Channels.newChannel(channelOut))) {
+            writer.write(original.toCharArray());
+        }
+        assertEquals(zappy.encode(original), channelOut.toString(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void writerUnpairedSurrogates() throws Exception {
+        final Zappy zappy = new Zappy(null);
+        final StringWriter out = new StringWriter();
+        try (final ZappyWriter writer = new ZappyWriter(zappy, out)) {
+            writer.write("a\ud83d");
+            writer.write("b\ude00c\ud83d");
+        }
+        assertEquals(zappy.encode("a\ud83db\ude00c\ud83d"), out.toString());
+    }
+
+    @Test
+    void inputStreamMatchesDecode() throws Exception {
+        final Zappy zappy = new Zappy(null);
+        final String original = createLargeMessage();
+        final byte[] encoded = zappy.encode(original).getBytes(StandardCharsets.US_ASCII);
+        final Random random = new Random(3);
+        // Hands out the text in small, uneven chunks.
+        final InputStream in = new FilterInputStream(new ByteArrayInputStream(encoded)) {
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1 + random.nextInt(100)));
+            }
+        };
+        try (final ZappyInputStream stream = new ZappyInputStream(zappy, in)) {
+            assertArrayEquals(original.getBytes(StandardCharsets.UTF_8), stream.readAllBytes());
+        }
+    }
+
+    @Test
+    void readerMatchesDecode() throws Exception {
+        final Zappy zappy = new Zappy(null);
+        final String original = createLargeMessage();
+        final String encoded = zappy.encode(original);
+        final Random random = new Random(4);
+        final Reader in = new FilterReader(new StringReader(encoded)) {
+            @Override
+            public int read(final char[] cbuf, final int off, final int len) throws IOException {
+                return super.read(cbuf, off, Math.min(len, 1 + random.nextInt(100)));
+            }
+        };
+        final StringBuilder sb = new StringBuilder();
+        try (final ZappyReader reader = new ZappyReader(zappy, in)) {
+            final char[] chars = new char[7];
+            int count;
+            while ((count = reader.read(chars, 0, 1 + random.nextInt(chars.length))) >= 0) {
+                sb.append(chars, 0, count);
+            }
+        }
+        assertEquals(original, sb.toString());
+        final ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(encoded.getBytes(StandardCharsets.US_ASCII)));
+        try (final ZappyReader reader = new ZappyReader(zappy, channel)) {
+            final StringWriter out = new StringWriter();
+            reader.transferTo(out);
+            assertEquals(original, out.toString());
+        }
+    }
+
+    @Test
+    void readerMalformedCheck() {
+        final Zappy zappy = new Zappy(null);
+        for (final String encoded: new String[] { "c__", "aGVsbG8c1", "aGVsb@8", "8A" }) {
+            final IOException e = assertThrows(IOException.class,
+                    () -> new ZappyReader(zappy, new StringReader(encoded)).transferTo(new StringWriter()));
+            assertInstanceOf(ZappyParseException.class, e.getCause());
+        }
+    }
+
+    @Test
+    void streamsUseTheTransport() throws Exception {
+        final String original = createLargeMessage();
+        for (final ZappyTransport transport: List.of(ZappyTransport.BASE85, ZappyTransport.RAW)) {
+            final Zappy zappy = new Zappy(null).withTransport(transport);
+            final String encoded = zappy.encode(original);
+            final StringWriter out = new StringWriter();
+            try (final ZappyWriter writer = new ZappyWriter(zappy, out)) {
+                writer.write(original);
+            }
+            assertEquals(encoded, out.toString());
+            final ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+            try (final ZappyOutputStream stream = new ZappyOutputStream(zappy, bytesOut)) {
+                stream.write(original.getBytes(StandardCharsets.UTF_8));
+            }
+            assertArrayEquals(zappy.encodeToBytes(original), bytesOut.toByteArray());
+            final Random random = new Random(6);
+            // Hands out the text in small, uneven chunks, which split transport groups.
+            final Reader in = new FilterReader(new StringReader(encoded)) {
+                @Override
+                public int read(final char[] cbuf, final int off, final int len) throws IOException {
+                    return super.read(cbuf, off, Math.min(len, 1 + random.nextInt(100)));
+                }
+            };
+            final StringWriter decoded = new StringWriter();
+            try (final ZappyReader reader = new ZappyReader(zappy, in)) {
+                reader.transferTo(decoded);
+            }
+            assertEquals(original, decoded.toString());
+            try (final ZappyInputStream stream = new ZappyInputStream(zappy, new ByteArrayInputStream(bytesOut.toByteArray()))) {
+                assertArrayEquals(original.getBytes(StandardCharsets.UTF_8), stream.readAllBytes());
+            }
+            final IOException e = assertThrows(IOException.class,
+                    () -> new ZappyReader(zappy, new StringReader(encoded + "Ā")).transferTo(new StringWriter()));
+            assertInstanceOf(ZappyParseException.class, e.getCause());
+        }
+    }
+
+    @Test
+    void encodeAllDecodeAllKeepOrder() throws Exception {
+        final Zappy zappy = new Zappy(null);
+        final List<String> originals = IntStream.range(0, 5000)
+                .mapToObj(i -> "{\"id\":" + i + ",\"url\":\"https://example.com/" + "x".repeat(i % 50) + "\"}")
+                .toList();
+        final List<String> expected = originals.stream().map(zappy::encode).toList();
+        final ForkJoinPool pool = new ForkJoinPool(3);
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            assertEquals(expected, zappy.encodeAll(originals));
+            assertEquals(expected, zappy.encodeAll(originals, pool));
+            assertArrayEquals(expected.toArray(), zappy.encodeAll(originals.toArray(new String[0]), executor));
+            assertEquals(originals, zappy.decodeAll(expected));
+            assertEquals(originals, zappy.decodeAll(expected, executor));
+            assertArrayEquals(originals.toArray(), zappy.decodeAll(expected.toArray(new String[0]), pool));
+            assertEquals(List.of(), zappy.encodeAll(List.of()));
+        } finally {
+            pool.shutdown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void decodeAllMalformedCheck() {
+        final Zappy zappy = new Zappy(null);
+        final List<String> encoded = new ArrayList<>(Collections.nCopies(1000, zappy.encode("hello")));
+        encoded.set(700, "c__");
+        encoded.set(300, "aGVsb@8");
+        final ZappyParseException e = assertThrowsExactly(ZappyParseException.class, () -> zappy.decodeAll(encoded));
+        assertEquals("Invalid base64 character!", e.getMessage());
+    }
+
     @Test
     void contractionFastTableUnmodified() throws ZappyParseException {
         final Map<Integer, String[]> contractionSource = Map.of(
@@ -345,6 +704,626 @@ public class ZappyTest {
         assertEquals(original, decoded);
     }
 
+    @Test
+    void contractionLongestWithinTable() throws ZappyParseException {
+        final Zappy zappy = new Zappy(Map.of(1, new String[] { "ice", "ice cream" }));
+        final Zappy longestZappy = new Zappy(Map.of(1, new String[] { "ice cream" }));
+        final String original = "ice cream";
+        final String encoded = zappy.encode(original);
+        assertEquals(longestZappy.encode(original), encoded);
+        final String decoded = zappy.decode(encoded);
+        assertEquals(original, decoded);
+    }
+
+    @Test
+    void contractionHighestTableFirst() throws ZappyParseException {
+        final Zappy zappy = new Zappy(Map.of(
+                1, new String[] { "hello world" },
+                2, new String[] { "hello" }
+        ));
+        final Zappy highestZappy = new Zappy(Map.of(2, new String[] { "hello" }));
+        final String original = "hello world";
+        final String encoded = zappy.encode(original);
+        assertEquals(highestZappy.encode(original), encoded);
+        final String decoded = zappy.decode(encoded);
+        assertEquals(original, decoded);
+    }
+
+    @Test
+    void contractionIndexPast127() throws ZappyParseException {
+        final String[] list = IntStream.range(0, 0x100)
+                .mapToObj(i -> String.format("entry%03d", i))
+                .toArray(String[]::new);
+        final Zappy zappy = new Zappy(Map.of(1, list));
+        final String original = "entry200,entry127,entry128,entry255";
+        final String encoded = zappy.encode(original);
+        final String decoded = zappy.decode(encoded);
+        assertEquals(original, decoded);
+    }
+
+    @Test
+    void contractionPreventTooManyEntries() {
+        final String[] list = IntStream.range(0, 0x11)
+                .mapToObj(i -> String.format("e%02d", i))
+                .toArray(String[]::new);
+        assertThrowsExactly(IllegalArgumentException.class, () -> new Zappy(Map.of(0, list)));
+    }
+
+    @Test
+    void optimalParseFindsHiddenContraction() throws ZappyParseException {
+        // Greedy takes the table 1 "abc", leaving "def" as literals. Optimal takes "ab" and the
+        // table 0 "cdef" instead.
+        final Zappy zappy = new Zappy(Map.of(0, new String[] { "cdef" }, 1, new String[] { "abc" }));
+        final Zappy optimalZappy = zappy.withLevel(ZappyLevel.MAX);
+        final String original = "abcdef";
+        final String encoded = optimalZappy.encode(original);
+        assertEquals(2, zappy.optimalParseGain(original));
+        assertEquals(2, optimalZappy.optimalParseGain(original));
+        // Again, with the encoders of the other level already created.
+        assertEquals(2, zappy.optimalParseGain(original));
+        assertEquals(2, optimalZappy.optimalParseGain(original));
+        assertEquals(ZappyEncoder.base64Length(3), encoded.length());
+        assertEquals(ZappyEncoder.base64Length(5), zappy.encode(original).length());
+        assertEquals(original, zappy.decode(encoded));
+        assertSame(optimalZappy, optimalZappy.withLevel(ZappyLevel.MAX));
+    }
+
+    @Test
+    void optimalParseLongDigitRuns() throws ZappyParseException {
+        final Zappy zappy = new Zappy(null).withLevel(ZappyLevel.MAX);
+        final String original = "12345678901234567890,00001234,99999999999,2147483648,FFFFFFFFF";
+        final String encoded = zappy.encode(original);
+        assertEquals(original, zappy.decode(encoded));
+    }
+
+    @Test
+    void optimalParseNeverLarger() throws ZappyParseException {
+        final List<String> messages = List.of(
+                "{\"id\":1234,\"hex\":\"0xDEADBEEF\",\"url\":\"https://example.com/hello\",\"ok\":true}",
+                "hey hello hey, zzzzzzzzzz été 👍 中文 null false 0012A0 e0012a0f92cc7",
+                "[{\"a\":[\"x\"]},{\"b\":null}]   ---   " + "w".repeat(70),
+                createLargeMessage()
+        );
+        for (final Zappy zappy: List.of(new Zappy(null), new Zappy(Map.of(1, new String[] { "hello", "hey" })))) {
+            final Zappy optimalZappy = zappy.withLevel(ZappyLevel.MAX);
+            for (final String original: messages) {
+                final String encoded = optimalZappy.encode(original);
+                assertEquals(original, zappy.decode(encoded));
+                assertTrue(optimalZappy.optimalParseGain(original) >= 0, original);
+                assertTrue(encoded.length() <= zappy.encode(original).length(), original);
+            }
+        }
+    }
+
+    @Test
+    void optimalParseResumesAcrossFlushes() throws Exception {
+        // Windows are parsed once and committed across many flushes of the compressed buffer.
+        final Random random = new Random(0x0f1);
+        final String[] owners = { "billing-gateway", "inventory-service", "notification-hub" };
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 1500; ++i) {
+            sb.append(i == 0 ? "" : ",").append("{\"id\":").append(random.nextInt(1000000)).append(",\"owner\":\"")
+                    .append(owners[random.nextInt(3)]).append("\",\"name\":\"user").append(random.nextInt(5000))
+                    .append("\",\"score\":").append(random.nextInt(1000)).append("}");
+        }
+        final String original = sb.append("]").toString();
+        final Zappy zappy = new Zappy(null);
+        for (final boolean usesBackReferences: new boolean[] { false, true }) {
+            final Zappy greedy = zappy.withBackReferences(usesBackReferences);
+            final Zappy optimal = greedy.withLevel(ZappyLevel.MAX);
+            final String encoded = optimal.encode(original);
+            assertEquals(original, zappy.decode(encoded));
+            assertTrue(encoded.length() <= greedy.encode(original).length());
+            assertEquals(encoded, optimal.encode(original));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (final ZappyOutputStream stream = new ZappyOutputStream(optimal, out)) {
+                stream.write(original.getBytes(StandardCharsets.UTF_8));
+            }
+            assertEquals(original, zappy.decode(out.toString(StandardCharsets.US_ASCII)));
+        }
+    }
+
+    @Test
+    void optimalParseIndependentOfEarlierCodebooks() throws ZappyParseException {
+        // Every prefix of the long entry is an entry too, so there is a match for every length.
+        final String longEntry = "qwertyuiop".repeat(4);
+        final String[] prefixes = IntStream.rangeClosed(3, longEntry.length()).mapToObj(n -> longEntry.substring(0, n))
+                .toArray(String[]::new);
+        final Zappy shortZappy = new Zappy(Map.of(1, new String[] { "hey" })).withLevel(ZappyLevel.MAX);
+        final Zappy longZappy = new Zappy(Map.of(1, prefixes)).withLevel(ZappyLevel.MAX);
+        final String original = longEntry + "," + longEntry;
+        // Pooled scratch buffers are first sized by the short entries.
+        shortZappy.encode("hey hey");
+        final String encoded = longZappy.encode(original);
+        assertEquals(longZappy.withLevel(ZappyLevel.DEFAULT).encode(original), encoded);
+        assertEquals(0, longZappy.optimalParseGain(original));
+        assertEquals(encoded, longZappy.encode(original));
+        assertEquals(original, longZappy.decode(encoded));
+    }
+
+    @Test
+    void levelsDecodeWithSameDecoder() throws ZappyParseException {
+        final Zappy zappy = new Zappy(Map.of(1, new String[] { "hello", "hey" }));
+        final List<String> messages = List.of(
+                "{\"id\":1234567890123,\"hex\":\"0xDEADBEEF\",\"url\":\"https://example.com/hello\",\"ok\":true}",
+                "hey hello 99999 zzzzzzzzzz été 👍 中文 null false 0012A0 e0012a0f92cc7",
+                createLargeMessage()
+        );
+        for (final String original: messages) {
+            int previousLength = Integer.MAX_VALUE;
+            for (final ZappyLevel level: ZappyLevel.values()) {
+                final Zappy levelZappy = zappy.withLevel(level);
+                assertEquals(level, levelZappy.level());
+                final String encoded = levelZappy.encode(original);
+                assertEquals(original, zappy.decode(encoded));
+                assertTrue(encoded.length() <= previousLength, level.name());
+                previousLength = encoded.length();
+            }
+        }
+        assertSame(zappy, zappy.withLevel(ZappyLevel.DEFAULT));
+    }
+
+    @Test
+    void fastLevelSkipsContractions() throws ZappyParseException {
+        final Zappy zappy = new Zappy(null).withLevel(ZappyLevel.FAST);
+        // No contraction, no hex, but still decimals and repeats.
+        final String original = "{\"null\":0xDEADBEEF,\"n\":123456789,\"s\":\"aaaaaaaa\"}";
+        final String encoded = zappy.encode(original);
+        final int expectedLength = original.length() - 9 + 5 - 8 + 2;
+        assertEquals(ZappyEncoder.base64Length(expectedLength), encoded.length());
+        assertEquals(original, zappy.decode(encoded));
+    }
+
+    @Test
+    void parseFailuresCarryTheirKind() throws Exception {
+        final ZappyMetrics metrics = new ZappyMetrics();
+        final Zappy zappy = new Zappy(null).withMetrics(metrics);
+        final Zappy raw = zappy.withTransport(ZappyTransport.RAW);
+        final Zappy registered = Zappy.fromRegistry(new ZappyCodebookRegistry(Map.of(1, new ZappyCodebook(null))), 1)
+                .withTransport(ZappyTransport.RAW).withMetrics(metrics);
+        final Zappy custom = new Zappy(Map.of(0, new String[] { "ab" })).withTransport(ZappyTransport.RAW).withMetrics(metrics);
+        final Map<ZappyMetrics.DecodeFailure, Executable> failures = new EnumMap<>(ZappyMetrics.DecodeFailure.class);
+        failures.put(ZappyMetrics.DecodeFailure.INVALID_BASE64, () -> zappy.decode("!!!!"));
+        failures.put(ZappyMetrics.DecodeFailure.INVALID_LENGTH, () -> zappy.decode("AAAAA"));
+        failures.put(ZappyMetrics.DecodeFailure.TRUNCATED_TOKEN, () -> raw.decodeFromBytes(new byte[] { 'a', (byte) 0xf0 }));
+        failures.put(ZappyMetrics.DecodeFailure.INVALID_NUMBER, () -> raw.decodeFromBytes(new byte[] { (byte) 0xc3, 0, 0, 0 }));
+        failures.put(ZappyMetrics.DecodeFailure.UNKNOWN_CONTRACTION, () -> custom.decodeFromBytes(new byte[] { (byte) 0xf0, 0 }));
+        failures.put(ZappyMetrics.DecodeFailure.UNKNOWN_CODEBOOK, () -> registered.decodeFromBytes(new byte[] { (byte) 0xa0, 9, 'a' }));
+        failures.put(ZappyMetrics.DecodeFailure.INVALID_BACK_REFERENCE,
+                () -> raw.decodeFromBytes(new byte[] { 'a', (byte) 0xc8, (byte) 0xff, (byte) 0xff }));
+        for (final Map.Entry<ZappyMetrics.DecodeFailure, Executable> failure: failures.entrySet()) {
+            assertEquals(failure.getKey(), assertThrowsExactly(ZappyParseException.class, failure.getValue()).failure());
+        }
+        final ZappyMetrics.Snapshot snapshot = metrics.snapshot();
+        for (final ZappyMetrics.DecodeFailure failure: failures.keySet()) {
+            assertEquals(1, snapshot.decodeFailures().get(failure));
+        }
+        assertEquals(0, snapshot.decodeFailures().get(ZappyMetrics.DecodeFailure.OTHER));
+    }
+
+    @Test
+    void metricsRecordMessagesTokensAndFailures() throws Exception {
+        final ZappyMetrics metrics = new ZappyMetrics();
+        final Zappy zappy = new Zappy(null).withLevel(ZappyLevel.FAST).withMetrics(metrics);
+        final String original = "xaaaaaaa 123456";
+        final String encoded = zappy.encode(original);
+        assertEquals(original, zappy.decode(encoded));
+        assertThrowsExactly(ZappyParseException.class, () -> zappy.decode("!!!!"));
+        ZappyMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.encodedMessages());
+        assertEquals(original.length(), snapshot.encodeInputBytes());
+        assertEquals(encoded.length(), snapshot.encodeTextBytes());
+        assertEquals(snapshot.encodeCompressedBytes(), snapshot.decodeCompressedBytes());
+        assertEquals(1, snapshot.decodedMessages());
+        assertEquals(original.length(), snapshot.decodeOutputBytes());
+        assertEquals(2, snapshot.tokenCounts().get(ZappyMetrics.TokenType.ASCII));
+        assertEquals(1, snapshot.tokenCounts().get(ZappyMetrics.TokenType.REPEAT));
+        assertEquals(1, snapshot.tokenCounts().get(ZappyMetrics.TokenType.DECIMAL));
+        assertEquals(0, snapshot.tokenCounts().get(ZappyMetrics.TokenType.FAST_CONTRACTION));
+        assertEquals(1, snapshot.decodeFailures().get(ZappyMetrics.DecodeFailure.INVALID_BASE64));
+        assertEquals(1, snapshot.encodeLatency().count());
+        assertEquals(1, snapshot.decodeLatency().count());
+        assertTrue(snapshot.encodeLatency().percentileNanos(99) >= snapshot.encodeLatency().percentileNanos(50));
+
+        // Tokens straddling flushes are counted once, so their bytes add up to the compressed size.
+        metrics.reset();
+        final Zappy defaultZappy = zappy.withLevel(ZappyLevel.DEFAULT);
+        final String large = createLargeMessage();
+        assertEquals(large, defaultZappy.decode(defaultZappy.encode(large)));
+        snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.encodedMessages());
+        assertEquals(snapshot.encodeCompressedBytes(), snapshot.decodeCompressedBytes());
+        assertTrue(snapshot.tokenCounts().get(ZappyMetrics.TokenType.FAST_CONTRACTION) > 0);
+
+        final ObjectName name = metrics.registerMBean("test");
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(name, "EncodedMessages"));
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+
+    @Test
+    void flightRecorderRecordsOnlyLargeCalls() throws Exception {
+        final Zappy zappy = new Zappy(null);
+        final String large = createLargeMessage();
+        final Path file = Files.createTempFile("zappy", ".jfr");
+        try (final Recording recording = new Recording()) {
+            recording.enable("com.glitchybyte.zappy.Call").with("largerThan", "1 KiB").with("slowerThan", "1 s");
+            recording.start();
+            assertEquals("hello", zappy.decode(zappy.encode("hello")));
+            assertEquals(large, zappy.decode(zappy.encode(large)));
+            recording.stop();
+            recording.dump(file);
+            final List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            assertEquals(2, events.size());
+            final RecordedEvent encodeEvent = events.get(0);
+            assertEquals("encode", encodeEvent.getString("operation"));
+            assertEquals(large.length(), encodeEvent.getLong("inputLength"));
+            assertTrue(encodeEvent.getDouble("ratio") < 1);
+            assertEquals(String.format("%08x", new ZappyCodebook(null).fingerprint()), encodeEvent.getString("tables"));
+            assertEquals("decode", events.get(1).getString("operation"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void flightRecorderReportsTheCodebookOfTheHeader() throws Exception {
+        final ZappyCodebook customCodebook = new ZappyCodebook(Map.of(0, new String[] { "ab" }));
+        final ZappyCodebookRegistry registry = new ZappyCodebookRegistry(Map.of(1, new ZappyCodebook(null), 2, customCodebook));
+        final Zappy zappy = Zappy.fromRegistry(registry, 1);
+        final Zappy customZappy = Zappy.fromRegistry(registry, 2);
+        final String large = createLargeMessage();
+        final String encoded = customZappy.encode(large);
+        final Path file = Files.createTempFile("zappy", ".jfr");
+        try (final Recording recording = new Recording()) {
+            recording.enable("com.glitchybyte.zappy.Call").with("largerThan", "1 KiB").with("slowerThan", "1 s");
+            recording.start();
+            assertEquals(large, zappy.decode(encoded));
+            assertEquals(large, zappy.withTransport(ZappyTransport.RAW)
+                    .decodeFromBytes(customZappy.withTransport(ZappyTransport.RAW).encodeToBytes(large)));
+            recording.stop();
+            recording.dump(file);
+            final List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+                    .filter(event -> "decode".equals(event.getString("operation")))
+                    .toList();
+            assertEquals(2, events.size());
+            for (final RecordedEvent event: events) {
+                assertEquals(String.format("%08x", customCodebook.fingerprint()), event.getString("tables"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void registryDecodesEveryCodebookId() throws Exception {
+        final ZappyCodebook defaultCodebook = new ZappyCodebook(null);
+        final ZappyCodebook customCodebook = new ZappyCodebook(Map.of(0, new String[] { "ab" }, 1, new String[] { "\"name\":\"" }));
+        final ZappyCodebookRegistry registry = new ZappyCodebookRegistry(Map.of(1, defaultCodebook, 2, customCodebook));
+        final Zappy oldZappy = Zappy.fromRegistry(registry, 1);
+        final Zappy newZappy = Zappy.fromRegistry(registry, 2).withLevel(ZappyLevel.MAX);
+        final String original = "{\"name\":\"abcabc\",\"null\":null}";
+        final String oldEncoded = oldZappy.encode(original);
+        final String newEncoded = newZappy.encode(original);
+        for (final Zappy zappy: new Zappy[] { oldZappy, newZappy }) {
+            assertEquals(original, zappy.decode(oldEncoded));
+            assertEquals(original, zappy.decode(newEncoded));
+            final StringWriter out = new StringWriter();
+            try (final ZappyReader reader = new ZappyReader(zappy, new StringReader(newEncoded))) {
+                reader.transferTo(out);
+            }
+            assertEquals(original, out.toString());
+        }
+        final StringWriter writerOut = new StringWriter();
+        try (final ZappyWriter writer = new ZappyWriter(newZappy, writerOut)) {
+            writer.write(original);
+        }
+        assertEquals(newEncoded, writerOut.toString());
+        // The header is a 2-byte no-op for decoders without a registry.
+        assertEquals(ZappyEncoder.base64Length(2), oldZappy.encode("").length());
+        assertEquals(original, new Zappy(null).decode(oldEncoded));
+        // Messages without a header use the codebook of the id.
+        assertEquals(original, newZappy.decode(Zappy.fromCodebook(customCodebook).encode(original)));
+        final Zappy otherZappy = Zappy.fromRegistry(new ZappyCodebookRegistry(Map.of(3, defaultCodebook)), 3);
+        assertThrowsExactly(ZappyParseException.class, () -> oldZappy.decode(otherZappy.encode(original)));
+        assertThrowsExactly(IllegalArgumentException.class, () -> Zappy.fromRegistry(registry, 3));
+        assertThrowsExactly(IllegalArgumentException.class, () -> new ZappyCodebookRegistry(Map.of(0x100, defaultCodebook)));
+    }
+
+    @Test
+    void savedCodebookLoadsTheSame() throws Exception {
+        final ZappyCodebook codebook = new ZappyCodebook(Map.of(0, new String[] { "ab", "\u00e9t\u00e9" }, 5, new String[] { "\"name\":\"" }));
+        final Path file = Files.createTempFile("zappy", ".zcb");
+        try {
+            codebook.save(file);
+            final ZappyCodebook loaded = ZappyCodebook.load(file);
+            assertEquals(codebook.fingerprint(), loaded.fingerprint());
+            assertEquals(codebook.maxEntryLength(), loaded.maxEntryLength());
+            final String original = createLargeMessage() + "{\"name\":\"\u00e9t\u00e9 abc\"}";
+            final String encoded = Zappy.fromCodebook(codebook).encode(original);
+            assertEquals(encoded, Zappy.fromCodebook(loaded).encode(original));
+            assertEquals(original, Zappy.fromCodebook(loaded).decode(encoded));
+
+            final byte[] bytes = Files.readAllBytes(file);
+            Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+            assertThrowsExactly(IOException.class, () -> ZappyCodebook.load(file));
+            // The last byte is a trie label. Its links stay valid.
+            final byte[] trieLabel = bytes.clone();
+            trieLabel[trieLabel.length - 1] ^= 0x01;
+            Files.write(file, trieLabel);
+            assertThrowsExactly(IOException.class, () -> ZappyCodebook.load(file));
+            bytes[bytes.length / 2] ^= 0x40;
+            Files.write(file, bytes);
+            assertThrowsExactly(IOException.class, () -> ZappyCodebook.load(file));
+            Files.write(file, "not a codebook file".getBytes(StandardCharsets.US_ASCII));
+            assertThrowsExactly(IOException.class, () -> ZappyCodebook.load(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void encodeFromUtf8MatchesEncode() {
+        final Zappy zappy = new Zappy(null);
+        final String original = createLargeMessage();
+        final String encoded = zappy.encode(original);
+        final byte[] utf8 = original.getBytes(StandardCharsets.UTF_8);
+        final byte[] padded = new byte[utf8.length + 10];
+        System.arraycopy(utf8, 0, padded, 7, utf8.length);
+        assertEquals(encoded, zappy.encode(padded, 7, utf8.length));
+        assertThrowsExactly(IndexOutOfBoundsException.class, () -> zappy.encode(padded, 11, utf8.length));
+        final ByteBuffer heap = ByteBuffer.wrap(padded, 7, utf8.length).slice();
+        final ByteBuffer direct = ByteBuffer.allocateDirect(padded.length).put(padded).position(7).limit(7 + utf8.length);
+        final ByteBuffer readOnly = ByteBuffer.wrap(padded, 7, utf8.length).asReadOnlyBuffer();
+        for (final ByteBuffer buffer: new ByteBuffer[] { heap, direct, readOnly }) {
+            assertEquals(encoded, zappy.encode(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+        assertEquals(zappy.encode(""), zappy.encode(ByteBuffer.allocateDirect(0)));
+    }
+
+    @Test
+    void decodeToBytesAndAppendableMatchesDecode() throws Exception {
+        final Zappy zappy = new Zappy(null);
+        final String original = createLargeMessage();
+        final byte[] utf8 = original.getBytes(StandardCharsets.UTF_8);
+        final String encoded = zappy.encode(original);
+        // A slice of a larger buffer, without copying.
+        final CharSequence slice = CharBuffer.wrap("<<" + encoded + ">>", 2, 2 + encoded.length());
+        assertArrayEquals(utf8, zappy.decodeToBytes(slice));
+        for (final ByteBuffer dst: new ByteBuffer[] { ByteBuffer.allocate(utf8.length + 3), ByteBuffer.allocateDirect(utf8.length + 3) }) {
+            dst.position(3);
+            assertEquals(utf8.length, zappy.decodeTo(slice, dst));
+            assertEquals(ByteBuffer.wrap(utf8), dst.flip().position(3));
+        }
+        final ByteBuffer small = ByteBuffer.allocate(utf8.length - 1);
+        assertThrowsExactly(BufferOverflowException.class, () -> zappy.decodeTo(slice, small));
+        assertEquals(0, small.position());
+        final StringBuilder sb = new StringBuilder("x");
+        assertEquals(original.length(), zappy.decodeTo(slice, sb));
+        assertEquals("x" + original, sb.toString());
+        // Malformed UTF-8 is replaced as with decode.
+        final String malformed = zappy.encode(new byte[] { (byte) 0xff, 'a', (byte) 0xe2, (byte) 0x82, 'b', (byte) 0xc3 }, 0, 6);
+        final StringBuilder replaced = new StringBuilder();
+        zappy.decodeTo(malformed, replaced);
+        assertEquals(zappy.decode(malformed), replaced.toString());
+        assertThrowsExactly(ZappyParseException.class, () -> zappy.decodeToBytes("!!!!"));
+    }
+
+    @Test
+    void transportsRoundTripWithLessOverhead() throws Exception {
+        final Zappy zappy = new Zappy(null);
+        final Zappy raw = zappy.withTransport(ZappyTransport.RAW);
+        final Zappy base85 = zappy.withTransport(ZappyTransport.BASE85);
+        assertSame(ZappyTransport.BASE64, zappy.transport());
+        assertSame(raw, raw.withTransport(ZappyTransport.RAW));
+        assertSame(ZappyTransport.RAW, raw.withLevel(ZappyLevel.MAX).transport());
+        final String large = createLargeMessage();
+        for (int length = 0; length < 300; ++length) {
+            if (Character.isLowSurrogate(large.charAt(length))) {
+                continue;
+            }
+            final String original = large.substring(0, length);
+            final String encoded = zappy.encode(original);
+            assertArrayEquals(encoded.getBytes(StandardCharsets.US_ASCII), zappy.encodeToBytes(original));
+            // Raw bytes are the compressed bytes behind the base64.
+            final byte[] rawBytes = raw.encodeToBytes(original);
+            assertEquals(ZappyTransport.BASE64.decode(encoded, GByteBuffer.create()).flip(), ByteBuffer.wrap(rawBytes));
+            assertEquals(original, raw.decodeFromBytes(rawBytes));
+            assertEquals(original, raw.decode(raw.encode(original)));
+            final String text = base85.encode(original);
+            assertEquals(ZappyTransport.BASE85.encodedLength(rawBytes.length), text.length());
+            assertTrue(text.length() <= encoded.length());
+            assertTrue(text.chars().allMatch(c -> (c > 0x20) && (c < 0x7f) && (c != '"') && (c != '\\')));
+            assertEquals(original, base85.decode(text));
+            assertEquals(original, base85.decodeFromBytes(base85.encodeToBytes(original)));
+            for (final Zappy transported: List.of(raw, base85)) {
+                final String expected = transported.encode(original);
+                final StringBuilder sb = new StringBuilder();
+                assertEquals(expected.length(), transported.encodeTo(original, sb));
+                assertEquals(expected, sb.toString());
+                final char[] chars = new char[Zappy.maxEncodedLength(original.length()) + 1];
+                final int count = transported.encodeTo(original, chars, 1);
+                assertEquals(expected, new String(chars, 1, count));
+                assertEquals(original, transported.decode(sb.toString()));
+            }
+        }
+        // Whole groups encode the same regardless of where they are split.
+        final String original = large.repeat(4);
+        assertEquals(original, base85.decode(base85.encode(original)));
+        assertTrue(raw.encodeToBytes(original).length < base85.encode(original).length());
+        assertThrowsExactly(ZappyParseException.class, () -> base85.decode("ab\"de"));
+        assertThrowsExactly(ZappyParseException.class, () -> base85.decode("abcdef"));
+        assertThrowsExactly(ZappyParseException.class, () -> base85.decode("#####"));
+        assertThrowsExactly(ZappyParseException.class, () -> raw.decode("Ā"));
+    }
+
+    @Test
+    void backReferencesShrinkRepeatedObjects() throws Exception {
+        final Zappy zappy = new Zappy(null);
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 2000; ++i) {
+            sb.append(i == 0 ? "" : ",").append("{\"id\":").append(i)
+                    .append(",\"status\":\"active\",\"owner\":\"billing-gateway\",\"tags\":[\"alpha\",\"beta\"]}");
+        }
+        final String original = sb.append("]").toString();
+        assertFalse(zappy.usesBackReferences());
+        for (final ZappyLevel level: ZappyLevel.values()) {
+            final Zappy plain = zappy.withLevel(level);
+            final Zappy referencing = plain.withBackReferences(true);
+            assertTrue(referencing.usesBackReferences());
+            final String encoded = referencing.encode(original);
+            assertTrue(encoded.length() < (plain.encode(original).length() / 4));
+            // Back references need no opt-in to decode.
+            assertEquals(original, zappy.decode(encoded));
+            // Overlapping copies.
+            for (final String repeated: List.of("abcabcabcabcabcabcabc", "a".repeat(500), "{}".repeat(100))) {
+                assertEquals(repeated, zappy.decode(referencing.encode(repeated)));
+            }
+        }
+        // Streamed decoding keeps the window across buffer refills.
+        final String encoded = zappy.withBackReferences(true).encode(original);
+        final Random random = new Random(5);
+        final InputStream in = new FilterInputStream(new ByteArrayInputStream(encoded.getBytes(StandardCharsets.US_ASCII))) {
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1 + random.nextInt(100)));
+            }
+        };
+        try (final ZappyInputStream stream = new ZappyInputStream(zappy, in)) {
+            assertArrayEquals(original.getBytes(StandardCharsets.UTF_8), stream.readAllBytes());
+        }
+        final Zappy raw = zappy.withTransport(ZappyTransport.RAW);
+        assertThrowsExactly(ZappyParseException.class, () -> raw.decodeFromBytes(new byte[] { (byte) 0xc8, 0, 0 }));
+        assertThrowsExactly(ZappyParseException.class, () -> raw.decodeFromBytes(new byte[] { 'a', (byte) 0xc8, 0x40 }));
+    }
+
+    @Test
+    void sessionsLearnRepeatedWordsInLockstep() throws ZappyParseException {
+        final Random random = new Random(0x5e55);
+        final String[] services = { "billing-gateway", "inventory-service", "notification-hub" };
+        final List<String> messages = new ArrayList<>();
+        for (int i = 0; i < 600; ++i) {
+            // Later messages bring new words, so the table fills up and evicts.
+            messages.add("{\"service\":\"" + services[random.nextInt(3)] + "\",\"region\":\"region-" + (i / 2)
+                    + "\",\"message\":\"Request completed for customer " + random.nextInt(100000) + "\"}");
+        }
+        // FAST skips contractions, and so the session table.
+        for (final ZappyLevel level: List.of(ZappyLevel.DEFAULT, ZappyLevel.MAX)) {
+            final Zappy zappy = new Zappy(null).withLevel(level);
+            final ZappySessionEncoder sessionEncoder = new ZappySessionEncoder(zappy);
+            final ZappySessionDecoder sessionDecoder = new ZappySessionDecoder(zappy);
+            int plainLength = 0;
+            int sessionLength = 0;
+            for (final String message: messages) {
+                final String encoded = sessionEncoder.encode(message);
+                assertEquals(message, sessionDecoder.decode(encoded));
+                assertEquals(sessionEncoder.tableSize(), sessionDecoder.tableSize());
+                plainLength += zappy.encode(message).length();
+                sessionLength += encoded.length();
+            }
+            assertTrue(sessionLength < (plainLength / 2));
+            assertEquals(ZappyCodebook.TABLE_SIZE, sessionEncoder.tableSize());
+        }
+        // Sessions are independent. A fresh decoder doesn't know the words.
+        final Zappy zappy = new Zappy(null);
+        final ZappySessionEncoder sessionEncoder = new ZappySessionEncoder(zappy);
+        sessionEncoder.encode(messages.get(0));
+        sessionEncoder.encode(messages.get(0));
+        final String encoded = sessionEncoder.encode(messages.get(0));
+        assertThrowsExactly(ZappyParseException.class, () -> new ZappySessionDecoder(zappy).decode(encoded));
+        final Map<Integer, String[]> fullTables = new HashMap<>();
+        for (int tableId = 1; tableId <= 16; ++tableId) {
+            fullTables.put(tableId, new String[] { "table" + tableId });
+        }
+        assertThrowsExactly(IllegalArgumentException.class, () -> new ZappySessionEncoder(new Zappy(fullTables)));
+    }
+
+    @Test
+    void sessionsStayInLockstepOverLongNumbers() throws ZappyParseException {
+        // Decimal runs past 31 bits are split into tokens, and both ends must learn the same words.
+        final List<String> messages = new ArrayList<>();
+        messages.add("{\"order\":\"ord-4000000000\"}");
+        messages.add("{\"order\":\"ord-4000000000\"}");
+        for (int i = 0; i < 3; ++i) {
+            messages.add("{\"ref\":\"ord-4000000000 and ord-400000000\"}");
+        }
+        messages.add("{\"order\":\"ord-4000000000\",\"ref\":\"ord-400000000\"}");
+        for (final ZappyLevel level: List.of(ZappyLevel.DEFAULT, ZappyLevel.MAX)) {
+            final Zappy zappy = new Zappy(null).withLevel(level);
+            final ZappySessionEncoder sessionEncoder = new ZappySessionEncoder(zappy);
+            final ZappySessionDecoder sessionDecoder = new ZappySessionDecoder(zappy);
+            for (final String message: messages) {
+                assertEquals(message, sessionDecoder.decode(sessionEncoder.encode(message)));
+                assertEquals(sessionEncoder.tableSize(), sessionDecoder.tableSize());
+            }
+            assertTrue(sessionEncoder.tableSize() >= 3);
+        }
+    }
+
+    @Test
+    void sessionDecoderBreaksOnFailure() throws ZappyParseException {
+        final Zappy zappy = new Zappy(null);
+        final ZappySessionEncoder sessionEncoder = new ZappySessionEncoder(zappy);
+        final ZappySessionDecoder sessionDecoder = new ZappySessionDecoder(zappy);
+        final String message = "{\"status\":\"completed\",\"message\":\"Request completed\"}";
+        assertEquals(message, sessionDecoder.decode(sessionEncoder.encode(message)));
+        // The encoder learns from a message the decoder never sees.
+        sessionEncoder.encode(message);
+        assertThrowsExactly(ZappyParseException.class, () -> sessionDecoder.decode("*"));
+        // Even valid messages are refused after a failure, as the tables may no longer match.
+        final String encoded = sessionEncoder.encode(message);
+        assertThrowsExactly(IllegalStateException.class, () -> sessionDecoder.decode(encoded));
+        assertThrowsExactly(IllegalStateException.class, () -> sessionDecoder.decode(zappy.encode("hello")));
+    }
+
+    @Test
+    void trainedTablesBeatDefaults() throws ZappyParseException {
+        final Random random = new Random(0x5eed);
+        final String[] levels = { "debug", "info", "warning", "error" };
+        final List<String> corpus = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            corpus.add("{\"timestamp\":" + (1700000000 + random.nextInt(100000)) + ",\"level\":\"" + levels[random.nextInt(4)]
+                    + "\",\"service\":\"billing-gateway\",\"pad\":\"" + "-".repeat(8 + random.nextInt(20))
+                    + "\",\"message\":\"Request completed for customer " + random.nextInt(5000) + "\"}");
+        }
+        final Map<Integer, String[]> tables = ZappyTableTrainer.train(corpus);
+        assertEquals(ZappyCodebook.TABLE_COUNT, tables.size());
+        for (final String[] table: tables.values()) {
+            for (final String entry: table) {
+                // Runs are already a repeat token, and numbers a number token.
+                assertFalse(entry.matches("-+"), entry);
+                assertFalse(entry.matches("\\d+"), entry);
+            }
+        }
+        final Zappy defaultZappy = new Zappy(null);
+        final Zappy trainedZappy = new Zappy(tables);
+        long defaultLength = 0;
+        long trainedLength = 0;
+        for (final String original: corpus) {
+            final String encoded = trainedZappy.encode(original);
+            assertEquals(original, trainedZappy.decode(encoded));
+            defaultLength += defaultZappy.encode(original).length();
+            trainedLength += encoded.length();
+        }
+        assertTrue(trainedLength < (defaultLength / 2), trainedLength + " vs " + defaultLength);
+    }
+
+    @Test
+    void sharedCodebook() throws ZappyParseException {
+        final ZappyCodebook codebook = new ZappyCodebook(Map.of(1, new String[] { "hello" }));
+        final Zappy encoding = Zappy.fromCodebook(codebook);
+        final Zappy decoding = Zappy.fromCodebook(codebook);
+        final String original = "{\"msg\":\"hello\"}";
+        final String encoded = encoding.encode(original);
+        assertEquals(new Zappy(Map.of(1, new String[] { "hello" })).encode(original), encoded);
+        final String decoded = decoding.decode(encoded);
+        assertEquals(original, decoded);
+    }
+
     @Test
     void contractionPreventInvalidTableId() {
         final Map<Integer, String[]> contractionSource = Map.of(
@@ -362,4 +1341,35 @@ public class ZappyTest {
         );
         assertThrowsExactly(IllegalArgumentException.class, () -> new Zappy(contractionSource));
     }
+
+    @Test
+    void sharedAcrossThreads() throws Exception {
+        final Zappy zappy = new Zappy(null);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Boolean>> futures = new ArrayList<>();
+            for (int task = 0; task < 64; ++task) {
+                final int seed = task;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; ++i) {
+                        final String original = "{\"id\":" + (seed * 1000 + i) + ",\"url\":\"https://example.com\",\"tag\":\"" +
+                                "x".repeat(i % 40) + "👍\"}";
+                        final String encoded = zappy.encode(original);
+                        if (!original.equals(zappy.decode(encoded))) {
+                            return false;
+                        }
+                        if (!original.equals(zappy.base64StringDecode(zappy.base64StringEncode(original)))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (final Future<Boolean> future: futures) {
+                assertTrue(future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
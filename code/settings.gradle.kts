@@ -3,3 +3,5 @@
 
 rootProject.name = "zappy"
 include("lib")
+include("benchmarks")
+include("cli")